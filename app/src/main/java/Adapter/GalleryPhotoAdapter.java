@@ -1,6 +1,7 @@
 package Adapter;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -17,7 +18,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+import BackgroundThreads.PhotoManager;
 import BackgroundThreads.PhotoView;
+import ImageLoaderPackage.HttpTransport;
 import ImageLoaderPackage.ImageFetcher;
 
 /**
@@ -25,11 +33,18 @@ import ImageLoaderPackage.ImageFetcher;
  */
 public class GalleryPhotoAdapter extends BaseAdapter {
     private static final String TAG = "GalleryPhotoAdapter";
+
+    //Remembers the image hosts of the last feed, so the next cold start can warm them
+    private static final String PREFS_NAME = "GalleryPhotoAdapter";
+    private static final String PREF_IMAGE_HOSTS = "image_hosts";
     private AQuery mAq;
 //    private ImageFetcher mImageLoader;
     private Context ctx;
     private JSONArray mData;
 
+    //How many images fill the first screen of the grid
+    private int mFirstScreenCount;
+
     public GalleryPhotoAdapter(Context context, ImageFetcher imageLoader) {
         ctx = context;
         mAq = new AQuery(context);
@@ -90,7 +105,18 @@ public class GalleryPhotoAdapter extends BaseAdapter {
         return convertView;
     }
 
+    /**
+     * Sets how many images the grid shows before it is scrolled. Those are requested as soon
+     * as the feed arrives, without waiting for the grid to lay out
+     */
+    public void setFirstScreenCount(int count) {
+        mFirstScreenCount = count;
+    }
+
     public void refreshFromServer() {
+        //DNS and TLS to the image hosts overlap with the feed request
+        preconnect(getSharedPreferences().getStringSet(PREF_IMAGE_HOSTS, new HashSet<String>()));
+
         String url = "http://api.qanvast.com/api/photos?skip=0&limit=500&latest=1";
         mAq.ajax(url, JSONArray.class, new AjaxCallback<JSONArray>() {
             @Override
@@ -104,9 +130,56 @@ public class GalleryPhotoAdapter extends BaseAdapter {
     private void savedToDataBase(JSONArray object) {
         Log.i(TAG, "number of photos " + object.length());
         mData = object;
+        preloadFirstScreen();
         notifyDataSetChanged();
     }
 
+    /**
+     * Warms the hosts of this feed and requests its first screen of images
+     */
+    private void preloadFirstScreen() {
+        final Set<String> hosts = new HashSet<String>();
+        final PhotoManager photoManager = PhotoManager.getInstance();
+
+        for (int i = 0; i < mData.length(); i++) {
+            final String url = getImageUrl(i);
+            if (url == null) continue;
+
+            try {
+                final URL imageUrl = new URL(url);
+                hosts.add(imageUrl.getProtocol() + "://" + imageUrl.getAuthority() + "/");
+            } catch (MalformedURLException e) {
+                continue;
+            }
+
+            if (i < mFirstScreenCount) {
+                photoManager.preload(url);
+            }
+        }
+
+        preconnect(hosts);
+        getSharedPreferences().edit().putStringSet(PREF_IMAGE_HOSTS, hosts).apply();
+    }
+
+    private void preconnect(Set<String> hosts) {
+        final HttpTransport transport = HttpTransport.getInstance();
+        for (String host : hosts) {
+            transport.preconnect(host, transport.getMaxConnectionsPerHost());
+        }
+    }
+
+    private String getImageUrl(int position) {
+        try {
+            return mData.getJSONObject(position).getJSONObject("image").getString("url");
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private SharedPreferences getSharedPreferences() {
+        return ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
     public String getData() {
         final String data = mData.toString();
         return data;
@@ -0,0 +1,100 @@
+package BackgroundThreads;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Set;
+
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.ImageMetrics;
+import ImageLoaderPackage.ImageResizer;
+
+/**
+ * Fetches an image into the cache in the background, without decoding or showing it. Either
+ * revalidates a stale cached image after it has already been served, where a 304 only
+ * refreshes the stored freshness and a 200 replaces the cached image so the next load shows
+ * the new one, or prefetches an image that is not cached yet into the disk cache.
+ */
+class CacheFillRunnable implements Runnable {
+    private static final String TAG = "CacheFillRunnable";
+
+    private final ImageCache mImageCache;
+    private final String mUrl;
+
+    //The cached metadata to revalidate, or null for a prefetch
+    private final ImageMetadata mMetadata;
+
+    //Urls being fetched, this one is removed from it when done and waiters on it notified
+    private final Set<String> mInFlight;
+
+    CacheFillRunnable(ImageCache imageCache, String url, ImageMetadata metadata,
+                      Set<String> inFlight) {
+        mImageCache = imageCache;
+        mUrl = url;
+        mMetadata = metadata;
+        mInFlight = inFlight;
+    }
+
+    @Override
+    public void run() {
+        android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final ImageMetrics metrics = ImageMetrics.getInstance();
+        HttpTransport.Response response = null;
+
+        try {
+            //Loaded by a request while the prefetch was queued
+            if (mMetadata == null && mImageCache.isInDiskCache(mUrl)) return;
+
+            response = mMetadata != null
+                    ? HttpTransport.getInstance().get(mUrl, mMetadata.getETag(), mMetadata.getLastModified())
+                    : HttpTransport.getInstance().get(mUrl);
+            final long now = System.currentTimeMillis();
+
+            if (response.isNotModified() && mMetadata != null) {
+                Log.i(TAG, "Not modified - " + mUrl);
+                metrics.counter(ImageMetrics.NETWORK + ImageMetrics.NOT_MODIFIED).increment();
+                mImageCache.updateMetadata(mUrl, CacheFreshness.update(mMetadata, response, now));
+
+            } else if (response.isSuccessful()) {
+                final byte[] bytes = response.readBody();
+                metrics.counter(ImageMetrics.NETWORK + ImageMetrics.BYTES_READ).add(bytes.length);
+
+                ImageMetadata metadata = ImageResizer.decodeMetadata(bytes, null);
+                if (metadata == null) {
+                    Log.i(TAG, "Not an image - " + mUrl);
+                    return;
+                }
+                metadata = CacheFreshness.update(metadata, response, now);
+
+                if (mMetadata != null) {
+                    Log.i(TAG, "Modified - " + mUrl);
+                    metrics.counter(ImageMetrics.NETWORK + ImageMetrics.MODIFIED).increment();
+                    mImageCache.replaceByteInCache(mUrl, bytes, metadata);
+                } else {
+                    Log.i(TAG, "Prefetched - " + mUrl);
+                    mImageCache.addByteToDiskCache(mUrl, bytes, metadata);
+                }
+
+            } else {
+                Log.i(TAG, "HTTP " + response.getCode() + " fetching " + mUrl);
+            }
+
+        } catch (IOException e) {
+            //A cached image stays, it is tried again on the next load
+            Log.i(TAG, "fetch - " + e);
+        } catch (InterruptedException e) {
+            //The pool is shutting down
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            synchronized (mInFlight) {
+                mInFlight.remove(mUrl);
+                mInFlight.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package BackgroundThreads;
+
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.ImageMetadata;
+
+/**
+ * The HTTP freshness model of the disk cache. A response is fresh for its Cache-Control
+ * max-age, else until its Expires date, else for a tenth of the time since it was last
+ * modified, capped at a day. A stale entry is still served, and then revalidated with a
+ * conditional request carrying its ETag and Last-Modified.
+ */
+final class CacheFreshness {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    //Freshness of a response that says nothing about it
+    private static final long DEFAULT_FRESHNESS_MILLIS = DAY_MILLIS;
+
+    private CacheFreshness() {}
+
+    /**
+     * Returns the metadata of the image with the validators and expiry of response, falling
+     * back to the validators already in metadata for those the response leaves out
+     */
+    static ImageMetadata update(ImageMetadata metadata, HttpTransport.Response response,
+                                long nowMillis) {
+        String eTag = response.getHeaderField("ETag");
+        if (eTag == null) {
+            eTag = metadata.getETag();
+        }
+
+        long lastModified = response.getLastModified();
+        if (lastModified == 0) {
+            lastModified = metadata.getLastModified();
+        }
+
+        return metadata.withFreshness(eTag, lastModified, getExpires(response, lastModified, nowMillis));
+    }
+
+    private static long getExpires(HttpTransport.Response response, long lastModified, long nowMillis) {
+        final String cacheControl = response.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+
+                if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store")) {
+                    return nowMillis;
+                }
+                if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                    try {
+                        return nowMillis + Math.max(0, Long.parseLong(directive.substring(8))) * 1000;
+                    } catch (NumberFormatException e) {
+                        //Ignore the directive like a browser would
+                    }
+                }
+            }
+        }
+
+        final long expiration = response.getExpiration();
+        if (expiration != 0) {
+            return Math.max(nowMillis, expiration);
+        }
+
+        if (lastModified != 0 && lastModified < nowMillis) {
+            return nowMillis + Math.min((nowMillis - lastModified) / 10, DAY_MILLIS);
+        }
+        return nowMillis + DEFAULT_FRESHNESS_MILLIS;
+    }
+}
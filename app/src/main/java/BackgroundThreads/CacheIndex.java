@@ -0,0 +1,201 @@
+package BackgroundThreads;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A secondary index over the cached urls, so entries can be invalidated by url prefix or by
+ * tag even though the DiskLruCache only knows their hashed keys. The index is kept in memory
+ * and saved next to the disk cache journal, one line per url:
+ *
+ *     addedTimeMillis TAB url TAB tag1,tag2
+ *
+ * It is a hint: an indexed url may already have been evicted from the memory cache, so
+ * removing it again is harmless. Urls leave the index when the disk cache evicts them, see
+ * removeDiskKey(), so it stays as large as the disk cache. Tags must not contain tabs, commas
+ * or newlines.
+ */
+class CacheIndex {
+    private static final String TAG_SEPARATOR = ",";
+
+    //Sorted so a url prefix maps to a contiguous range
+    private final TreeMap<String, Entry> mEntries = new TreeMap<String, Entry>();
+    private final Map<String, Set<String>> mTags = new HashMap<String, Set<String>>();
+
+    //The DiskLruCache only reports the hashed keys it evicts
+    private final Map<String, String> mUrlsByDiskKey = new HashMap<String, String>();
+    private boolean mDirty;
+
+    /**
+     * Indexes url, or refreshes its added time if it is indexed already
+     */
+    synchronized void add(String url, long addedTime, String... tags) {
+        Entry entry = mEntries.get(url);
+        if (entry == null) {
+            entry = new Entry(addedTime);
+            mEntries.put(url, entry);
+            mUrlsByDiskKey.put(ImageCache.hashKeyforDisk(url), url);
+        } else {
+            entry.addedTime = addedTime;
+        }
+
+        for (String tag : tags) {
+            if (entry.tags.add(tag)) {
+                Set<String> urls = mTags.get(tag);
+                if (urls == null) {
+                    urls = new HashSet<String>();
+                    mTags.put(tag, urls);
+                }
+                urls.add(url);
+            }
+        }
+        mDirty = true;
+    }
+
+    synchronized void remove(String url) {
+        final Entry entry = mEntries.remove(url);
+        if (entry == null) return;
+        mUrlsByDiskKey.remove(ImageCache.hashKeyforDisk(url));
+
+        for (String tag : entry.tags) {
+            final Set<String> urls = mTags.get(tag);
+            if (urls != null) {
+                urls.remove(url);
+                if (urls.isEmpty()) {
+                    mTags.remove(tag);
+                }
+            }
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Removes the url stored under a DiskLruCache key, if it is indexed
+     */
+    synchronized void removeDiskKey(String diskKey) {
+        final String url = mUrlsByDiskKey.get(diskKey);
+        if (url != null) {
+            remove(url);
+        }
+    }
+
+    synchronized List<String> urls() {
+        return new ArrayList<String>(mEntries.keySet());
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mTags.clear();
+        mUrlsByDiskKey.clear();
+        mDirty = true;
+    }
+
+    synchronized List<String> urlsWithPrefix(String prefix) {
+        //The largest char sorts after any character that can follow the prefix
+        return new ArrayList<String>(mEntries.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+    }
+
+    synchronized List<String> urlsWithTag(String tag) {
+        final Set<String> urls = mTags.get(tag);
+        return urls == null ? Collections.<String>emptyList() : new ArrayList<String>(urls);
+    }
+
+    synchronized List<String> urlsAddedBefore(long timeMillis) {
+        final List<String> urls = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().addedTime < timeMillis) {
+                urls.add(entry.getKey());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Replaces the index with the contents of a file written by save(). A missing file
+     * leaves the index empty
+     */
+    synchronized void load(File file) throws IOException {
+        clear();
+        mDirty = false;
+        if (!file.exists()) return;
+
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 3) continue;
+
+                try {
+                    final String[] tags = fields[2].length() == 0
+                            ? new String[0] : fields[2].split(TAG_SEPARATOR);
+                    add(fields[1], Long.parseLong(fields[0]), tags);
+                } catch (NumberFormatException e) {
+                    //Skip the corrupt line, the entry simply becomes unindexed
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Writes the index if it changed since the last load() or save()
+     */
+    synchronized void save(File file) throws IOException {
+        if (!mDirty) return;
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(String.valueOf(entry.getValue().addedTime));
+                writer.write('\t');
+                writer.write(entry.getKey());
+                writer.write('\t');
+
+                boolean first = true;
+                for (String tag : entry.getValue().tags) {
+                    if (!first) writer.write(TAG_SEPARATOR);
+                    writer.write(tag);
+                    first = false;
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+        mDirty = false;
+    }
+
+    private static class Entry {
+        long addedTime;
+        final Set<String> tags = new HashSet<String>();
+
+        Entry(long addedTime) {
+            this.addedTime = addedTime;
+        }
+    }
+}
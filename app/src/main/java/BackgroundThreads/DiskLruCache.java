@@ -162,6 +162,14 @@ public final class DiskLruCache implements Closeable {
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    private EvictionListener evictionListener;
+
+    /**
+     * Receives the keys of entries evicted to stay under the size limit.
+     */
+    public interface EvictionListener {
+        void onEvicted(String key);
+    }
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -656,6 +664,42 @@ public final class DiskLruCache implements Closeable {
         return true;
     }
 
+    /**
+     * Drops every entry whose files were last written before {@code timeMillis}.
+     * Entries actively being edited are skipped.
+     *
+     * @return the number of entries removed.
+     */
+    public synchronized int removeOlderThan(long timeMillis) throws IOException {
+        checkNotClosed();
+        int removed = 0;
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (entry.readable && entry.currentEditor == null
+                    && entry.getCleanFile(0).lastModified() < timeMillis
+                    && remove(entry.key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns true if a readable entry exists for {@code key}, without opening
+     * its files.
+     */
+    public synchronized boolean contains(String key) {
+        final Entry entry = lruEntries.get(key);
+        return entry != null && entry.readable;
+    }
+
+    /**
+     * Sets the listener told about entries evicted to stay under the size
+     * limit. It is called while this cache is locked.
+     */
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
     /**
      * Returns true if this cache has been closed.
      */
@@ -699,7 +743,10 @@ public final class DiskLruCache implements Closeable {
         while (size > maxSize) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            final String key = toEvict.getKey();
+            if (remove(key) && evictionListener != null) {
+                evictionListener.onEvicted(key);
+            }
         }
     }
 
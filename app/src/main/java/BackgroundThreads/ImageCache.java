@@ -6,28 +6,33 @@ import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.StatFs;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
-import android.util.LruCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import ImageLoaderPackage.BackgroundUtils;
+import ImageLoaderPackage.CacheKey;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.ImageMetrics;
+import ImageLoaderPackage.ImageResizer;
+import ImageLoaderPackage.MemoryCache;
+import ImageLoaderPackage.MemoryTrimmer;
+import ImageLoaderPackage.Trimmable;
 
 /**
  * Created by desmond on 19/6/14.
  */
-public class ImageCache  {
+public class ImageCache implements Trimmable, ResumableDownload.PartialStore {
     private static final String TAG = "ImageCache";
 
     //Default memory cache size in kilobytes
@@ -44,16 +49,64 @@ public class ImageCache  {
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
     private static final int DISK_CACHE_INDEX = 0;
 
+    //Every disk entry also holds the ImageMetadata of its image, so a hit skips the bounds pass
+    private static final int DISK_METADATA_INDEX = 1;
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+
+    //Version of the on-disk layout. 2 added the metadata value and moved to CacheKey file
+    //names, an older cache no longer matches its journal and is cleared when opened
+    private static final int DISK_CACHE_VERSION = 2;
+
+    //A partial download is stored next to its url's entry, with the header in place of the
+    //metadata. It is a committed entry, DiskLruCache drops dirty files when it is opened
+    private static final String PARTIAL_KEY_SUFFIX = "-partial";
+
+    //Number of urls whose metadata is kept in memory, a few hundred bytes each
+    private static final int DEFAULT_METADATA_INDEX_SIZE = 1024;
+
+    //Secondary index of cached urls, saved in the disk cache directory
+    private static final String INDEX_FILE_NAME = "index";
+
+    //Share of the memory cache kept while the gallery is not visible
+    private static final int DEFAULT_BACKGROUND_MEM_CACHE_PERCENT = 25;
+
     //Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
+    //Eviction policy of the memory cache
+    private static final MemoryCache.Policy DEFAULT_MEM_CACHE_POLICY = MemoryCache.Policy.LRU;
+
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, byte[]> mMemoryCache;
+    private MemoryCache<String, byte[]> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    private final CacheIndex mIndex = new CacheIndex();
+
+    //Metadata of recently cached or read urls, so even a memory hit can skip the bounds pass
+    private final MemoryCache<String, ImageMetadata> mMetadataIndex = MemoryCache.create(
+            MemoryCache.Policy.LRU, DEFAULT_METADATA_INDEX_SIZE,
+            new MemoryCache.Callbacks<String, ImageMetadata>() {
+
+        @Override
+        public int sizeOf(String key, ImageMetadata value) {
+            return 1;
+        }
+
+        @Override
+        public void entryRemoved(boolean evicted, String key, ImageMetadata oldValue,
+                                 ImageMetadata newValue) {}
+    });
+
+    //Share of memCacheSize the memory cache is allowed, lowered by trimMemory() and while
+    //backgrounded
+    private int mTrimPercent = 100;
+    private boolean mBackgrounded;
+    private int mMemCacheBudgetPercent = 100;
 
     /**
      * ImageCache object across configuration changes such as a change in device orientation
@@ -80,10 +133,11 @@ public class ImageCache  {
 
     /**
      * Create a new ImageCache object using the specified parameters. This
-     * should not be called directly by other classes.
+     * should not be called directly by other classes, it is package-private for the
+     * headless pipeline the load simulator runs on the JVM.
      * @param cacheParams
      */
-    private ImageCache(ImageCacheParams cacheParams) {
+    ImageCache(ImageCacheParams cacheParams) {
         Log.i(TAG, "trying to load memory cache");
         init(cacheParams);
     }
@@ -97,15 +151,28 @@ public class ImageCache  {
 
         if (mCacheParams.memoryCacheEnabled) {
             Log.i(TAG, "init memory cache");
-            mMemoryCache = new LruCache<String, byte[]>(mCacheParams.memCacheSize) {
+            MemoryTrimmer.getInstance().addTrimmable(this);
+            mMemoryCache = MemoryCache.create(mCacheParams.memCachePolicy, mCacheParams.memCacheSize,
+                    new MemoryCache.Callbacks<String, byte[]>() {
 
                 @Override
-                protected int sizeOf(String key, byte[] value) {
+                public void entryRemoved(boolean evicted, String key, byte[] oldValue, byte[] newValue) {
+                    if (evicted) {
+                        mMetrics.counter(ImageMetrics.MEMORY_ENCODED + ImageMetrics.EVICTION).increment();
+                    }
+                }
+
+                @Override
+                public int sizeOf(String key, byte[] value) {
                     final int size = value.length / 1024;
                     return size;
                 }
-            };
+            });
+
+            mMetrics.gauge(ImageMetrics.MEMORY_ENCODED + ImageMetrics.BYTES, new SizeGauge(this, false));
         }
+
+        mMetrics.gauge(ImageMetrics.DISK_ENCODED + ImageMetrics.BYTES, new SizeGauge(this, true));
     }
 
     /**
@@ -126,8 +193,23 @@ public class ImageCache  {
                 if (getUsableSpace(diskCacheDir) >= mCacheParams.diskCacheSize) {
 
                     try {
-                        mDiskLruCache = DiskLruCache.open(
-                                diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                        mDiskLruCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_VERSION,
+                                DISK_CACHE_VALUE_COUNT, mCacheParams.diskCacheSize);
+                        mIndex.load(new File(diskCacheDir, INDEX_FILE_NAME));
+
+                        //Drops urls evicted after the index was last saved, and keeps the
+                        //index in step with the disk cache from now on
+                        for (String url : mIndex.urls()) {
+                            if (!mDiskLruCache.contains(hashKeyforDisk(url))) {
+                                mIndex.remove(url);
+                            }
+                        }
+                        mDiskLruCache.setEvictionListener(new DiskLruCache.EvictionListener() {
+                            @Override
+                            public void onEvicted(String key) {
+                                mIndex.removeDiskKey(key);
+                            }
+                        });
                         Log.i(TAG, "Disk cache initialized");
                     } catch (IOException e) {
                         mCacheParams.diskCacheDir = null;
@@ -141,16 +223,47 @@ public class ImageCache  {
 
     /**
      * Add a bitmap to both memory and disk cache
+     * @param tags Optional tags that invalidateTag() can later remove the entry by
+     */
+    public void addByteToCache(String data, byte[] value, String... tags) {
+        addByteToCache(data, value, null, tags);
+    }
+
+    /**
+     * Add a bitmap to both memory and disk cache
+     * @param metadata The metadata of value, read with a bounds pass here when null
+     * @param tags Optional tags that invalidateTag() can later remove the entry by
      */
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
-    public void addByteToCache(String data, byte[] value) {
+    public void addByteToCache(String data, byte[] value, ImageMetadata metadata, String... tags) {
         if (data == null || value == null) return;
 
         //Add to memory cache
         if (mMemoryCache != null) {
+            MemoryTrimmer.getInstance().restoreIfCooledDown();
             mMemoryCache.put(data, value);
         }
 
+        addByteToDiskCache(data, value, metadata, tags);
+    }
+
+    /**
+     * Add a bitmap to the disk cache only, e.g. for a prefetch. Includes disk access
+     * @param metadata The metadata of value, read with a bounds pass here when null
+     * @param tags Optional tags that invalidateTag() can later remove the entry by
+     */
+    public void addByteToDiskCache(String data, byte[] value, ImageMetadata metadata, String... tags) {
+        if (data == null || value == null) return;
+
+        if (metadata == null) {
+            metadata = ImageResizer.decodeMetadata(value, null);
+        }
+
+        mIndex.add(data, System.currentTimeMillis(), tags);
+        if (metadata != null) {
+            mMetadataIndex.put(data, metadata);
+        }
+
         synchronized (mDiskCacheLock) {
             //Add to disk cache
             if (mDiskLruCache != null) {
@@ -179,9 +292,20 @@ public class ImageCache  {
                                 out.write(bufferArray, 0, byteRead);
                             }
 
+                            out.close();
+
+                            //An entry is only committed with every value written
+                            out = editor.newOutputStream(DISK_METADATA_INDEX);
+                            if (metadata != null) {
+                                metadata.writeTo(out);
+                            }
+                            out.close();
+
                             editor.commit();
                             deflater.end();
-                            out.close();
+
+                            mMetrics.counter(ImageMetrics.DISK_ENCODED + ImageMetrics.BYTES_WRITTEN)
+                                    .add(value.length);
                         }
 
                     } else {
@@ -209,6 +333,285 @@ public class ImageCache  {
         }
     }
 
+    /**
+     * Returns true if the disk cache holds data, without reading it. Includes disk access
+     */
+    public boolean isInDiskCache(String data) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) return false;
+
+            try {
+                final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(hashKeyforDisk(data));
+                if (snapshot == null) return false;
+                snapshot.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Replaces the metadata of a cached url, keeping its image, e.g. once a revalidation found
+     * it unchanged. Includes disk access
+     */
+    public void updateMetadata(String data, ImageMetadata metadata) {
+        mMetadataIndex.put(data, metadata);
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                final String key = hashKeyforDisk(data);
+                OutputStream out = null;
+
+                try {
+                    //An entry evicted meanwhile is not brought back without its image
+                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    if (snapshot == null) return;
+                    snapshot.close();
+
+                    final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_METADATA_INDEX);
+                        metadata.writeTo(out);
+                        out.close();
+                        editor.commit();
+                    }
+                } catch (Exception e) {
+                    Log.i(TAG, "updateMetadata error - " + e);
+                } finally {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        }
+                    } catch (IOException e) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the cached image of a url with a newer one, keeping its tags. Includes disk
+     * access
+     */
+    public void replaceByteInCache(String data, byte[] value, ImageMetadata metadata) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                try {
+                    mDiskLruCache.remove(hashKeyforDisk(data));
+                } catch (IOException e) {
+                    Log.e(TAG, "replaceByteInCache - " + e);
+                }
+            }
+        }
+        addByteToCache(data, value, metadata);
+    }
+
+    /**
+     * Stores the first bytes of a download that was cut off, replacing any earlier part of
+     * it. Stored as is, unlike whole images. Includes disk access
+     */
+    @Override
+    public void addPartialToDiskCache(String data, PartialDownload partial) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                OutputStream out = null;
+
+                try {
+                    final DiskLruCache.Editor editor = mDiskLruCache.edit(getPartialKey(data));
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        out.write(partial.getBytes());
+                        out.close();
+
+                        out = editor.newOutputStream(DISK_METADATA_INDEX);
+                        partial.writeHeaderTo(out);
+                        out.close();
+
+                        editor.commit();
+                    }
+                } catch (IOException e) {
+                    Log.i(TAG, "addPartialToDiskCache error - " + e);
+                } finally {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        }
+                    } catch (IOException e) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the stored part of a download that was cut off, or null if there is none.
+     * Includes disk access
+     */
+    @Override
+    public PartialDownload getPartialFromDiskCache(String data) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) return null;
+
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = mDiskLruCache.get(getPartialKey(data));
+                if (snapshot == null) return null;
+
+                final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[READ_SIZE];
+                int readResult;
+                while ((readResult = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, readResult);
+                }
+
+                return PartialDownload.readFrom(snapshot.getInputStream(DISK_METADATA_INDEX),
+                        out.toByteArray());
+            } catch (IOException e) {
+                Log.i(TAG, "getPartialFromDiskCache - " + e);
+                return null;
+            } finally {
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the stored part of a download, once it is complete or cannot be resumed. Includes
+     * disk access
+     */
+    @Override
+    public void removePartialFromDiskCache(String data) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                try {
+                    mDiskLruCache.remove(getPartialKey(data));
+                } catch (IOException e) {
+                    Log.e(TAG, "removePartialFromDiskCache - " + e);
+                }
+            }
+        }
+    }
+
+    private static String getPartialKey(String data) {
+        return hashKeyforDisk(data) + PARTIAL_KEY_SUFFIX;
+    }
+
+    /**
+     * Shrinks the memory cache according to the trim level, or restores its full budget for
+     * MemoryTrimmer.TRIM_LEVEL_NONE. The encoded bytes are small next to decoded bitmaps, so
+     * they are kept longer to let the app come back warm
+     */
+    @Override
+    public void trimMemory(int level) {
+        synchronized (this) {
+            mTrimPercent = level == MemoryTrimmer.TRIM_LEVEL_NONE ? 100
+                    : Math.min(mTrimPercent, MemoryTrimmer.encodedBudgetPercent(level));
+        }
+        updateMemCacheBudget();
+    }
+
+    /**
+     * Shrinks the memory cache to ImageCacheParams.backgroundMemCachePercent while the images
+     * are not on screen, instead of dropping it. Nothing is removed from disk
+     */
+    public void setBackgrounded(boolean backgrounded) {
+        synchronized (this) {
+            mBackgrounded = backgrounded;
+        }
+        updateMemCacheBudget();
+    }
+
+    private void updateMemCacheBudget() {
+        if (mMemoryCache == null) return;
+
+        final int percent;
+        synchronized (this) {
+            final int budget = mBackgrounded
+                    ? Math.min(mTrimPercent, mCacheParams.backgroundMemCachePercent) : mTrimPercent;
+            if (budget == mMemCacheBudgetPercent) return;
+            mMemCacheBudgetPercent = budget;
+            percent = budget;
+        }
+
+        Log.i(TAG, "memory cache budget " + percent + "%");
+        mMemoryCache.resize(mCacheParams.memCacheSize * percent / 100);
+    }
+
+    /**
+     * Removes one url from the memory and disk cache. Includes disk access
+     * @return true if it was cached on disk
+     */
+    public boolean invalidate(String data) {
+        mIndex.remove(data);
+        mMetadataIndex.remove(data);
+
+        if (mMemoryCache != null) {
+            mMemoryCache.remove(data);
+        }
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                try {
+                    mDiskLruCache.remove(getPartialKey(data));
+                    return mDiskLruCache.remove(hashKeyforDisk(data));
+                } catch (IOException e) {
+                    Log.e(TAG, "invalidate - " + e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every indexed url starting with prefix. Includes disk access
+     * @return the number of entries removed from disk
+     */
+    public int invalidatePrefix(String prefix) {
+        return invalidateAll(mIndex.urlsWithPrefix(prefix));
+    }
+
+    /**
+     * Removes every url that was added with the tag. Includes disk access
+     * @return the number of entries removed from disk
+     */
+    public int invalidateTag(String tag) {
+        return invalidateAll(mIndex.urlsWithTag(tag));
+    }
+
+    /**
+     * Removes every entry older than maxAgeMillis, including disk entries written before
+     * the index existed. Includes disk access
+     * @return the number of entries removed from disk
+     */
+    public int invalidateOlderThan(long maxAgeMillis) {
+        final long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int removed = invalidateAll(mIndex.urlsAddedBefore(cutoff));
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                try {
+                    removed += mDiskLruCache.removeOlderThan(cutoff);
+                } catch (IOException e) {
+                    Log.e(TAG, "invalidateOlderThan - " + e);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private int invalidateAll(List<String> urls) {
+        int removed = 0;
+        for (String url : urls) {
+            if (invalidate(url)) {
+                removed++;
+            }
+        }
+        Log.i(TAG, "invalidated " + removed + " of " + urls.size() + " entries");
+        return removed;
+    }
+
     /**
      * Get from memory cache
      */
@@ -217,13 +620,25 @@ public class ImageCache  {
         byte[] result = null;
         if (mMemoryCache != null) {
             result = mMemoryCache.get(data);
+            mMetrics.counter(ImageMetrics.MEMORY_ENCODED
+                    + (result != null ? ImageMetrics.HIT : ImageMetrics.MISS)).increment();
         }
 
         return result;
     }
 
     /**
-     * Get from diskCache
+     * Returns the metadata of a url that was recently cached or read from disk, without any
+     * disk access. Lets a caller pick the decode size, or size the view, before the image
+     * itself is read
+     * @return the metadata, or null if it is not in memory
+     */
+    public ImageMetadata getMetadata(String data) {
+        return mMetadataIndex.get(data);
+    }
+
+    /**
+     * Get from diskCache. Also loads the entry's metadata for getMetadata()
      */
     public byte[] getByteFromDiskCache(String data) {
         final String key = hashKeyforDisk(data);
@@ -246,6 +661,11 @@ public class ImageCache  {
             try {
                 final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
                 if (snapshot != null) {
+                    final ImageMetadata metadata = readMetadata(snapshot);
+                    if (metadata != null) {
+                        mMetadataIndex.put(data, metadata);
+                    }
+
                     inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
 
                     /**
@@ -314,20 +734,41 @@ public class ImageCache  {
 
                 } catch (IOException e) {}
             }
+
+            if (result != null) {
+                mMetrics.counter(ImageMetrics.DISK_ENCODED + ImageMetrics.HIT).increment();
+                mMetrics.counter(ImageMetrics.DISK_ENCODED + ImageMetrics.BYTES_READ).add(result.length);
+            } else {
+                mMetrics.counter(ImageMetrics.DISK_ENCODED + ImageMetrics.MISS).increment();
+            }
         }
         return result;
     }
 
+    /**
+     * Returns the metadata stored with a disk entry, or null if it cannot be read or the entry
+     * was stored without any
+     */
+    private static ImageMetadata readMetadata(DiskLruCache.Snapshot snapshot) {
+        final InputStream in = snapshot.getInputStream(DISK_METADATA_INDEX);
+        try {
+            return ImageMetadata.readFrom(in);
+        } catch (IOException e) {
+            Log.i(TAG, "readMetadata - " + e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {}
+        }
+    }
+
     /**
      * Check how much usable space is available at a given path
      */
     public static long getUsableSpace(File path) {
-        if (BackgroundUtils.hasGingerbread()) {
-            return path.getUsableSpace();
-        }
-        //StatFs can retrieve overall info about the space on a filesystem
-        final StatFs stats = new StatFs(path.getPath());
-        return (long) stats.getBlockSize() * (long) stats.getAvailableBlocks();
+        //File.getUsableSpace() is there from Gingerbread, below the minSdkVersion
+        return path.getUsableSpace();
     }
 
     /**
@@ -382,6 +823,7 @@ public class ImageCache  {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public MemoryCache.Policy memCachePolicy = DEFAULT_MEM_CACHE_POLICY;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public Bitmap.CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -389,11 +831,19 @@ public class ImageCache  {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public int backgroundMemCachePercent = DEFAULT_BACKGROUND_MEM_CACHE_PERCENT;
 
         public ImageCacheParams(Context context, String diskCacheDirectoryName) {
             diskCacheDir = getDiskCacheDir(context, diskCacheDirectoryName);
         }
 
+        /**
+         * Keeps the disk cache in diskCacheDir as given
+         */
+        public ImageCacheParams(File diskCacheDir) {
+            this.diskCacheDir = diskCacheDir;
+        }
+
         /**
          * Change the default memcache size (optional)
          * @param percent
@@ -443,31 +893,10 @@ public class ImageCache  {
 
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable for using as a
-     * disk filename.
+     * disk filename, see CacheKey.getDiskName()
      */
     public static String hashKeyforDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDisgest = MessageDigest.getInstance("MD5");
-            mDisgest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDisgest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        return CacheKey.of(key).getDiskName();
     }
 
     /**
@@ -480,6 +909,8 @@ public class ImageCache  {
             mMemoryCache.evictAll();
             Log.i(TAG, "Memory cache cleared");
         }
+        mIndex.clear();
+        mMetadataIndex.evictAll();
 
         synchronized (mDiskCacheLock) {
             mDiskCacheStarting = true;
@@ -505,6 +936,7 @@ public class ImageCache  {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
+                    mIndex.save(new File(mCacheParams.diskCacheDir, INDEX_FILE_NAME));
                     Log.i(TAG, "Disk cache flushed");
                 } catch (IOException e) {
                     Log.e(TAG, "flush disk cache e -" + e);
@@ -522,6 +954,7 @@ public class ImageCache  {
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
+                        mIndex.save(new File(mCacheParams.diskCacheDir, INDEX_FILE_NAME));
                         mDiskLruCache.close();
                         mDiskLruCache = null;
                         Log.i(TAG, "Disk cache closed");
@@ -533,4 +966,30 @@ public class ImageCache  {
         }
     }
 
+    /**
+     * Reports the size of the memory or the disk cache to ImageMetrics. ImageMetrics lives as
+     * long as the process, so it only holds the cache weakly and reports 0 once it is gone
+     */
+    private static class SizeGauge implements ImageMetrics.Gauge {
+        private final WeakReference<ImageCache> mCache;
+        private final boolean mDisk;
+
+        SizeGauge(ImageCache cache, boolean disk) {
+            mCache = new WeakReference<ImageCache>(cache);
+            mDisk = disk;
+        }
+
+        @Override
+        public long getValue() {
+            final ImageCache cache = mCache.get();
+            if (cache == null) return 0;
+
+            if (mDisk) {
+                final DiskLruCache diskLruCache = cache.mDiskLruCache;
+                return diskLruCache != null && !diskLruCache.isClosed() ? diskLruCache.size() : 0;
+            }
+            final MemoryCache<String, byte[]> memoryCache = cache.mMemoryCache;
+            return memoryCache != null ? memoryCache.size() * 1024L : 0;
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package BackgroundThreads;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The first bytes of an image whose download was cut off, with what is needed to ask for the
+ * rest: the validator to send as If-Range and the full length of the body.
+ */
+public final class PartialDownload {
+    //Total length of a body sent without a Content-Length, the Content-Range of the rest has it
+    public static final int UNKNOWN_LENGTH = -1;
+
+    private static final int VERSION = 1;
+
+    private final byte[] mBytes;
+    private final String mValidator;
+    private final int mTotalLength;
+
+    /**
+     * @param bytes The first bytes of the body, all of them
+     * @param validator A strong ETag or the Last-Modified date, as the server sent it
+     * @param totalLength Length of the whole body, or UNKNOWN_LENGTH
+     */
+    public PartialDownload(byte[] bytes, String validator, int totalLength) {
+        mBytes = bytes;
+        mValidator = validator;
+        mTotalLength = totalLength;
+    }
+
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public int getLength() {
+        return mBytes.length;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public int getTotalLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * Writes the validator and total length, the bytes are stored on their own
+     */
+    public void writeHeaderTo(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(VERSION);
+        data.writeUTF(mValidator);
+        data.writeInt(mTotalLength);
+        data.flush();
+    }
+
+    /**
+     * Reads a header written by writeHeaderTo() and pairs it with the stored bytes
+     * @return the partial download, or null if the header is of an unknown version or does
+     *         not fit the bytes
+     */
+    public static PartialDownload readFrom(InputStream in, byte[] bytes) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.read() != VERSION) return null;
+
+        final String validator = data.readUTF();
+        final int totalLength = data.readInt();
+        if (bytes.length == 0) return null;
+        if (totalLength != UNKNOWN_LENGTH && bytes.length >= totalLength) return null;
+        return new PartialDownload(bytes, validator, totalLength);
+    }
+}
@@ -2,7 +2,14 @@ package BackgroundThreads;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-
+import android.graphics.Point;
+import android.util.Log;
+
+import ImageLoaderPackage.BackgroundUtils;
+import ImageLoaderPackage.BitmapPool;
+import ImageLoaderPackage.DecodeBudget;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.ImageMetrics;
 import ImageLoaderPackage.ImageResizer;
 
 /**
@@ -10,8 +17,9 @@ import ImageLoaderPackage.ImageResizer;
  */
 public class PhotoDecodeRunnable implements Runnable {
     private static final String TAG = "PhotoDecodeRunnable";
-    private static final long SLEEP_TIME_MILLISECONDS = 250;
-    private static final int NUMBER_OF_DECODE_TRIES = 2;
+
+    //How many times a decode short of time may halve its size
+    private static final int MAX_DEADLINE_DOWNSAMPLES = 2;
 
     public static final int DECODE_STATE_FAILED = -1;
     public static final int DECODE_STATE_STARTED = 0;
@@ -25,6 +33,8 @@ public class PhotoDecodeRunnable implements Runnable {
 
         byte[] getByteBuffer();
 
+        ImageMetadata getImageMetadata();
+
         void handleDecodeState(int state);
 
         int getTargetWidth();
@@ -32,6 +42,10 @@ public class PhotoDecodeRunnable implements Runnable {
         int getTargetHeight();
 
         void setImage(Bitmap image);
+
+        RequestTrace getRequestTrace();
+
+        long getDeadlineNanos();
     }
 
     PhotoDecodeRunnable(TaskRunnableDecodeMethods downloadTask) {
@@ -41,16 +55,32 @@ public class PhotoDecodeRunnable implements Runnable {
     @Override
     public void run() {
         mPhotoTask.setImageDecodeThread(Thread.currentThread());
+        final RequestTrace trace = mPhotoTask.getRequestTrace();
+        trace.mark(RequestTrace.EVENT_DECODE_START);
+
+        final ImageMetrics metrics = ImageMetrics.getInstance();
+        metrics.histogram(ImageMetrics.DECODE_QUEUE_WAIT_US)
+                .record(trace.getStageDuration(RequestTrace.STAGE_DECODE_QUEUE_WAIT) / 1000);
 
         byte[] imageBuffer = mPhotoTask.getByteBuffer();
 
         Bitmap returnBitmap = null;
+        long sourcePixels = 0;
+        long decodeNanos = 0;
+        BitmapFactory.Options bitmapOptions = null;
 
         try {
 
             mPhotoTask.handleDecodeState(DECODE_STATE_STARTED);
 
-            BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+            //Nobody is waiting for it anymore
+            if (System.nanoTime() >= mPhotoTask.getDeadlineNanos()) {
+                Log.i(TAG, "Deadline passed in the queue");
+                metrics.counter(ImageMetrics.DECODE_QUEUE_EXPIRED).increment();
+                return;
+            }
+
+            bitmapOptions = new BitmapFactory.Options();
 
             int targetWidth = mPhotoTask.getTargetWidth();
             int targetHeight = mPhotoTask.getTargetHeight();
@@ -59,10 +89,35 @@ public class PhotoDecodeRunnable implements Runnable {
                 return;
             }
 
-            bitmapOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(imageBuffer, 0, imageBuffer.length, bitmapOptions);
+            //The cache stores what the bounds pass would find, only a miss there needs it
+            final ImageMetadata metadata = mPhotoTask.getImageMetadata();
+            if (metadata != null) {
+                ImageResizer.applyMetadata(metadata, bitmapOptions);
+            } else {
+                bitmapOptions.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(imageBuffer, 0, imageBuffer.length, bitmapOptions);
+            }
+            sourcePixels = (long) bitmapOptions.outWidth * bitmapOptions.outHeight;
+
+            Point target = ImageResizer.prepareDecode(bitmapOptions, targetWidth, targetHeight,
+                    ImageResizer.DEFAULT_DECODE_QUALITY);
+
+            //A decode that usually takes longer than the time left samples down instead,
+            //each halving taking about a quarter of the time
+            final long remainingUs = (mPhotoTask.getDeadlineNanos() - System.nanoTime()) / 1000;
+            long estimateUs = metrics.estimateDecodeUs(sourcePixels);
+            if (estimateUs > remainingUs) {
+                for (int i = 0; i < MAX_DEADLINE_DOWNSAMPLES && estimateUs > remainingUs; i++) {
+                    bitmapOptions.inSampleSize *= 2;
+                    estimateUs /= 4;
+                }
+                bitmapOptions.inDensity = 0;
+                bitmapOptions.inTargetDensity = 0;
+                target = null;
 
-            bitmapOptions.inSampleSize = ImageResizer.calculateInSampleSize(bitmapOptions, targetWidth, targetHeight);
+                Log.i(TAG, "Short of time, decoding at inSampleSize " + bitmapOptions.inSampleSize);
+                metrics.counter(ImageMetrics.DECODE_DEADLINE_DOWNSAMPLED).increment();
+            }
 
             if (Thread.interrupted()) {
                 return;
@@ -70,35 +125,66 @@ public class PhotoDecodeRunnable implements Runnable {
 
             bitmapOptions.inJustDecodeBounds = false;
 
-            for (int i = 0; i < NUMBER_OF_DECODE_TRIES; ++i) {
+            //Decode into a bitmap nobody displays anymore when the pool has a fitting one
+            if (BackgroundUtils.hasHoneycomb()) {
+                bitmapOptions.inMutable = true;
+                bitmapOptions.inBitmap = BitmapPool.getInstance().get(bitmapOptions);
+            }
 
-                try {
+            //Wait for room in the decode budget, which may sample the decode down further
+            final long reserved;
+            try {
+                reserved = DecodeBudget.getInstance().admit(bitmapOptions);
+            } catch (InterruptedException e) {
+                return;
+            }
 
+            try {
+                //Only the decode itself is timed, the estimates it feeds must not grow while
+                //decodes wait for the budget
+                long decodeStart = System.nanoTime();
+                try {
                     returnBitmap = BitmapFactory.decodeByteArray(imageBuffer,
                             0, imageBuffer.length, bitmapOptions);
+                } catch (IllegalArgumentException e) {
+                    if (bitmapOptions.inBitmap == null) throw e;
 
-                } catch (Throwable e) {
-                    e.printStackTrace();
-
-                    java.lang.System.gc();
-
-                    if (Thread.interrupted()) return;
-
-                    try {
-                      Thread.sleep(SLEEP_TIME_MILLISECONDS);
-                    }  catch (InterruptedException interruptedException) {
-                        return;
-                    }
+                    //The pooled bitmap did not fit after all, retry with a fresh allocation
+                    BitmapPool.getInstance().put(bitmapOptions.inBitmap);
+                    bitmapOptions.inBitmap = null;
+                    decodeStart = System.nanoTime();
+                    returnBitmap = BitmapFactory.decodeByteArray(imageBuffer,
+                            0, imageBuffer.length, bitmapOptions);
                 }
+                decodeNanos = System.nanoTime() - decodeStart;
+            } catch (OutOfMemoryError e) {
+                //The budget keeps decodes from piling up, so this one is failed, not retried
+                Log.i(TAG, "Out of memory decoding " + bitmapOptions.outWidth + "x"
+                        + bitmapOptions.outHeight + " at inSampleSize " + bitmapOptions.inSampleSize);
+                return;
+            } finally {
+                DecodeBudget.getInstance().release(reserved);
             }
+
+            returnBitmap = ImageResizer.finishDecode(returnBitmap, bitmapOptions, target,
+                    ImageResizer.DEFAULT_DECODE_QUALITY);
         } finally {
 
+            trace.mark(RequestTrace.EVENT_DECODE_END);
+
             if (returnBitmap == null) {
 
+                //Interrupted, out of memory or undecodable: the pooled bitmap was not used
+                if (bitmapOptions != null && bitmapOptions.inBitmap != null) {
+                    BitmapPool.getInstance().put(bitmapOptions.inBitmap);
+                }
+
                 mPhotoTask.handleDecodeState(DECODE_STATE_FAILED);
 
             } else {
 
+                metrics.recordDecode(sourcePixels, decodeNanos);
+
                 mPhotoTask.setImage(returnBitmap);
 
                 mPhotoTask.handleDecodeState(DECODE_STATE_COMPLETED);
@@ -7,9 +7,13 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
+import ImageLoaderPackage.CachePolicy;
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.ImageHeaderParser;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.ImageMetrics;
+import ImageLoaderPackage.ImageResizer;
 
 /**
  * Created by desmond on 15/6/14.
@@ -32,11 +36,23 @@ public class PhotoDownloadRunnable implements Runnable {
 
         void setByteBuffer(byte[] buffer);
 
+        ImageMetadata getImageMetadata();
+
+        void setImageMetadata(ImageMetadata metadata);
+
         void handleDownloadState(int state);
 
         ImageCache getImageCache();
 
         String getImageURL();
+
+        RequestTrace getRequestTrace();
+
+        CachePolicy getCachePolicy();
+
+        long getDeadlineNanos();
+
+        void awaitPreload() throws InterruptedException;
     }
 
     PhotoDownloadRunnable(TaskRunnableDownloadMethods photoTask) {
@@ -48,6 +64,13 @@ public class PhotoDownloadRunnable implements Runnable {
 
         mPhotoTask.setDownloadThread(Thread.currentThread());
 
+        final RequestTrace trace = mPhotoTask.getRequestTrace();
+        trace.mark(RequestTrace.EVENT_DOWNLOAD_DEQUEUED);
+
+        final ImageMetrics metrics = ImageMetrics.getInstance();
+        metrics.histogram(ImageMetrics.DOWNLOAD_QUEUE_WAIT_US)
+                .record(trace.getStageDuration(RequestTrace.STAGE_DOWNLOAD_QUEUE_WAIT) / 1000);
+
         android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         byte[] byteBuffer = mPhotoTask.getByteBuffer();
@@ -57,19 +80,46 @@ public class PhotoDownloadRunnable implements Runnable {
                 throw new InterruptedException();
             }
 
-            ImageCache imageCache = null;
+            //Nobody is waiting for it anymore
+            if (System.nanoTime() >= mPhotoTask.getDeadlineNanos()) {
+                Log.i(TAG, "Deadline passed in the queue - " + mPhotoTask.getImageURL());
+                metrics.counter(ImageMetrics.DOWNLOAD_QUEUE_EXPIRED).increment();
+                byteBuffer = null;
+                return;
+            }
+
+            final ImageCache imageCache = mPhotoTask.getImageCache();
+            final CachePolicy cachePolicy = mPhotoTask.getCachePolicy();
 
             //Search from Disk cache
-            if (byteBuffer == null) {
-                imageCache = mPhotoTask.getImageCache();
+            if (byteBuffer == null && cachePolicy.readsCache()) {
 
                 if (imageCache != null) {
+                    mPhotoTask.awaitPreload();
+
+                    trace.mark(RequestTrace.EVENT_DISK_READ_START);
                     byteBuffer = imageCache.getByteFromDiskCache(mPhotoTask.getImageURL());
+                    trace.mark(RequestTrace.EVENT_DISK_READ_END);
+
+                    if (byteBuffer != null) {
+                        mPhotoTask.setImageMetadata(imageCache.getMetadata(mPhotoTask.getImageURL()));
+                    }
+
+                    metrics.histogram(ImageMetrics.DISK_ENCODED + ImageMetrics.LOAD_TIME_US)
+                            .record(trace.getStageDuration(RequestTrace.STAGE_DISK_READ) / 1000);
                 }
             }
 
             if (byteBuffer != null) {
                 Log.i(TAG, "Found in Disk Cache");
+                trace.setSource(RequestTrace.SOURCE_DISK);
+            }
+
+            //Not cached and not allowed to go to the network, fails without a connection attempt
+            if (byteBuffer == null && !cachePolicy.usesNetwork()) {
+                Log.i(TAG, "Not cached, loading " + cachePolicy);
+                metrics.counter(ImageMetrics.NETWORK + ImageMetrics.OFFLINE).increment();
+                return;
             }
 
             //Download
@@ -77,33 +127,58 @@ public class PhotoDownloadRunnable implements Runnable {
 
                 mPhotoTask.handleDownloadState(HTTP_STATE_STARTED);
 
-                InputStream bytesStream = null;
+                final String url = mPhotoTask.getImageURL();
+                final HttpTransport transport = HttpTransport.getInstance();
+                HttpTransport.Response response = null;
+
+                //Picks up where an earlier download of the url was cut off
+                final ResumableDownload download = new ResumableDownload(imageCache, url);
+
+                //The body as it arrives, kept for a later resume if it is cut off. body has
+                //the known length, tempBuffer grows for a body of unknown length
+                byte[] body = null;
+                int bodyOffset = 0;
+                int storedLength = 0;
+                byte[] tempBuffer = null;
+                int bufferOffset = 0;
 
                 try {
-                    URL url = new URL(mPhotoTask.getImageURL());
-                    HttpsURLConnection httpConn =
-                            (HttpsURLConnection) url.openConnection();
+                    trace.mark(RequestTrace.EVENT_NETWORK_START);
+                    trace.setSource(RequestTrace.SOURCE_NETWORK);
+
+                    response = download.open(transport, mPhotoTask.getDeadlineNanos());
 
                     if (Thread.interrupted()) {
                         throw new InterruptedException();
                     }
 
+                    final boolean resumed = download.isResumed();
+                    if (!response.isSuccessful() && !resumed) {
+                        throw new IOException("HTTP " + response.getCode());
+                    }
+
                     //Gets the input stream containing the image
-                    bytesStream = httpConn.getInputStream();
+                    final InputStream bytesStream = response.getBody();
+                    trace.mark(RequestTrace.EVENT_NETWORK_FIRST_BYTE);
 
                     if (Thread.interrupted()) {
                         throw new InterruptedException();
                     }
 
-                    int contentSize = httpConn.getContentLength();
+                    int contentSize = download.getTotalLength(response.getContentLength());
+
+                    //The header is sniffed as the bytes arrive, so the size is known to the
+                    //task long before the download completes
+                    final String eTag = response.getHeaderField("ETag");
+                    final ImageHeaderParser headerParser = ImageHeaderParser.get();
+                    int headerResult = ImageHeaderParser.NEED_MORE_DATA;
 
                     //Size isn't available
                     if (contentSize == -1) {
 
-                        byte[] tempBuffer = new byte[READ_SIZE];
+                        tempBuffer = new byte[READ_SIZE];
 
                         int bufferLeft = tempBuffer.length;
-                        int bufferOffset = 0;
                         int readResult = 0;
 
                         //The outer loop will continue until all the bytes are downloaded
@@ -120,6 +195,10 @@ public class PhotoDownloadRunnable implements Runnable {
                                 bufferOffset += readResult;
                                 bufferLeft -= readResult;
 
+                                if (headerResult == ImageHeaderParser.NEED_MORE_DATA) {
+                                    headerResult = sniffHeader(headerParser, tempBuffer, bufferOffset, eTag);
+                                }
+
                                 if (Thread.interrupted()) {
                                     throw new InterruptedException();
                                 }
@@ -142,52 +221,93 @@ public class PhotoDownloadRunnable implements Runnable {
                         //Download size is available
                     } else {
 
-                        byteBuffer = new byte[contentSize];
-                        int remainingLength = contentSize;
-                        int bufferOffset = 0;
+                        body = new byte[contentSize];
+
+                        if (resumed) {
+                            bodyOffset = download.copyStoredBytes(body);
+                            storedLength = bodyOffset;
+                            headerResult = sniffHeader(headerParser, body, bodyOffset, eTag);
+                        }
+
+                        int remainingLength = contentSize - bodyOffset;
                         int readResult = 0;
                         while (remainingLength > 0) {
 
-                            readResult = bytesStream.read(byteBuffer, bufferOffset, remainingLength);
+                            readResult = bytesStream.read(body, bodyOffset, remainingLength);
 
                             //EOF should occur because the loop should read the exact # of bytes
                             if (readResult < 0) {
                                 throw new EOFException();
                             }
 
-                            bufferOffset += readResult;
+                            bodyOffset += readResult;
                             remainingLength -= readResult;
 
+                            if (headerResult == ImageHeaderParser.NEED_MORE_DATA) {
+                                headerResult = sniffHeader(headerParser, body, bodyOffset, eTag);
+                            }
+
                             if (Thread.interrupted()) {
                                 throw new InterruptedException();
                             }
 
                         }
 
+                        byteBuffer = body;
                     }
 
+                    trace.mark(RequestTrace.EVENT_NETWORK_COMPLETE);
+
+                    metrics.counter(ImageMetrics.NETWORK + ImageMetrics.BYTES_READ)
+                            .add(byteBuffer.length - storedLength);
+                    metrics.histogram(ImageMetrics.NETWORK + ImageMetrics.LOAD_TIME_US).record(
+                            (trace.getTimestamp(RequestTrace.EVENT_NETWORK_COMPLETE)
+                                    - trace.getTimestamp(RequestTrace.EVENT_NETWORK_START)) / 1000);
+
                     if (Thread.interrupted()) {
                         throw new InterruptedException();
                     }
 
+                    //Stored so disk hits skip the bounds pass. Only an image whose header could
+                    //not be sniffed still needs one here
+                    ImageMetadata metadata = mPhotoTask.getImageMetadata();
+                    if (metadata == null) {
+                        metadata = ImageResizer.decodeMetadata(byteBuffer, eTag);
+                    }
+                    if (metadata != null) {
+                        metadata = CacheFreshness.update(metadata, response, System.currentTimeMillis());
+                    }
+                    mPhotoTask.setImageMetadata(metadata);
+
                     //Save to cache
                     if (imageCache != null) {
                         Log.i(TAG, "Download completed and saving to cache");
-                        imageCache.addByteToCache(mPhotoTask.getImageURL(), byteBuffer);
+                        imageCache.addByteToCache(url, byteBuffer, metadata);
+                        download.complete();
                     }
 
                 } catch (MalformedURLException e) {
 
                 } catch (IOException ioException) {
-                    ioException.printStackTrace();
+                    //Transient errors were already retried by the transport
+                    Log.i(TAG, "Download failed - " + ioException);
+                    metrics.counter(ImageMetrics.NETWORK + ImageMetrics.FAILED).increment();
                     return;
 
                 } finally {
-                    if (bytesStream != null) {
-                        try {
-                            bytesStream.close();
-                        } catch (Exception e) {
+                    //Gives the connection back to the pool for the next download
+                    if (response != null) {
+                        response.close();
+                    }
 
+                    //Cut off by a failure, a cancel or the deadline. What arrived of a large
+                    //image is kept so the next request for it only downloads the rest
+                    if (byteBuffer == null) {
+                        if (body != null) {
+                            download.keepPartial(body, bodyOffset, body.length);
+                        } else {
+                            download.keepPartial(tempBuffer, bufferOffset,
+                                    PartialDownload.UNKNOWN_LENGTH);
                         }
                     }
                 }
@@ -209,4 +329,16 @@ public class PhotoDownloadRunnable implements Runnable {
             Thread.interrupted();
         }
     }
+
+    /**
+     * Parses the image header from the first length bytes and hands the metadata to the task
+     * as soon as it is known
+     */
+    private int sniffHeader(ImageHeaderParser parser, byte[] buffer, int length, String eTag) {
+        final int result = parser.parse(buffer, 0, length);
+        if (result == ImageHeaderParser.PARSED) {
+            mPhotoTask.setImageMetadata(parser.toMetadata(eTag));
+        }
+        return result;
+    }
 }
@@ -2,7 +2,6 @@ package BackgroundThreads;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
@@ -12,14 +11,31 @@ import android.os.Looper;
 import android.os.Message;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import ImageLoaderPackage.CachePolicy;
+import ImageLoaderPackage.ConnectivityMonitor;
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.ImageMetrics;
+import ImageLoaderPackage.ImageWorker;
+import ImageLoaderPackage.MemoryCache;
+import ImageLoaderPackage.MemoryTrimmer;
+import ImageLoaderPackage.RecyclingBitmapDrawable;
+import ImageLoaderPackage.ViewSizeResolver;
+
 /**
  * Created by desmond on 20/6/14.
  */
@@ -38,6 +54,10 @@ public class PhotoManager {
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
     private static final int MESSAGE_CLOSE = 3;
+    private static final int MESSAGE_INVALIDATE = 4;
+    private static final int MESSAGE_INVALIDATE_PREFIX = 5;
+    private static final int MESSAGE_INVALIDATE_TAG = 6;
+    private static final int MESSAGE_INVALIDATE_OLDER_THAN = 7;
 
     //Sets the amount of time an idle thread will wait for a task before terminating
     private static final int KEEP_ALIVE_TIME = 1;
@@ -53,6 +73,12 @@ public class PhotoManager {
 
     private static final int FADE_IN_TIME = 400;
 
+    //Policy of requests that do not give one
+    public static final CachePolicy DEFAULT_CACHE_POLICY = CachePolicy.STALE_WHILE_REVALIDATE;
+
+    //How long a request may take from startDownload() to its decoded bitmap
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 30 * 1000;
+
     /**
      * NOTE: This is the number of total available cores. On current versions of
      * Android, with devices that use plug-and-play cores, this will return less
@@ -76,6 +102,20 @@ public class PhotoManager {
     //A managed pool of background decoder threads
     private final ThreadPoolExecutor mDecodeThreadPool;
 
+    //A single thread that revalidates stale cached images and prefetches, behind the downloads
+    private final ThreadPoolExecutor mCacheFillThreadPool;
+
+    private volatile long mRequestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+
+    //Urls with a revalidation or prefetch queued or running, so each is only fetched once
+    private final Set<String> mCacheFilling = Collections.synchronizedSet(new HashSet<String>());
+
+    //Preloads the first screen of a feed in parallel, next to the downloads
+    private final ThreadPoolExecutor mPreloadThreadPool;
+
+    //Urls with a preload queued or running. A download of one waits for it instead
+    private final Set<String> mPreloading = Collections.synchronizedSet(new HashSet<String>());
+
     //An object that manages Messages in a Thread
     private Handler mHandler;
 
@@ -94,6 +134,13 @@ public class PhotoManager {
     private ImageCache mImageCache;
     private ImageCache.ImageCacheParams mImageCacheParams;
 
+    //Requests that take their size from a view which has not been laid out yet
+    private final ViewSizeResolver mSizeResolver = new ViewSizeResolver();
+
+    //Listeners that receive the timing trace of every request
+    private final List<RequestListener> mRequestListeners =
+            new CopyOnWriteArrayList<RequestListener>();
+
     /**
      * Returns the PhotoManager object
      */
@@ -130,9 +177,46 @@ public class PhotoManager {
                 mDecodeWorkQueue
         );
 
+        mCacheFillThreadPool = new ThreadPoolExecutor(
+                1,
+                1,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>()
+        );
+
+        //Its own pool, so a download waiting for a preload never holds the thread it needs
+        mPreloadThreadPool = new ThreadPoolExecutor(
+                HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>()
+        );
+        mPreloadThreadPool.allowCoreThreadTimeOut(true);
+
+        ImageMetrics metrics = ImageMetrics.getInstance();
+        metrics.gauge(ImageMetrics.DOWNLOAD_QUEUE_PENDING, new ImageMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDownloadWorkQueue.size();
+            }
+        });
+        metrics.gauge(ImageMetrics.DECODE_QUEUE_PENDING, new ImageMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDecodeWorkQueue.size();
+            }
+        });
+
         //Initialize Cache
         mImageCacheParams = new ImageCache.ImageCacheParams(activity, "cache");
+        //Looked up on the UI thread by every startDownload() while the download and decode
+        //threads fill it, so reads must not wait on their puts
+        mImageCacheParams.memCachePolicy = MemoryCache.Policy.CONCURRENT;
         mImageCache = ImageCache.getInstance(activity.getSupportFragmentManager(), mImageCacheParams);
+        MemoryTrimmer.getInstance().register(activity);
+        ConnectivityMonitor.getInstance().register(activity);
         new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
 
         mHandler = new Handler(Looper.getMainLooper()) {
@@ -169,9 +253,13 @@ public class PhotoManager {
                          * to the bitmap in the incoming message
                          */
                         case TASK_COMPLETE:
+                            final RequestTrace trace = photoTask.getRequestTrace();
+                            trace.mark(RequestTrace.EVENT_BIND_START);
 
-                            imageView.setImageBitmap(photoTask.getImage());
                             setImageDrawable(imageView, photoTask.getImage());
+
+                            trace.mark(RequestTrace.EVENT_BIND_END);
+                            notifyRequestComplete(trace);
                             recycleTask(photoTask);
                             break;
 
@@ -179,6 +267,8 @@ public class PhotoManager {
                         case DOWNLOAD_FAILED:
 //                            localView.setStatusResource(R.drawable.imagedownloadfailed);
 
+                            notifyRequestFailed(photoTask.getRequestTrace());
+
                             //Attempts to re-use the Task object
                             recycleTask(photoTask);
                             break;
@@ -203,6 +293,7 @@ public class PhotoManager {
 
                 //Gets a Message object, stores the state in it, and sends it to the Handler
                 //Handler.obtainMessage() will set the message to be sent to this Handler
+                photoTask.getRequestTrace().mark(RequestTrace.EVENT_UI_POSTED);
 
                 Message completeMessage = mHandler.obtainMessage(state, photoTask);
                 completeMessage.sendToTarget();
@@ -210,10 +301,17 @@ public class PhotoManager {
 
             //The task finished downloading the image
             case DOWNLOAD_COMPLETE:
+                //Before the decode is queued, once it is done the task may be recycled and
+                //reused for another url
+                revalidateIfStale(photoTask);
+
                 /**
                  * Decodes the image, by queuing the decoder object to run in the decoder
                  * thread pool
                  */
+                photoTask.getRequestTrace().mark(RequestTrace.EVENT_DECODE_QUEUED);
+                ImageMetrics.getInstance().histogram(ImageMetrics.DECODE_QUEUE_DEPTH)
+                        .record(mDecodeWorkQueue.size());
                 mDecodeThreadPool.execute(photoTask.getPhotoDecodeRunnable());
 
                 //In all other cases, pass along the message without any other action
@@ -223,8 +321,109 @@ public class PhotoManager {
         }
     }
 
+    /**
+     * Queues a revalidation of an image that was served from the memory or disk cache after
+     * it stopped being fresh. The stale image is shown meanwhile
+     */
+    private void revalidateIfStale(PhotoTask photoTask) {
+        final ImageMetadata metadata = photoTask.getImageMetadata();
+        if (mImageCache == null || metadata == null || !photoTask.getCachePolicy().revalidatesStale()
+                || photoTask.getRequestTrace().getSource() == RequestTrace.SOURCE_NETWORK
+                || !metadata.isStale(System.currentTimeMillis()) || !metadata.hasValidators()) {
+            return;
+        }
+
+        final String url = photoTask.getImageURL();
+        if (mCacheFilling.add(url)) {
+            ImageMetrics.getInstance().counter(ImageMetrics.NETWORK + ImageMetrics.REVALIDATE)
+                    .increment();
+            mCacheFillThreadPool.execute(
+                    new CacheFillRunnable(mImageCache, url, metadata, mCacheFilling));
+        }
+    }
+
+    /**
+     * Sets the deadline of requests started from now on. Queued work past it is dropped, the
+     * connection timeouts are cut to it and a decode short of time samples down further
+     */
+    public void setRequestTimeout(long timeoutMs) {
+        mRequestTimeoutMs = timeoutMs;
+    }
+
+    long getRequestTimeoutMs() {
+        return mRequestTimeoutMs;
+    }
+
+    /**
+     * Downloads an image into the disk cache ahead of time, without decoding it or taking
+     * memory cache space. Nothing is fetched if it is cached already or there is no
+     * connectivity
+     */
+    public void prefetch(String url) {
+        if (mImageCache == null || !ConnectivityMonitor.getInstance().isOnline()) return;
+
+        if (mCacheFilling.add(url)) {
+            mCacheFillThreadPool.execute(new CacheFillRunnable(mImageCache, url, null, mCacheFilling));
+        }
+    }
+
+    /**
+     * Downloads an image into the disk cache right away, for images about to be shown such
+     * as the first screen of a feed that just arrived. A request for it made meanwhile waits
+     * for the preload and reads its result from disk instead of downloading it again
+     */
+    public void preload(String url) {
+        if (mImageCache == null || !ConnectivityMonitor.getInstance().isOnline()) return;
+
+        if (mPreloading.add(url)) {
+            mPreloadThreadPool.execute(new CacheFillRunnable(mImageCache, url, null, mPreloading));
+        }
+    }
+
+    /**
+     * Waits until no preload of url is queued or running, or until the deadline. A request
+     * that runs out of time goes on without the preload, like any other late request
+     */
+    void awaitPreload(String url, long deadlineNanos) throws InterruptedException {
+        synchronized (mPreloading) {
+            while (mPreloading.contains(url)) {
+                final long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+                if (remainingMs <= 0) {
+                    Log.i(TAG, "Deadline passed waiting for a preload - " + url);
+                    return;
+                }
+                mPreloading.wait(remainingMs);
+            }
+        }
+    }
+
+    /**
+     * @param cacherFlag false to skip the cache lookups, the image is still cached
+     */
     static public PhotoTask startDownload(ImageView imageView, String url,
                                           boolean cacherFlag) {
+        return startDownload(imageView, url, cacherFlag,
+                ImageWorker.SIZE_FROM_VIEW, ImageWorker.SIZE_FROM_VIEW);
+    }
+
+    static public PhotoTask startDownload(ImageView imageView, String url, boolean cacherFlag,
+                                          int targetWidth, int targetHeight) {
+        return startDownload(imageView, url,
+                cacherFlag ? DEFAULT_CACHE_POLICY : CachePolicy.NETWORK_ONLY,
+                targetWidth, targetHeight);
+    }
+
+    /**
+     * Starts a download decoding at targetWidth x targetHeight. ImageWorker.SIZE_FROM_VIEW
+     * takes the size from the imageView, the task is then only queued once the view has been
+     * laid out. Without connectivity the request is loaded with CachePolicy.OFFLINE. Must be
+     * called on the UI thread
+     */
+    static public PhotoTask startDownload(ImageView imageView, String url, CachePolicy cachePolicy,
+                                          final int targetWidth, final int targetHeight) {
+
+        //A request still waiting for this view to be laid out is superseded
+        sInstance.mSizeResolver.clear(imageView);
 
         PhotoTask downloadTask = sInstance.mPhotoTaskWorkQueue.poll();
 
@@ -232,23 +431,56 @@ public class PhotoManager {
             downloadTask = new PhotoTask();
         }
 
+        final CachePolicy policy = ConnectivityMonitor.getInstance().apply(cachePolicy);
         downloadTask.initializeDownloaderTask(PhotoManager.sInstance, imageView,
-                                                cacherFlag, url);
+                                                policy, url, targetWidth, targetHeight);
+
+        if (targetWidth != ImageWorker.SIZE_FROM_VIEW && targetHeight != ImageWorker.SIZE_FROM_VIEW) {
+            sInstance.queueDownload(downloadTask);
+            return downloadTask;
+        }
+
+        final PhotoTask pendingTask = downloadTask;
+        sInstance.mSizeResolver.getSize(imageView, new ViewSizeResolver.SizeReadyCallback() {
+            @Override
+            public void onSizeReady(View view, int viewWidth, int viewHeight) {
+                pendingTask.setTargetSize(
+                        targetWidth != ImageWorker.SIZE_FROM_VIEW ? targetWidth : viewWidth,
+                        targetHeight != ImageWorker.SIZE_FROM_VIEW ? targetHeight : viewHeight);
+                sInstance.queueDownload(pendingTask);
+            }
+        });
+
+        return downloadTask;
+    }
 
-        downloadTask.setByteBuffer(sInstance.mImageCache.getByteFromMemCache(url));
+    /**
+     * Looks downloadTask up in the memory cache and queues its download or its decode
+     */
+    private void queueDownload(PhotoTask downloadTask) {
+        final String url = downloadTask.getImageURL();
+        final RequestTrace trace = downloadTask.getRequestTrace();
+        trace.mark(RequestTrace.EVENT_ENQUEUED);
+        trace.mark(RequestTrace.EVENT_MEMORY_LOOKUP_START);
+        if (downloadTask.getCachePolicy().readsCache()) {
+            downloadTask.setByteBuffer(mImageCache.getByteFromMemCache(url));
+            downloadTask.setImageMetadata(mImageCache.getMetadata(url));
+        }
+        trace.mark(RequestTrace.EVENT_MEMORY_LOOKUP_END);
 
         //Not found in the memory cache
         if (downloadTask.getByteBuffer() == null) {
 
-            sInstance.mDownloadThreadPool.execute(downloadTask.getPhotoDownloadRunnable());
+            ImageMetrics.getInstance().histogram(ImageMetrics.DOWNLOAD_QUEUE_DEPTH)
+                    .record(mDownloadWorkQueue.size());
+            mDownloadThreadPool.execute(downloadTask.getPhotoDownloadRunnable());
 
         } else {
             Log.i(TAG, "found in memory cache");
-            sInstance.handleState(downloadTask, DOWNLOAD_COMPLETE);
+            trace.setSource(RequestTrace.SOURCE_MEMORY);
+            handleState(downloadTask, DOWNLOAD_COMPLETE);
 
         }
-
-        return downloadTask;
     }
 
     /**
@@ -258,6 +490,12 @@ public class PhotoManager {
         //If the Thread object still exists and the download matches the specified URL
         if (downloaderTask != null && downloaderTask.getImageURL().equals(pictureURL)) {
 
+            //The task may still be waiting for its view to be laid out
+            final ImageView imageView = downloaderTask.getPhotoView();
+            if (imageView != null) {
+                sInstance.mSizeResolver.clear(imageView);
+            }
+
             /**
              * Locks on this class to ensure that other processes aren't mutating Threads
              */
@@ -313,7 +551,9 @@ public class PhotoManager {
     }
 
     private void setImageDrawable(ImageView imageView, Bitmap decodeBitmap) {
-        BitmapDrawable drawable = new BitmapDrawable(mResources, decodeBitmap);
+        //The view's lease is the only one, so the bitmap goes back to the pool when it is
+        //replaced
+        RecyclingBitmapDrawable drawable = new RecyclingBitmapDrawable(mResources, decodeBitmap);
 
         final TransitionDrawable td =
                 new TransitionDrawable(new Drawable[] {
@@ -324,6 +564,29 @@ public class PhotoManager {
         td.startTransition(FADE_IN_TIME);
     }
 
+    /**
+     * Registers a listener that receives the timing trace of every completed or failed request
+     */
+    public void addRequestListener(RequestListener listener) {
+        mRequestListeners.add(listener);
+    }
+
+    public void removeRequestListener(RequestListener listener) {
+        mRequestListeners.remove(listener);
+    }
+
+    private void notifyRequestComplete(RequestTrace trace) {
+        for (RequestListener listener : mRequestListeners) {
+            listener.onRequestComplete(trace);
+        }
+    }
+
+    private void notifyRequestFailed(RequestTrace trace) {
+        for (RequestListener listener : mRequestListeners) {
+            listener.onRequestFailed(trace);
+        }
+    }
+
     /**
      * Recycles tasks by calling their internal recycle() method and then putting them back into
      * the task queue
@@ -358,6 +621,12 @@ public class PhotoManager {
                 case MESSAGE_CLOSE:
                     closeCacheInternal();
                     break;
+                case MESSAGE_INVALIDATE:
+                case MESSAGE_INVALIDATE_PREFIX:
+                case MESSAGE_INVALIDATE_TAG:
+                case MESSAGE_INVALIDATE_OLDER_THAN:
+                    invalidateInternal((Integer) params[0], params[1]);
+                    break;
             }
             return null;
         }
@@ -394,10 +663,68 @@ public class PhotoManager {
         }
     }
 
+    /**
+     * Remove the selected entries from both the disk and memory cache
+     */
+    protected void invalidateInternal(int message, Object arg) {
+        if (mImageCache == null) return;
+
+        switch (message) {
+            case MESSAGE_INVALIDATE:
+                mImageCache.invalidate((String) arg);
+                break;
+            case MESSAGE_INVALIDATE_PREFIX:
+                mImageCache.invalidatePrefix((String) arg);
+                break;
+            case MESSAGE_INVALIDATE_TAG:
+                mImageCache.invalidateTag((String) arg);
+                break;
+            case MESSAGE_INVALIDATE_OLDER_THAN:
+                mImageCache.invalidateOlderThan((Long) arg);
+                break;
+        }
+    }
+
     public void clearCache() {
         new CacheAsyncTask().execute(MESSAGE_CLEAR);
     }
 
+    public void invalidate(String url) {
+        new CacheAsyncTask().execute(MESSAGE_INVALIDATE, url);
+    }
+
+    public void invalidatePrefix(String urlPrefix) {
+        new CacheAsyncTask().execute(MESSAGE_INVALIDATE_PREFIX, urlPrefix);
+    }
+
+    public void invalidateTag(String tag) {
+        new CacheAsyncTask().execute(MESSAGE_INVALIDATE_TAG, tag);
+    }
+
+    public void invalidateOlderThan(long maxAgeMillis) {
+        new CacheAsyncTask().execute(MESSAGE_INVALIDATE_OLDER_THAN, maxAgeMillis);
+    }
+
+    /**
+     * Call when the gallery leaves the screen. The memory cache shrinks to its backgrounded
+     * budget and the disk cache is flushed, so returning to the gallery starts warm
+     */
+    public void onPause() {
+        if (mImageCache != null) {
+            mImageCache.setBackgrounded(true);
+        }
+        flushCache();
+    }
+
+    /**
+     * Call when the gallery is back on screen to restore the full memory cache budget
+     */
+    public void onResume() {
+        if (mImageCache != null) {
+            mImageCache.setBackgrounded(false);
+        }
+    }
+
     public void flushCache() {
         new CacheAsyncTask().execute(MESSAGE_FLUSH);
     }
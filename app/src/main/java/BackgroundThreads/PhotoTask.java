@@ -5,6 +5,9 @@ import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
 
+import ImageLoaderPackage.CachePolicy;
+import ImageLoaderPackage.ImageMetadata;
+
 /**
  * Created by desmond on 20/6/14.
  */
@@ -15,11 +18,16 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
     private WeakReference<ImageView> mImageWeakRef;
     private int mTargetHeight;
     private int mTargetWidth;
-    private boolean mCacheEnabled;
+    private CachePolicy mCachePolicy;
+    private long mDeadlineNanos;
 
     private byte[] mImageBuffer;
+    private ImageMetadata mImageMetadata;
     private Bitmap mDecodedImage;
 
+    //Timestamps of each stage of the current request
+    private final RequestTrace mRequestTrace = new RequestTrace();
+
     //The Thread on which this task is running
     private Thread mCurrentThread;
 
@@ -36,15 +44,30 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
         mDownloadRunnable = new PhotoDownloadRunnable(this);
     }
 
+    /**
+     * @param targetWidth The width to decode at, or ImageWorker.SIZE_FROM_VIEW until
+     *                    setTargetSize() is given the size of photoView
+     * @param targetHeight The height to decode at, or ImageWorker.SIZE_FROM_VIEW
+     */
     void initializeDownloaderTask(PhotoManager photoManager, ImageView photoView,
-                                  boolean cacherFlag, String url) {
+                                  CachePolicy cachePolicy, String url, int targetWidth, int targetHeight) {
 
         sPhotoManager = photoManager;
         mImageUrl = url;
+        mRequestTrace.reset(url);
         mImageWeakRef = new WeakReference<ImageView>(photoView);
-        mCacheEnabled = cacherFlag;
-        mTargetHeight = photoView.getHeight();
-        mTargetWidth = photoView.getWidth();
+        mCachePolicy = cachePolicy;
+        mDeadlineNanos = System.nanoTime() + photoManager.getRequestTimeoutMs() * 1000000L;
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+    }
+
+    /**
+     * Sets the size to decode at once the view has been laid out
+     */
+    void setTargetSize(int targetWidth, int targetHeight) {
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
     }
 
     //Implements PhotoDownloaderRunnable.getByteBuffer
@@ -60,6 +83,7 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
         }
 
         mImageBuffer = null;
+        mImageMetadata = null;
         mDecodedImage = null;
     }
 
@@ -75,9 +99,16 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
         return mTargetWidth;
     }
 
-    //Detects the state of caching
-    boolean isCacheEnable() {
-        return mCacheEnabled;
+    //Implements PhotoDownloadRunnable.getDeadlineNanos and PhotoDecodeRunnable.getDeadlineNanos
+    @Override
+    public long getDeadlineNanos() {
+        return mDeadlineNanos;
+    }
+
+    //Implements PhotoDownloadRunnable.getCachePolicy
+    @Override
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
     }
 
     //Implements PhotoDownloadRunnable.getImageURL
@@ -92,6 +123,18 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
         mImageBuffer = buffer;
     }
 
+    //Implements PhotoDecodeRunnable.getImageMetadata
+    @Override
+    public ImageMetadata getImageMetadata() {
+        return mImageMetadata;
+    }
+
+    //Implements PhotoDownloadRunnable.setImageMetadata
+    @Override
+    public void setImageMetadata(ImageMetadata metadata) {
+        mImageMetadata = metadata;
+    }
+
     void handleState(int state) {
         sPhotoManager.handleState(this, state);
     }
@@ -208,8 +251,20 @@ public class PhotoTask implements PhotoDecodeRunnable.TaskRunnableDecodeMethods,
         handleState(outState);
     }
 
+    //Implements PhotoDownloadRunnable.getRequestTrace() and PhotoDecodeRunnable.getRequestTrace()
+    @Override
+    public RequestTrace getRequestTrace() {
+        return mRequestTrace;
+    }
+
     @Override
     public ImageCache getImageCache() {
         return sPhotoManager.getImageCache();
     }
+
+    //Implements PhotoDownloadRunnable.awaitPreload
+    @Override
+    public void awaitPreload() throws InterruptedException {
+        sPhotoManager.awaitPreload(mImageUrl, mDeadlineNanos);
+    }
 }
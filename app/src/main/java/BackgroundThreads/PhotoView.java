@@ -12,6 +12,8 @@ import android.widget.ImageView;
 
 import com.replaid.efficientbitmap.app.R;
 
+import ImageLoaderPackage.RecyclingBitmapDrawable;
+
 import java.lang.ref.WeakReference;
 
 /**
@@ -166,6 +168,10 @@ public class PhotoView extends ImageView {
             localDrawable.setCallback(null);
         }
 
+        //Gives back the lease on the displayed bitmap so it can be reused
+        super.setImageDrawable(null);
+        RecyclingBitmapDrawable.notifyDisplayed(localDrawable, false);
+
         //If this View still exists, clears the weak reference, then sets the reference to null
         if (mThisView != null) {
             mThisView.clear();
@@ -231,8 +237,16 @@ public class PhotoView extends ImageView {
         //Either hides or shows the view, depending on the view state
         showView(viewState);
 
+        //Keep hold of the previous drawable so its lease can be given back
+        final Drawable previousDrawable = getDrawable();
+
         //Invokes the super method with the provided drawable
         super.setImageDrawable(drawable);
+
+        //Take a lease on the new drawable before giving back the old one, which may be
+        //the same drawable
+        RecyclingBitmapDrawable.notifyDisplayed(drawable, true);
+        RecyclingBitmapDrawable.notifyDisplayed(previousDrawable, false);
     }
 
     /**
@@ -0,0 +1,19 @@
+package BackgroundThreads;
+
+/**
+ * Receives the timing trace of every request that goes through PhotoManager. Callbacks
+ * happen on the UI thread; the trace is re-used once the callback returns, so call
+ * RequestTrace.copy() to keep it.
+ */
+public interface RequestListener {
+
+    /**
+     * The image was decoded and bound to its view
+     */
+    void onRequestComplete(RequestTrace trace);
+
+    /**
+     * The image could not be downloaded or decoded
+     */
+    void onRequestFailed(RequestTrace trace);
+}
@@ -0,0 +1,180 @@
+package BackgroundThreads;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic timestamps for each step a PhotoTask goes through, from the moment it is
+ * enqueued until its bitmap is bound to the view. Timestamps come from System.nanoTime()
+ * and are only meaningful relative to each other.
+ *
+ * A trace is owned and re-used by its PhotoTask. Listeners receive it on the UI thread and
+ * must call copy() if they want to keep it beyond the callback.
+ */
+public class RequestTrace {
+    /**
+     * Events, in the order they normally happen
+     */
+    public static final int EVENT_ENQUEUED = 0;
+    public static final int EVENT_MEMORY_LOOKUP_START = 1;
+    public static final int EVENT_MEMORY_LOOKUP_END = 2;
+    public static final int EVENT_DOWNLOAD_DEQUEUED = 3;
+    public static final int EVENT_DISK_READ_START = 4;
+    public static final int EVENT_DISK_READ_END = 5;
+    public static final int EVENT_NETWORK_START = 6;
+    public static final int EVENT_NETWORK_FIRST_BYTE = 7;
+    public static final int EVENT_NETWORK_COMPLETE = 8;
+    public static final int EVENT_DECODE_QUEUED = 9;
+    public static final int EVENT_DECODE_START = 10;
+    public static final int EVENT_DECODE_END = 11;
+    public static final int EVENT_UI_POSTED = 12;
+    public static final int EVENT_BIND_START = 13;
+    public static final int EVENT_BIND_END = 14;
+    private static final int EVENT_COUNT = 15;
+
+    /**
+     * Where the image bytes came from
+     */
+    public static final int SOURCE_UNKNOWN = 0;
+    public static final int SOURCE_MEMORY = 1;
+    public static final int SOURCE_DISK = 2;
+    public static final int SOURCE_NETWORK = 3;
+
+    /**
+     * Named stages, each the span between a start and an end event
+     */
+    public static final int STAGE_MEMORY_LOOKUP = 0;
+    public static final int STAGE_DOWNLOAD_QUEUE_WAIT = 1;
+    public static final int STAGE_DISK_READ = 2;
+    public static final int STAGE_NETWORK_FIRST_BYTE = 3;
+    public static final int STAGE_NETWORK_COMPLETE = 4;
+    public static final int STAGE_DECODE_QUEUE_WAIT = 5;
+    public static final int STAGE_DECODE = 6;
+    public static final int STAGE_UI_POST = 7;
+    public static final int STAGE_BIND = 8;
+
+    public static final String[] STAGE_NAMES = {
+            "memory lookup",
+            "download queue wait",
+            "disk read",
+            "network first byte",
+            "network complete",
+            "decode queue wait",
+            "decode",
+            "ui post",
+            "bind"
+    };
+    private static final int[][] STAGE_EVENTS = {
+            {EVENT_MEMORY_LOOKUP_START, EVENT_MEMORY_LOOKUP_END},
+            {EVENT_ENQUEUED, EVENT_DOWNLOAD_DEQUEUED},
+            {EVENT_DISK_READ_START, EVENT_DISK_READ_END},
+            {EVENT_NETWORK_START, EVENT_NETWORK_FIRST_BYTE},
+            {EVENT_NETWORK_FIRST_BYTE, EVENT_NETWORK_COMPLETE},
+            {EVENT_DECODE_QUEUED, EVENT_DECODE_START},
+            {EVENT_DECODE_START, EVENT_DECODE_END},
+            {EVENT_UI_POSTED, EVENT_BIND_START},
+            {EVENT_BIND_START, EVENT_BIND_END}
+    };
+
+    private static final AtomicLong sNextRequestId = new AtomicLong();
+
+    private final long[] mTimestamps = new long[EVENT_COUNT];
+    private long mRequestId;
+    private String mUrl;
+    private int mSource;
+
+    /**
+     * Clears all timestamps and starts a new request
+     */
+    void reset(String url) {
+        Arrays.fill(mTimestamps, 0);
+        mRequestId = sNextRequestId.incrementAndGet();
+        mUrl = url;
+        mSource = SOURCE_UNKNOWN;
+    }
+
+    /**
+     * Records the current time for an event
+     */
+    void mark(int event) {
+        mTimestamps[event] = System.nanoTime();
+    }
+
+    void setSource(int source) {
+        mSource = source;
+    }
+
+    public long getRequestId() {
+        return mRequestId;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the timestamp of an event in nanoseconds, or 0 if it did not happen
+     */
+    public long getTimestamp(int event) {
+        return mTimestamps[event];
+    }
+
+    public static int getStageCount() {
+        return STAGE_EVENTS.length;
+    }
+
+    public long getStageStart(int stage) {
+        return mTimestamps[STAGE_EVENTS[stage][0]];
+    }
+
+    /**
+     * Returns how long a stage took in nanoseconds, or -1 if the request skipped it
+     */
+    public long getStageDuration(int stage) {
+        final long start = mTimestamps[STAGE_EVENTS[stage][0]];
+        final long end = mTimestamps[STAGE_EVENTS[stage][1]];
+        if (start == 0 || end == 0) {
+            return -1;
+        }
+        return end - start;
+    }
+
+    /**
+     * Returns the time from enqueue to the last recorded event in nanoseconds
+     */
+    public long getTotalDuration() {
+        long last = 0;
+        for (long timestamp : mTimestamps) {
+            last = Math.max(last, timestamp);
+        }
+        return last == 0 ? 0 : last - mTimestamps[EVENT_ENQUEUED];
+    }
+
+    public RequestTrace copy() {
+        final RequestTrace copy = new RequestTrace();
+        System.arraycopy(mTimestamps, 0, copy.mTimestamps, 0, EVENT_COUNT);
+        copy.mRequestId = mRequestId;
+        copy.mUrl = mUrl;
+        copy.mSource = mSource;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("RequestTrace #").append(mRequestId).append(' ').append(mUrl);
+
+        for (int stage = 0; stage < STAGE_EVENTS.length; stage++) {
+            final long duration = getStageDuration(stage);
+            if (duration >= 0) {
+                sb.append(", ").append(STAGE_NAMES[stage]).append('=')
+                        .append(duration / 1000).append("us");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package BackgroundThreads;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.ImageMetrics;
+
+/**
+ * The request of one download, which asks only for the rest of the image if an earlier
+ * download of the url was cut off. The server's answer decides whether the stored bytes are
+ * used: a 206 for exactly the missing part resumes, a 416 or a 200 drops them. If this
+ * download is cut off as well, keepPartial() stores what arrived for the next one. A body
+ * sent without a Content-Length is kept too, the Content-Range of the rest tells its length.
+ */
+final class ResumableDownload {
+    private static final String TAG = "ResumableDownload";
+
+    //A cut off download shorter than this is not worth a disk write to resume
+    static final int MIN_PARTIAL_BYTES = 64 * 1024;
+
+    /**
+     * Where the parts of cut off downloads are kept, the disk cache
+     */
+    interface PartialStore {
+
+        PartialDownload getPartialFromDiskCache(String data);
+
+        void addPartialToDiskCache(String data, PartialDownload partial);
+
+        void removePartialFromDiskCache(String data);
+    }
+
+    private final PartialStore mStore;
+    private final String mUrl;
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    private PartialDownload mPartial;
+    private int mTotalLength;
+    private String mValidator;
+
+    /**
+     * @param store Null to neither resume nor keep anything
+     */
+    ResumableDownload(PartialStore store, String url) {
+        mStore = store;
+        mUrl = url;
+    }
+
+    /**
+     * Makes the request, for the missing part if there is a stored one. isResumed() then
+     * tells whether the response body is that part or the whole image
+     */
+    HttpTransport.Response open(HttpTransport transport, long deadlineNanos)
+            throws IOException, InterruptedException {
+        mPartial = mStore != null ? mStore.getPartialFromDiskCache(mUrl) : null;
+
+        HttpTransport.Response response;
+        if (mPartial != null) {
+            response = transport.getRange(mUrl, mPartial.getLength(), mPartial.getValidator(),
+                    deadlineNanos);
+
+            //416 Range Not Satisfiable, the image is shorter now
+            if (response.getCode() == 416) {
+                response.close();
+                mStore.removePartialFromDiskCache(mUrl);
+                mPartial = null;
+                response = transport.get(mUrl, deadlineNanos);
+            }
+        } else {
+            response = transport.get(mUrl, deadlineNanos);
+        }
+
+        if (mPartial != null && !isRestOf(response, mPartial)) {
+            //The image changed or the server ignores ranges, a 200 has all of it
+            Log.i(TAG, "Range not honoured, HTTP " + response.getCode() + " - " + mUrl);
+            mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.RANGE_IGNORED).increment();
+            mStore.removePartialFromDiskCache(mUrl);
+            mPartial = null;
+        }
+
+        if (mPartial != null) {
+            mTotalLength = (int) response.getContentRangeTotal();
+            mValidator = mPartial.getValidator();
+            mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.RESUMED).increment();
+        } else {
+            mValidator = getRangeValidator(response);
+        }
+        return response;
+    }
+
+    /**
+     * Returns true if response is a 206 for the bytes after partial, up to the length it has
+     * or, if it was not known, to any length past it
+     */
+    private static boolean isRestOf(HttpTransport.Response response, PartialDownload partial) {
+        final long total = response.getContentRangeTotal();
+        return response.isPartialContent()
+                && response.getContentRangeStart() == partial.getLength()
+                && total > partial.getLength() && total <= Integer.MAX_VALUE
+                && (partial.getTotalLength() == PartialDownload.UNKNOWN_LENGTH
+                        || total == partial.getTotalLength());
+    }
+
+    /**
+     * Returns true if the response of open() is the rest of a stored part
+     */
+    boolean isResumed() {
+        return mPartial != null;
+    }
+
+    /**
+     * Returns the bytes the body starts with, which were not downloaded by this request
+     */
+    int getStoredLength() {
+        return mPartial != null ? mPartial.getLength() : 0;
+    }
+
+    /**
+     * Returns the length of the whole image, or contentLength if it is not resumed
+     */
+    int getTotalLength(int contentLength) {
+        return mPartial != null ? mTotalLength : contentLength;
+    }
+
+    /**
+     * Copies the stored part to the start of body, which has the whole image's length
+     * @return the number of bytes copied
+     */
+    int copyStoredBytes(byte[] body) {
+        if (mPartial == null) return 0;
+
+        System.arraycopy(mPartial.getBytes(), 0, body, 0, mPartial.getLength());
+        return mPartial.getLength();
+    }
+
+    /**
+     * Keeps the first received bytes of buffer after the download was cut off, if there are
+     * enough of them and more than are stored already
+     * @param totalLength Length of the whole body, or PartialDownload.UNKNOWN_LENGTH
+     * @return true if they were stored
+     */
+    boolean keepPartial(byte[] buffer, int received, int totalLength) {
+        if (mStore == null || buffer == null || mValidator == null
+                || received < MIN_PARTIAL_BYTES || received <= getStoredLength()) {
+            return false;
+        }
+
+        final byte[] bytes = new byte[received];
+        System.arraycopy(buffer, 0, bytes, 0, received);
+        mStore.addPartialToDiskCache(mUrl, new PartialDownload(bytes, mValidator, totalLength));
+        mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.PARTIAL_SAVED).increment();
+        return true;
+    }
+
+    /**
+     * Drops the stored part once the whole image has been cached
+     */
+    void complete() {
+        if (mPartial != null) {
+            mStore.removePartialFromDiskCache(mUrl);
+        }
+    }
+
+    /**
+     * Returns what to send as If-Range to resume the body of response: a strong ETag, or else
+     * the Last-Modified date. Null if there is neither, a weak ETag cannot be used for ranges
+     */
+    private static String getRangeValidator(HttpTransport.Response response) {
+        final String eTag = response.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return response.getHeaderField("Last-Modified");
+    }
+}
@@ -0,0 +1,107 @@
+package BackgroundThreads;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A RequestListener that keeps the most recent traces and writes them in the Chrome
+ * trace-event JSON format, so they can be opened in chrome://tracing or Perfetto. Each
+ * request gets its own row, each stage is a complete ("X") event on that row.
+ */
+public class TraceEventExporter implements RequestListener {
+    private static final int DEFAULT_MAX_TRACES = 1000;
+
+    private final int mMaxTraces;
+    private final Deque<RequestTrace> mTraces = new ArrayDeque<RequestTrace>();
+
+    public TraceEventExporter() {
+        this(DEFAULT_MAX_TRACES);
+    }
+
+    public TraceEventExporter(int maxTraces) {
+        mMaxTraces = maxTraces;
+    }
+
+    @Override
+    public void onRequestComplete(RequestTrace trace) {
+        add(trace);
+    }
+
+    @Override
+    public void onRequestFailed(RequestTrace trace) {
+        add(trace);
+    }
+
+    private synchronized void add(RequestTrace trace) {
+        if (mTraces.size() == mMaxTraces) {
+            mTraces.pollFirst();
+        }
+        mTraces.addLast(trace.copy());
+    }
+
+    public synchronized void clear() {
+        mTraces.clear();
+    }
+
+    /**
+     * Writes all collected traces as a trace-event JSON object
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        long origin = Long.MAX_VALUE;
+        for (RequestTrace trace : mTraces) {
+            origin = Math.min(origin, trace.getTimestamp(RequestTrace.EVENT_ENQUEUED));
+        }
+
+        writer.write("{\"traceEvents\":[");
+        boolean first = true;
+
+        for (RequestTrace trace : mTraces) {
+            for (int stage = 0; stage < RequestTrace.getStageCount(); stage++) {
+                final long duration = trace.getStageDuration(stage);
+                if (duration < 0) {
+                    continue;
+                }
+
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+
+                writer.write("{\"name\":\"");
+                writer.write(RequestTrace.STAGE_NAMES[stage]);
+                writer.write("\",\"cat\":\"image\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+                writer.write(String.valueOf(trace.getRequestId()));
+                writer.write(",\"ts\":");
+                writer.write(String.valueOf((trace.getStageStart(stage) - origin) / 1000));
+                writer.write(",\"dur\":");
+                writer.write(String.valueOf(duration / 1000));
+                writer.write(",\"args\":{\"url\":\"");
+                writeEscaped(writer, trace.getUrl());
+                writer.write("\",\"source\":");
+                writer.write(String.valueOf(trace.getSource()));
+                writer.write("}}");
+            }
+        }
+
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static void writeEscaped(Writer writer, String value) throws IOException {
+        if (value == null) return;
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ImageLoaderPackage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drawables that were evicted from the memory cache while a view still held a lease on them.
+ * Looking a key up here before decoding again means a bitmap that is still on screen is
+ * shared instead of being decoded a second time, so two copies of the same pixels are never
+ * resident at once.
+ *
+ * Entries are only weakly held; the leases on RecyclingBitmapDrawable do the counting. Once
+ * the last lease is released the bitmap belongs to the BitmapPool and tryAcquire() fails, so
+ * such an entry is treated as a miss and dropped.
+ */
+class ActiveResources {
+
+    private final Map<CacheKey, KeyedReference> mResources = new HashMap<CacheKey, KeyedReference>();
+    private final ReferenceQueue<RecyclingBitmapDrawable> mQueue =
+            new ReferenceQueue<RecyclingBitmapDrawable>();
+
+    /**
+     * Tracks a drawable that left the memory cache but may still be displayed
+     */
+    synchronized void activate(CacheKey key, RecyclingBitmapDrawable drawable) {
+        purge();
+        mResources.put(key, new KeyedReference(key, drawable, mQueue));
+    }
+
+    /**
+     * Returns the drawable for key with a lease the caller must release(), or null if it is
+     * no longer displayed anywhere. A hit is removed, the caller puts it back in the cache
+     */
+    synchronized RecyclingBitmapDrawable acquire(CacheKey key) {
+        purge();
+
+        final KeyedReference reference = mResources.remove(key);
+        if (reference == null) return null;
+
+        final RecyclingBitmapDrawable drawable = reference.get();
+        if (drawable == null || !drawable.tryAcquire()) return null;
+
+        return drawable;
+    }
+
+    synchronized void remove(CacheKey key) {
+        mResources.remove(key);
+    }
+
+    synchronized void clear() {
+        mResources.clear();
+        while (mQueue.poll() != null) {}
+    }
+
+    synchronized int size() {
+        purge();
+        return mResources.size();
+    }
+
+    /**
+     * Drops the entries whose drawables have been garbage collected
+     */
+    private void purge() {
+        KeyedReference reference;
+        while ((reference = (KeyedReference) mQueue.poll()) != null) {
+            //The key may have been activated again with a newer drawable
+            if (mResources.get(reference.key) == reference) {
+                mResources.remove(reference.key);
+            }
+        }
+    }
+
+    private static class KeyedReference extends WeakReference<RecyclingBitmapDrawable> {
+        final CacheKey key;
+
+        KeyedReference(CacheKey key, RecyclingBitmapDrawable drawable,
+                       ReferenceQueue<RecyclingBitmapDrawable> queue) {
+            super(drawable, queue);
+            this.key = key;
+        }
+    }
+}
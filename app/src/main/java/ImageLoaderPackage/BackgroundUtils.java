@@ -71,6 +71,10 @@ public class BackgroundUtils {
         return Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB_MR2;
     }
 
+    public static boolean hasIceCreamSandwich() {
+        return Build.VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
     public static boolean hasJellyBean() {
         return Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
     }
@@ -0,0 +1,232 @@
+package ImageLoaderPackage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Bitmaps that are no longer referenced by any cache or view, kept for BitmapFactory's
+ * inBitmap so decodes can reuse their memory instead of allocating. Bitmaps only get here
+ * once the last lease on their RecyclingBitmapDrawable is released, so handing one out for
+ * a decode can never overwrite pixels that are still on screen.
+ *
+ * The pool holds strong references up to a byte budget and recycles the eldest bitmap
+ * when it is full. Both pipelines share the instance returned by getInstance().
+ */
+public class BitmapPool implements Trimmable {
+    private static final String TAG = "BitmapPool";
+
+    //Default pool size in bytes
+    private static final int DEFAULT_MAX_SIZE = (int) (Runtime.getRuntime().maxMemory() / 16);
+
+    private static final BitmapPool sInstance = new BitmapPool(DEFAULT_MAX_SIZE);
+
+    //Eldest first
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private final int mMaxSize;
+    private int mSize;
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+        MemoryTrimmer.getInstance().addTrimmable(this);
+
+        mMetrics.gauge(ImageMetrics.BITMAP_POOL + ImageMetrics.BYTES, new ImageMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Hands a bitmap nobody references anymore to the pool. Bitmaps that cannot be used for
+     * inBitmap are recycled right away
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+
+        if (!BackgroundUtils.hasHoneycomb() || !bitmap.isMutable()
+                || getBitmapByteCount(bitmap) > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            mBitmaps.addLast(bitmap);
+            mSize += getBitmapByteCount(bitmap);
+
+            while (mSize > mMaxSize) {
+                final Bitmap eldest = mBitmaps.removeFirst();
+                mSize -= getBitmapByteCount(eldest);
+                eldest.recycle();
+                mMetrics.counter(ImageMetrics.BITMAP_POOL + ImageMetrics.EVICTION).increment();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns a bitmap that can be used as inBitmap for the decode described by
+     * options, whose outWidth, outHeight and inSampleSize must be set. Returns null if there
+     * is none; the caller then owns the bitmap
+     */
+    public Bitmap get(BitmapFactory.Options options) {
+        Bitmap bitmap = null;
+
+        synchronized (this) {
+            //Most recently released first, they are the likeliest to match what is decoded now
+            final Iterator<Bitmap> iterator = mBitmaps.descendingIterator();
+            while (iterator.hasNext()) {
+                final Bitmap candidate = iterator.next();
+                if (canUseForInBitmap(candidate, options)) {
+                    iterator.remove();
+                    mSize -= getBitmapByteCount(candidate);
+                    bitmap = candidate;
+                    break;
+                }
+            }
+        }
+
+        mMetrics.counter(ImageMetrics.BITMAP_POOL
+                + (bitmap != null ? ImageMetrics.HIT : ImageMetrics.MISS)).increment();
+        return bitmap;
+    }
+
+    /**
+     * Returns a transparent bitmap of width x height and config to draw into, taken from the
+     * pool if one fits and allocated otherwise. The caller owns the bitmap
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public Bitmap get(int width, int height, Config config) {
+        Bitmap bitmap = null;
+
+        synchronized (this) {
+            final Iterator<Bitmap> iterator = mBitmaps.descendingIterator();
+            while (iterator.hasNext()) {
+                final Bitmap candidate = iterator.next();
+                if (canUseForDrawing(candidate, width, height, config)) {
+                    iterator.remove();
+                    mSize -= getBitmapByteCount(candidate);
+                    bitmap = candidate;
+                    break;
+                }
+            }
+        }
+
+        mMetrics.counter(ImageMetrics.BITMAP_POOL
+                + (bitmap != null ? ImageMetrics.HIT : ImageMetrics.MISS)).increment();
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Recycles every pooled bitmap
+     */
+    public void clear() {
+        synchronized (this) {
+            for (Bitmap bitmap : mBitmaps) {
+                bitmap.recycle();
+            }
+            mBitmaps.clear();
+            mSize = 0;
+        }
+        Log.i(TAG, "Bitmap pool cleared");
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        if (MemoryTrimmer.shouldClearBitmapPool(level)) {
+            clear();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canUseForInBitmap(final Bitmap candidate, BitmapFactory.Options targetOptions) {
+
+        if (!BackgroundUtils.hasKitKat()) {
+            //On earlier versions, the dimensions must match exactly and the inSampleSize must be 1,
+            //nor may the decoder scale by density
+            return candidate.getWidth() == targetOptions.outWidth
+                    && candidate.getHeight() == targetOptions.outHeight
+                    && targetOptions.inSampleSize == 1
+                    && targetOptions.inDensity == targetOptions.inTargetDensity;
+        }
+
+        //From KitKat onward, can re-use if the byte size of the new bitmap is smaller
+        //than reusable bitmap candidate allocation byte count
+        final int sampleSize = Math.max(1, targetOptions.inSampleSize);
+        int width = targetOptions.outWidth / sampleSize;
+        int height = targetOptions.outHeight / sampleSize;
+        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+        return byteCount <= candidate.getAllocationByteCount();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canUseForDrawing(Bitmap candidate, int width, int height, Config config) {
+
+        if (!BackgroundUtils.hasKitKat()) {
+            //Without reconfigure() only an exact match will do
+            return candidate.getWidth() == width && candidate.getHeight() == height
+                    && candidate.getConfig() == config;
+        }
+
+        return width * height * getBytesPerPixel(config) <= candidate.getAllocationByteCount();
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration
+     */
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+
+        //ARGB_8888, and the deprecated ARGB_4444 which KitKat decodes as ARGB_8888
+        return 4;
+    }
+
+    /**
+     * Get the size in bytes of a bitmap. Note that from KitKat onward, this returns the
+     * allocated memory size of the bitmap which can be larger than the actual bitmap data
+     * byte count
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static int getBitmapByteCount(Bitmap bitmap) {
+        if (BackgroundUtils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+
+        if (BackgroundUtils.hasHoneycombMR1()) {
+            return bitmap.getByteCount();
+        }
+
+        //Pre HC-MR1
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
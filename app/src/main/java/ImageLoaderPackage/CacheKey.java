@@ -0,0 +1,104 @@
+package ImageLoaderPackage;
+
+/**
+ * Identifies a cached image: the source it was loaded from, the size it was decoded to and
+ * the signature of whatever transformation was applied. All three are hashed once into 128
+ * bits when the key is built, so equals() and hashCode() only compare longs and the disk
+ * filename is derived from the same hash instead of running MD5 on every lookup.
+ *
+ * Build a key once per request and hand it down rather than rebuilding it in each layer.
+ */
+public final class CacheKey {
+    //Width or height of an image that is cached as decoded, without resizing
+    public static final int ORIGINAL_SIZE = 0;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String mSource;
+    private final int mWidth, mHeight;
+    private final String mSignature;
+    private final long mHash1, mHash2;
+    private String mDiskName;
+
+    public CacheKey(Object source, int width, int height, String signature) {
+        mSource = String.valueOf(source);
+        mWidth = width;
+        mHeight = height;
+        mSignature = signature;
+
+        final Murmur3 hasher = Murmur3.get()
+                .putString(mSource)
+                .putInt(width)
+                .putInt(height)
+                .putString(signature)
+                .finish();
+        mHash1 = hasher.h1();
+        mHash2 = hasher.h2();
+    }
+
+    /**
+     * Returns the key of an image cached at its original size and untransformed
+     */
+    public static CacheKey of(Object source) {
+        return new CacheKey(source, ORIGINAL_SIZE, ORIGINAL_SIZE, null);
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * Returns the hash as 32 hex digits, usable as a DiskLruCache key. Built on first use
+     */
+    public String getDiskName() {
+        //Benign race, every thread computes the same string
+        String diskName = mDiskName;
+        if (diskName == null) {
+            final char[] chars = new char[32];
+            toHex(mHash1, chars, 0);
+            toHex(mHash2, chars, 16);
+            diskName = new String(chars);
+            mDiskName = diskName;
+        }
+        return diskName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheKey)) return false;
+
+        final CacheKey other = (CacheKey) o;
+        return mHash1 == other.mHash1 && mHash2 == other.mHash2
+                && mWidth == other.mWidth && mHeight == other.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mHash1 ^ (mHash1 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return mSource + " " + mWidth + "x" + mHeight + (mSignature != null ? " " + mSignature : "");
+    }
+
+    private static void toHex(long value, char[] chars, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
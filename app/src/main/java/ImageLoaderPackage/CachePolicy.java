@@ -0,0 +1,38 @@
+package ImageLoaderPackage;
+
+/**
+ * Where a request may get its image from. Both ImageWorker and PhotoManager take one per
+ * request, and treat every request as OFFLINE while ConnectivityMonitor reports no network.
+ * For an ImageWorker that does not load from the network, "the network" is whatever its
+ * processBitmap() loads from.
+ */
+public enum CachePolicy {
+    //Memory, then disk, then the network. A cached image is served however old it is
+    CACHE_FIRST,
+
+    //Memory and disk only, a miss fails
+    CACHE_ONLY,
+
+    //Straight to the network, the result is still cached for later requests
+    NETWORK_ONLY,
+
+    //Like CACHE_FIRST, but a stale cached image is revalidated in the background after it
+    //is served, where the cache keeps freshness
+    STALE_WHILE_REVALIDATE,
+
+    //What every request becomes without connectivity: served from memory or disk however
+    //stale, and failed at once on a miss without trying a doomed connection
+    OFFLINE;
+
+    public boolean readsCache() {
+        return this != NETWORK_ONLY;
+    }
+
+    public boolean usesNetwork() {
+        return this == CACHE_FIRST || this == NETWORK_ONLY || this == STALE_WHILE_REVALIDATE;
+    }
+
+    public boolean revalidatesStale() {
+        return this == STALE_WHILE_REVALIDATE;
+    }
+}
@@ -0,0 +1,71 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+
+/**
+ * Scales the image so that it fills width x height and crops whatever sticks out, keeping
+ * the centre
+ */
+public class CenterCropTransformation implements CroppingTransformation {
+    private final int mWidth, mHeight;
+    private final String mKey;
+
+    public CenterCropTransformation(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mKey = "centerCrop:" + width + "x" + height;
+    }
+
+    @Override
+    public int getCropWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getCropHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public Bitmap transform(TransformationContext context, Bitmap source) {
+        if (source.getWidth() == mWidth && source.getHeight() == mHeight) {
+            return source;
+        }
+
+        final Bitmap result = context.obtainBitmap(mWidth, mHeight,
+                TransformationContext.getConfig(source));
+
+        final Matrix matrix = context.getMatrix();
+        setCenterCropMatrix(matrix, source.getWidth(), source.getHeight(), mWidth, mHeight);
+        context.getCanvas(result).drawBitmap(source, matrix, context.getPaint());
+
+        return result;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Sets matrix to map a source image onto width x height the way ImageView's CENTER_CROP
+     * scale type does
+     */
+    static void setCenterCropMatrix(Matrix matrix, int sourceWidth, int sourceHeight,
+                                    int width, int height) {
+        final float scale;
+        float dx = 0, dy = 0;
+
+        if (sourceWidth * height > width * sourceHeight) {
+            scale = (float) height / sourceHeight;
+            dx = (width - sourceWidth * scale) * 0.5f;
+        } else {
+            scale = (float) width / sourceWidth;
+            dy = (height - sourceHeight * scale) * 0.5f;
+        }
+
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((int) (dx + 0.5f), (int) (dy + 0.5f));
+    }
+}
@@ -0,0 +1,48 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+
+/**
+ * Applies several transformations in order, for example a CenterCropTransformation followed
+ * by a RoundedCornersTransformation. Intermediate bitmaps go back to the pool as soon as the
+ * next step has drawn them.
+ */
+public class ChainTransformation implements Transformation {
+    private final Transformation[] mTransformations;
+    private final String mKey;
+
+    public ChainTransformation(Transformation... transformations) {
+        if (transformations.length == 0) {
+            throw new IllegalArgumentException("no transformations");
+        }
+        mTransformations = transformations.clone();
+
+        final StringBuilder key = new StringBuilder();
+        for (Transformation transformation : mTransformations) {
+            if (key.length() > 0) key.append('|');
+            key.append(transformation.getKey());
+        }
+        mKey = key.toString();
+    }
+
+    @Override
+    public Bitmap transform(TransformationContext context, Bitmap source) {
+        Bitmap current = source;
+
+        for (Transformation transformation : mTransformations) {
+            final Bitmap next = transformation.transform(context, current);
+
+            //source itself is recycled by TransformationContext.apply()
+            if (current != source && next != current) {
+                context.recycle(current);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+}
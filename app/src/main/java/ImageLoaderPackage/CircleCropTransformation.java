@@ -0,0 +1,83 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader.TileMode;
+
+/**
+ * Center crops the image to size x size and cuts a circle out of it, optionally with a
+ * white border. The crop is done by the shader's matrix, so no intermediate thumbnail is
+ * created
+ */
+public class CircleCropTransformation implements CroppingTransformation {
+    private final int mSize;
+    private final int mBorderWidth;
+    private final String mKey;
+
+    public CircleCropTransformation(int size, int borderWidth) {
+        mSize = size;
+        mBorderWidth = borderWidth;
+        mKey = "circle:" + size + ":" + borderWidth;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getBorderWidth() {
+        return mBorderWidth;
+    }
+
+    @Override
+    public int getCropWidth() {
+        return mSize;
+    }
+
+    @Override
+    public int getCropHeight() {
+        return mSize;
+    }
+
+    @Override
+    public Bitmap transform(TransformationContext context, Bitmap source) {
+        //Outside the circle must be transparent, so draw into a bitmap with alpha
+        final Bitmap result = context.obtainBitmap(mSize, mSize, Config.ARGB_8888);
+        final Canvas canvas = context.getCanvas(result);
+
+        final Matrix matrix = context.getMatrix();
+        CenterCropTransformation.setCenterCropMatrix(matrix,
+                source.getWidth(), source.getHeight(), mSize, mSize);
+
+        final BitmapShader shader = new BitmapShader(source, TileMode.CLAMP, TileMode.CLAMP);
+        shader.setLocalMatrix(matrix);
+
+        Paint paint = context.getPaint();
+        paint.setShader(shader);
+
+        final float center = mSize / 2f;
+        float radius = center;
+        canvas.drawCircle(center, center, radius, paint);
+
+        //Draw the border
+        if (mBorderWidth > 0) {
+            paint = context.getPaint();
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setColor(Color.WHITE);
+            paint.setStrokeWidth(mBorderWidth);
+            radius -= Math.ceil(mBorderWidth / 2.0);
+            canvas.drawCircle(center, center, radius, paint);
+        }
+
+        return result;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+}
@@ -0,0 +1,54 @@
+package ImageLoaderPackage;
+
+/**
+ * Tracks whether one host is up. After FAILURE_THRESHOLD failures in a row it opens and
+ * requests to the host fail at once, without a thread or the radio waiting on it. Once the
+ * open period is over a single trial request goes through: success closes the breaker,
+ * failure opens it again for twice as long, up to MAX_OPEN_MS.
+ */
+final class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_MS = 5 * 1000;
+    private static final long MAX_OPEN_MS = 2 * 60 * 1000;
+
+    private int mConsecutiveFailures;
+    private long mOpenMs;
+    private long mOpenUntil;
+    private boolean mTrialInFlight;
+
+    /**
+     * Returns true if a request may go to the host. While half-open only the first caller
+     * gets true, and it must then report the outcome
+     */
+    synchronized boolean allowRequest(long nowMillis) {
+        if (mConsecutiveFailures < FAILURE_THRESHOLD) return true;
+        if (nowMillis < mOpenUntil || mTrialInFlight) return false;
+
+        mTrialInFlight = true;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        mOpenMs = 0;
+        mTrialInFlight = false;
+    }
+
+    synchronized void recordFailure(long nowMillis) {
+        mTrialInFlight = false;
+        mConsecutiveFailures++;
+
+        //Failures of requests already running when it opened do not extend it
+        if (mConsecutiveFailures >= FAILURE_THRESHOLD && nowMillis >= mOpenUntil) {
+            mOpenMs = mOpenMs == 0 ? MIN_OPEN_MS : Math.min(mOpenMs * 2, MAX_OPEN_MS);
+            mOpenUntil = nowMillis + mOpenMs;
+        }
+    }
+
+    /**
+     * Reports a request that ended without an outcome, such as a cancelled one
+     */
+    synchronized void recordAbandoned() {
+        mTrialInFlight = false;
+    }
+}
@@ -0,0 +1,283 @@
+package ImageLoaderPackage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory cache that does not take a lock on get(). Entries live in a ConcurrentHashMap, and a
+ * hit only sets the entry's reference bit; the bit is consumed later by the eviction sweep, so
+ * recording an access costs a single volatile write.
+ *
+ * Keys are spread over stripes by hash, each with its own CLOCK ring and lock, so puts and
+ * removes of keys in different stripes do not contend. The budget is shared: an eviction
+ * sweeps the stripes in turn, starting from a cursor that moves on with every eviction, and
+ * takes the first unreferenced entry. The entry being put is skipped by the sweep; it is only
+ * evicted when it alone is over the budget.
+ *
+ * Every mutation of a key happens under the lock of its stripe and removes the exact node it
+ * unlinked, so entryRemoved() is called exactly once for every value that leaves the cache.
+ */
+public class ConcurrentMemoryCache<K, V> extends MemoryCache<K, V> {
+
+    //More stripes than this only spreads a cache of a few dozen bitmaps too thin
+    private static final int MAX_STRIPES = 8;
+
+    private final ConcurrentHashMap<K, Node<K, V>> mMap = new ConcurrentHashMap<K, Node<K, V>>();
+    private final Ring<K, V>[] mStripes;
+    private final int mStripeMask;
+    private final AtomicLong mSize = new AtomicLong();
+
+    //Stripe the next eviction starts sweeping from
+    private final AtomicInteger mEvictionCursor = new AtomicInteger();
+
+    public ConcurrentMemoryCache(int maxSize, Callbacks<K, V> callbacks) {
+        this(maxSize, callbacks, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param concurrency The number of threads expected to write at once, rounded up to a power
+     *                    of two and capped at MAX_STRIPES to give the number of stripes
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentMemoryCache(int maxSize, Callbacks<K, V> callbacks, int concurrency) {
+        super(maxSize, callbacks);
+
+        int stripes = 1;
+        while (stripes < concurrency && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        mStripes = new Ring[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Ring<K, V>();
+        }
+        mStripeMask = stripes - 1;
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Node<K, V> node = mMap.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+        return node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        final Ring<K, V> ring = stripeFor(key);
+
+        Node<K, V> previous;
+        synchronized (ring) {
+            previous = mMap.put(key, node);
+            if (previous != null) {
+                ring.unlink(previous);
+                mSize.addAndGet(-previous.size);
+            }
+            ring.link(node);
+            mSize.addAndGet(node.size);
+        }
+
+        if (previous != null) {
+            mCallbacks.entryRemoved(false, key, previous.value, value);
+        }
+
+        evictToSize(node);
+        return previous != null ? previous.value : null;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Ring<K, V> ring = stripeFor(key);
+        Node<K, V> node;
+        synchronized (ring) {
+            node = mMap.remove(key);
+            if (node != null) {
+                ring.unlink(node);
+                mSize.addAndGet(-node.size);
+            }
+        }
+
+        if (node == null) {
+            return null;
+        }
+        mCallbacks.entryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    @Override
+    public void evictAll() {
+        final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+        for (Ring<K, V> ring : mStripes) {
+            synchronized (ring) {
+                Node<K, V> node;
+                while ((node = ring.mHand) != null) {
+                    ring.unlink(node);
+                    mMap.remove(node.key, node);
+                    mSize.addAndGet(-node.size);
+                    evicted.add(node);
+                }
+            }
+        }
+
+        for (Node<K, V> node : evicted) {
+            mCallbacks.entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    @Override
+    public void resize(int maxSize) {
+        checkMaxSize(maxSize);
+        mMaxSize = maxSize;
+        evictToSize(null);
+    }
+
+    @Override
+    public int size() {
+        return (int) mSize.get();
+    }
+
+    private Ring<K, V> stripeFor(K key) {
+        final int hash = key.hashCode();
+        return mStripes[(hash ^ (hash >>> 16)) & mStripeMask];
+    }
+
+    /**
+     * Evicts entries until the cache fits its budget
+     * @param inserted The entry just put, evicted only if nothing else is left, or null
+     */
+    private void evictToSize(Node<K, V> inserted) {
+        while (mSize.get() > mMaxSize) {
+            Node<K, V> victim = sweepStripes(inserted);
+
+            //Too big for the budget on its own, unless removed by another thread meanwhile
+            if (victim == null && inserted != null) {
+                final Ring<K, V> ring = stripeFor(inserted.key);
+                synchronized (ring) {
+                    if (mMap.remove(inserted.key, inserted)) {
+                        ring.unlink(inserted);
+                        mSize.addAndGet(-inserted.size);
+                        victim = inserted;
+                    }
+                }
+            }
+
+            if (victim == null) return;
+            mCallbacks.entryRemoved(true, victim.key, victim.value, null);
+        }
+    }
+
+    /**
+     * Unlinks an entry other than skip from the first stripe, from the cursor on, that has one
+     * @return The entry removed, or null if skip is the only entry left
+     */
+    private Node<K, V> sweepStripes(Node<K, V> skip) {
+        final int start = mEvictionCursor.getAndIncrement();
+        for (int i = 0; i < mStripes.length; i++) {
+            final Ring<K, V> ring = mStripes[(start + i) & mStripeMask];
+            synchronized (ring) {
+                final Node<K, V> victim = ring.sweep(skip);
+                if (victim != null) {
+                    mMap.remove(victim.key, victim);
+                    mSize.addAndGet(-victim.size);
+                    return victim;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        volatile boolean referenced;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The CLOCK ring of one stripe, only touched while holding its monitor. New nodes are
+     * inserted just behind the hand so they are the last to be swept
+     */
+    private static class Ring<K, V> {
+        Node<K, V> mHand;
+        int mCount;
+
+        void link(Node<K, V> node) {
+            if (mHand == null) {
+                node.prev = node;
+                node.next = node;
+                mHand = node;
+            } else {
+                node.next = mHand;
+                node.prev = mHand.prev;
+                mHand.prev.next = node;
+                mHand.prev = node;
+            }
+            mCount++;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.next == node) {
+                mHand = null;
+            } else {
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+                if (mHand == node) {
+                    mHand = node.next;
+                }
+            }
+            node.prev = null;
+            node.next = null;
+            mCount--;
+        }
+
+        /**
+         * Advances the hand, clearing reference bits, and unlinks the first unreferenced node
+         * other than skip. After one full turn every bit is clear, so this ends within two
+         * turns, with null only if the ring is empty or skip is the last node left
+         */
+        Node<K, V> sweep(Node<K, V> skip) {
+            for (int i = 0; i <= 2 * mCount && mHand != null; i++) {
+                final Node<K, V> node = mHand;
+                if (node == skip) {
+                    if (mCount == 1) return null;
+                    mHand = node.next;
+                } else if (node.referenced) {
+                    node.referenced = false;
+                    mHand = node.next;
+                } else {
+                    unlink(node);
+                    return node;
+                }
+            }
+            return null;
+        }
+    }
+}
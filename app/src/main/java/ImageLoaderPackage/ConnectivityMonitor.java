@@ -0,0 +1,70 @@
+package ImageLoaderPackage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Tracks connectivity from the CONNECTIVITY_ACTION broadcast, so the pipelines can switch
+ * requests to CachePolicy.OFFLINE instead of opening connections that are bound to fail.
+ * Until register() is called the device is assumed to be online.
+ */
+public class ConnectivityMonitor {
+    private static final String TAG = "ConnectivityMonitor";
+
+    private static final ConnectivityMonitor sInstance = new ConnectivityMonitor();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update(context);
+        }
+    };
+    private boolean mRegistered;
+    private volatile boolean mOnline = true;
+
+    public static ConnectivityMonitor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Reads the current connectivity and starts listening for changes. Safe to call more
+     * than once
+     */
+    public synchronized void register(Context context) {
+        if (mRegistered) return;
+
+        final Context appContext = context.getApplicationContext();
+        update(appContext);
+        appContext.registerReceiver(mReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        mRegistered = true;
+    }
+
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    /**
+     * Returns the policy to load with: the requested one, or OFFLINE without connectivity
+     */
+    public CachePolicy apply(CachePolicy requested) {
+        return mOnline ? requested : CachePolicy.OFFLINE;
+    }
+
+    private void update(Context context) {
+        final ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+
+        final boolean online = networkInfo != null && networkInfo.isConnectedOrConnecting();
+        if (online != mOnline) {
+            Log.i(TAG, online ? "Connectivity restored" : "No connectivity, loading offline");
+            mOnline = online;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ImageLoaderPackage;
+
+/**
+ * A transformation that only keeps the centre of the image at the aspect ratio of
+ * getCropWidth() x getCropHeight(). Knowing that, the decoder can skip the pixels outside
+ * the crop, see ImageResizer.decodeCenterCropFromByte()
+ */
+public interface CroppingTransformation extends Transformation {
+
+    int getCropWidth();
+
+    int getCropHeight();
+}
@@ -0,0 +1,124 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Admission control for decodes. Every decode reserves the bytes its bitmap will take, as
+ * estimated from the bounds pass, before it starts, and gives them back when it is done. A
+ * decode that does not fit waits for others to finish; if it still does not fit after
+ * MAX_WAIT_MS its inSampleSize is doubled until it does. How many decodes run at once is then
+ * bounded by memory rather than by the size of the decode pool, so a fast fling cannot start
+ * enough large decodes at the same time to run out of memory.
+ *
+ * A decode larger than the whole budget is still admitted once nothing else is reserved.
+ */
+public class DecodeBudget {
+    private static final String TAG = "DecodeBudget";
+
+    //Default budget in bytes, on top of what the caches hold
+    private static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    //How long a decode waits for room before it gives up resolution instead
+    private static final long MAX_WAIT_MS = 100;
+
+    private static final DecodeBudget sInstance = new DecodeBudget(DEFAULT_MAX_BYTES);
+
+    private final long mMaxBytes;
+    private long mReservedBytes;
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    public static DecodeBudget getInstance() {
+        return sInstance;
+    }
+
+    public DecodeBudget(long maxBytes) {
+        mMaxBytes = maxBytes;
+
+        mMetrics.gauge(ImageMetrics.DECODE_BUDGET + ImageMetrics.BYTES, new ImageMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getReservedBytes();
+            }
+        });
+    }
+
+    /**
+     * Reserves room for the decode described by options, whose outWidth, outHeight and
+     * inSampleSize must be set. May raise inSampleSize, dropping any density scaling and
+     * handing an inBitmap that no longer fits back to the pool.
+     * @return the reserved bytes, to be given back with release() once the decode is done
+     * @throws InterruptedException if the thread is interrupted while waiting, nothing is
+     *         reserved then
+     */
+    public long admit(BitmapFactory.Options options) throws InterruptedException {
+        final long waitStart = System.nanoTime();
+
+        long bytes = estimateBytes(options);
+        while (!tryReserve(bytes, MAX_WAIT_MS)) {
+            Log.i(TAG, "No room for " + bytes + " bytes, sampling down");
+            mMetrics.counter(ImageMetrics.DECODE_BUDGET + ImageMetrics.DOWNSAMPLED).increment();
+
+            options.inSampleSize = Math.max(1, options.inSampleSize) * 2;
+            options.inDensity = 0;
+            options.inTargetDensity = 0;
+            if (options.inBitmap != null) {
+                BitmapPool.getInstance().put(options.inBitmap);
+                options.inBitmap = null;
+            }
+            bytes = estimateBytes(options);
+        }
+
+        mMetrics.histogram(ImageMetrics.DECODE_BUDGET + ImageMetrics.WAIT_US)
+                .record((System.nanoTime() - waitStart) / 1000);
+        return bytes;
+    }
+
+    public synchronized void release(long bytes) {
+        mReservedBytes -= bytes;
+        notifyAll();
+    }
+
+    public synchronized long getReservedBytes() {
+        return mReservedBytes;
+    }
+
+    /**
+     * Waits up to timeoutMs for bytes to fit into the budget and reserves them
+     */
+    private synchronized boolean tryReserve(long bytes, long timeoutMs) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutMs * 1000000L;
+
+        while (mReservedBytes > 0 && mReservedBytes + bytes > mMaxBytes) {
+            final long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if (remainingMs <= 0) return false;
+            wait(remainingMs);
+        }
+
+        mReservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Returns the bytes the bitmap decoded with options will take. A decode into an inBitmap
+     * allocates nothing new
+     */
+    public static long estimateBytes(BitmapFactory.Options options) {
+        if (options.inBitmap != null) return 0;
+
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final long width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final long height = (options.outHeight + sampleSize - 1) / sampleSize;
+        return width * height * getBytesPerPixel(options.inPreferredConfig);
+    }
+
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.RGB_565) return 2;
+        if (config == Config.ALPHA_8) return 1;
+
+        //ARGB_8888, also what the decoder picks when there is no preference. The deprecated
+        //ARGB_4444 is decoded as ARGB_8888 from KitKat on, and counting it as such is safe
+        return 4;
+    }
+}
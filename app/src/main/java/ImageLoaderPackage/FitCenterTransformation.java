@@ -0,0 +1,45 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+
+/**
+ * Scales the image so that it fits inside width x height, keeping its aspect ratio. The
+ * result is only as large as the scaled image, nothing is letterboxed
+ */
+public class FitCenterTransformation implements Transformation {
+    private final int mWidth, mHeight;
+    private final String mKey;
+
+    public FitCenterTransformation(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mKey = "fitCenter:" + width + "x" + height;
+    }
+
+    @Override
+    public Bitmap transform(TransformationContext context, Bitmap source) {
+        final float scale = Math.min((float) mWidth / source.getWidth(),
+                (float) mHeight / source.getHeight());
+        final int width = Math.max(1, Math.round(source.getWidth() * scale));
+        final int height = Math.max(1, Math.round(source.getHeight() * scale));
+
+        if (width == source.getWidth() && height == source.getHeight()) {
+            return source;
+        }
+
+        final Bitmap result = context.obtainBitmap(width, height,
+                TransformationContext.getConfig(source));
+
+        final Matrix matrix = context.getMatrix();
+        matrix.setScale((float) width / source.getWidth(), (float) height / source.getHeight());
+        context.getCanvas(result).drawBitmap(source, matrix, context.getPaint());
+
+        return result;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+}
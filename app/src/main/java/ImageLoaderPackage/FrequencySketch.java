@@ -0,0 +1,98 @@
+package ImageLoaderPackage;
+
+/**
+ * A count-min sketch of how often keys were requested, used by TinyLfuMemoryCache to decide
+ * which of two entries is worth keeping. Each key maps to one 4-bit counter in each of four
+ * rows and its frequency is the smallest of them. Once the number of increments reaches ten
+ * times the width all counters are halved, so old popularity fades away.
+ *
+ * Not thread safe, the cache calls it under its own lock.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 16;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private byte[] mTable;
+    private int mWidth;
+    private int mSampleSize;
+    private int mAdditions;
+
+    FrequencySketch(int expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Widens the sketch so it can tell apart about the given number of entries. Counts are
+     * lost when the sketch grows, which only happens while the cache is warming up
+     */
+    void ensureCapacity(int expectedEntries) {
+        int width = MIN_WIDTH;
+        while (width < expectedEntries && width < (1 << 24)) {
+            width <<= 1;
+        }
+        if (width <= mWidth) return;
+
+        mWidth = width;
+        mTable = new byte[DEPTH * width];
+        mSampleSize = 10 * width;
+        mAdditions = 0;
+    }
+
+    /**
+     * Returns the estimated number of times the key was seen, between 0 and 15
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, mTable[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = indexOf(hash, row);
+            if (mTable[index] < MAX_COUNT) {
+                mTable[index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves every counter
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (byte) (mTable[i] >>> 1);
+        }
+        mAdditions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return row * mWidth + ((int) h & (mWidth - 1));
+    }
+
+    /**
+     * Mixes poor hash codes such as those of short strings
+     */
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,95 @@
+package ImageLoaderPackage;
+
+/**
+ * The race between a request and its hedge. The first response offered wins and the other
+ * attempt is cancelled; a response offered after that is the caller's to abort.
+ */
+final class HedgedGet {
+    private static final int HEDGE_NOT_STARTED = 0;
+    private static final int HEDGE_RUNNING = 1;
+    private static final int HEDGE_DONE = 2;
+
+    private final HttpTransport.Call mPrimaryCall = new HttpTransport.Call(false);
+    private final HttpTransport.Call mHedgeCall = new HttpTransport.Call(true);
+
+    private boolean mDecided;
+    private HttpTransport.Response mWinner;
+    private int mHedgeState = HEDGE_NOT_STARTED;
+
+    HttpTransport.Call getPrimaryCall() {
+        return mPrimaryCall;
+    }
+
+    HttpTransport.Call getHedgeCall() {
+        return mHedgeCall;
+    }
+
+    /**
+     * Returns false if the race is already over and the hedge should not be sent
+     */
+    synchronized boolean startHedge() {
+        if (mDecided) return false;
+
+        mHedgeState = HEDGE_RUNNING;
+        return true;
+    }
+
+    synchronized void hedgeFailed() {
+        mHedgeState = HEDGE_DONE;
+        notifyAll();
+    }
+
+    synchronized boolean offerHedge(HttpTransport.Response response) {
+        mHedgeState = HEDGE_DONE;
+        notifyAll();
+        if (mDecided) return false;
+
+        mDecided = true;
+        mWinner = response;
+        mPrimaryCall.cancel();
+        return true;
+    }
+
+    synchronized boolean offerPrimary(HttpTransport.Response response) {
+        if (mDecided) return false;
+
+        mDecided = true;
+        mWinner = response;
+        mHedgeCall.cancel();
+        return true;
+    }
+
+    synchronized HttpTransport.Response getWinner() {
+        return mWinner;
+    }
+
+    /**
+     * Waits for a running hedge after the request failed or was cancelled, and ends the race
+     * @return the hedge's response, or null if there is none
+     */
+    synchronized HttpTransport.Response primaryFailed() throws InterruptedException {
+        try {
+            while (!mDecided && mHedgeState == HEDGE_RUNNING) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            abandon();
+            throw e;
+        }
+
+        mDecided = true;
+        return mWinner;
+    }
+
+    /**
+     * Ends the race without a winner for a caller that gives up
+     */
+    synchronized void abandon() {
+        mDecided = true;
+        mHedgeCall.cancel();
+        if (mWinner != null) {
+            mWinner.abort();
+            mWinner = null;
+        }
+    }
+}
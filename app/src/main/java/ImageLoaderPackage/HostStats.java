@@ -0,0 +1,36 @@
+package ImageLoaderPackage;
+
+import java.util.Arrays;
+
+/**
+ * The time to first byte of the last WINDOW_SIZE responses from one host, so thresholds
+ * such as when to hedge follow the host as it speeds up or slows down.
+ */
+final class HostStats {
+    private static final int WINDOW_SIZE = 64;
+
+    //Fewer samples than this say too little about the host
+    private static final int MIN_SAMPLES = 16;
+
+    private final long[] mTimeToFirstByteNanos = new long[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+
+    synchronized void recordTimeToFirstByte(long nanos) {
+        mTimeToFirstByteNanos[mNext] = nanos;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        mCount = Math.min(mCount + 1, WINDOW_SIZE);
+    }
+
+    /**
+     * Returns the time to first byte that fraction of the recent responses beat, or -1 if
+     * there are not enough of them yet
+     */
+    synchronized long getTimeToFirstByteNanos(double fraction) {
+        if (mCount < MIN_SAMPLES) return -1;
+
+        final long[] sorted = Arrays.copyOf(mTimeToFirstByteNanos, mCount);
+        Arrays.sort(sorted);
+        return sorted[Math.min(mCount - 1, (int) Math.ceil(fraction * mCount) - 1)];
+    }
+}
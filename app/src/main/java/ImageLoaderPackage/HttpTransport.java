@@ -0,0 +1,857 @@
+package ImageLoaderPackage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP layer of both pipelines. Connections come from the platform's keep-alive pool,
+ * which only takes a connection back once its response body has been read to the end and
+ * closed without disconnect(), so every Response must be closed and close() drains what is
+ * left of a short body. A TLS connection is then set up once per pooled connection rather
+ * than once per image.
+ *
+ * At most getMaxConnectionsPerHost() requests run against one host at a time, others wait
+ * for a slot, so a burst of downloads reuses a few warm connections instead of opening a
+ * new one per thread. Plain http and https URLs go through the same path, and redirects
+ * between them are followed, which HttpURLConnection does not do on its own.
+ *
+ * A request that fails in a way that may pass is retried following the RetryPolicy. Hosts
+ * that keep failing are cut off for a while by a CircuitBreaker, and a 404 or 410 is
+ * remembered for NEGATIVE_CACHE_MS, so a dead host or image costs no threads or radio time
+ * on every bind. Those requests fail at once with a FailFastException.
+ *
+ * A request may carry a deadline, a System.nanoTime() value. Its connect and read timeouts
+ * are cut to the time left, waiting for a slot or reading the body stops at the deadline,
+ * and a retry that would end after it is not made. Those fail with a SocketTimeoutException.
+ *
+ * With hedging on, a download whose response has not started after the time to first byte
+ * that 95% of its host's recent responses beat is sent a second time. Whichever answers
+ * first is used and the other is cancelled. Each request earns HEDGE_BUDGET_RATIO of a
+ * hedge, so hedges stay a small share of the load even when a host slows down as a whole.
+ *
+ * preconnect() warms connections to a host before there is anything to download from it,
+ * so DNS and the TLS handshake overlap with other work such as loading the feed.
+ *
+ * It uses java.net only, so the simulation runs it on the JVM as well.
+ */
+public final class HttpTransport {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 20000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int READ_SIZE = 1024 * 2;
+
+    //How long a 404 or 410 is served without asking again
+    private static final long NEGATIVE_CACHE_MS = 60 * 1000;
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+
+    //A host warmed within this is not warmed again, its connections are still pooled
+    private static final long PRECONNECT_INTERVAL_MS = 60 * 1000;
+
+    //A body with more than this left is not worth reading to save its connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    //A hedge goes out once the request is slower than this share of the host's responses
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    //Hedges earned by each request, and how many can be saved up for a burst
+    private static final double HEDGE_BUDGET_RATIO = 0.05;
+    private static final double MAX_HEDGE_TOKENS = 10;
+    private static final int HEDGE_POOL_SIZE = 4;
+
+    private static final HttpTransport sInstance = new HttpTransport();
+
+    //Requests running against each host, keyed by host:port
+    private final Map<String, Integer> mActiveByHost = new HashMap<String, Integer>();
+    private int mMaxConnectionsPerHost;
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    //When each host, keyed by scheme://host:port, was last warmed
+    private final Map<String, Long> mPreconnected = new HashMap<String, Long>();
+    private final ThreadPoolExecutor mPreconnectThreadPool;
+
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    //Keyed by host:port like the connection slots
+    private final Map<String, HostStats> mHostStats = new HashMap<String, HostStats>();
+
+    private volatile boolean mHedgingEnabled;
+    private final ScheduledThreadPoolExecutor mHedgeExecutor;
+    private final Object mHedgeLock = new Object();
+    private double mHedgeTokens;
+
+    //Keyed by host:port like the connection slots
+    private final Map<String, CircuitBreaker> mCircuitBreakers = new HashMap<String, CircuitBreaker>();
+
+    //When each url that was not found may be asked for again
+    private final Map<String, Long> mNegativeCache =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > NEGATIVE_CACHE_SIZE;
+                }
+            };
+
+    public static HttpTransport getInstance() {
+        return sInstance;
+    }
+
+    private HttpTransport() {
+        System.setProperty("http.keepAlive", "true");
+        setMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+        mPreconnectThreadPool = new ThreadPoolExecutor(
+                DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                1,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>()
+        );
+        mPreconnectThreadPool.allowCoreThreadTimeOut(true);
+
+        mHedgeExecutor = new ScheduledThreadPoolExecutor(HEDGE_POOL_SIZE);
+        mHedgeExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mHedgeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how many requests may run against one host at once. The platform pool keeps as
+     * many idle connections, which it reads once, so call this before the first request
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        mMaxConnectionsPerHost = maxConnections;
+        System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+        notifyAll();
+    }
+
+    public synchronized int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Turns hedging of unconditional GETs on or off. Off by default
+     */
+    public void setHedgingEnabled(boolean enabled) {
+        mHedgingEnabled = enabled;
+    }
+
+    public Response get(String url) throws IOException, InterruptedException {
+        return get(url, null, 0, NO_DEADLINE);
+    }
+
+    public Response get(String url, long deadlineNanos) throws IOException, InterruptedException {
+        return get(url, null, 0, deadlineNanos);
+    }
+
+    public Response get(String url, String eTag, long lastModified)
+            throws IOException, InterruptedException {
+        return get(url, eTag, lastModified, NO_DEADLINE);
+    }
+
+    /**
+     * Resolves the host of url and opens up to connections connections to it in the
+     * background, each with a HEAD request whose connection is then pooled. Does nothing
+     * if the host was warmed in the last minute
+     */
+    public void preconnect(String url, int connections) {
+        final URL target;
+        try {
+            target = new URL(url);
+        } catch (MalformedURLException e) {
+            return;
+        }
+        final String protocol = target.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) return;
+
+        final String origin = protocol + "://" + target.getHost() + ":" + getPort(target);
+        final long now = System.currentTimeMillis();
+        synchronized (mPreconnected) {
+            final Long lastWarmed = mPreconnected.get(origin);
+            if (lastWarmed != null && now - lastWarmed < PRECONNECT_INTERVAL_MS) return;
+            mPreconnected.put(origin, now);
+        }
+
+        final int count = Math.min(connections, getMaxConnectionsPerHost());
+        for (int i = 0; i < count; i++) {
+            mPreconnectThreadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        open("HEAD", target, null, 0, 0, null, NO_DEADLINE, null).close();
+                        mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.PRECONNECT).increment();
+                    } catch (IOException e) {
+                        //The real request reports the failure
+                    } catch (InterruptedException e) {
+                        //Shutting down
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes a GET request, conditional if eTag or lastModified is given. Waits for a
+     * connection slot to the host first, and retries transient failures. The last response
+     * is returned whatever its status, except a cached 404 or 410
+     * @param eTag Sent as If-None-Match, or null
+     * @param lastModified Sent as If-Modified-Since, or 0
+     * @param deadlineNanos System.nanoTime() by which the whole body must be read, or
+     *        NO_DEADLINE
+     * @return the response, which must be closed
+     * @throws FailFastException if the url was not found lately or its host is down
+     * @throws SocketTimeoutException if the deadline passes first
+     * @throws InterruptedException if the thread is interrupted while waiting for a slot or
+     *         to retry
+     */
+    public Response get(String url, String eTag, long lastModified, long deadlineNanos)
+            throws IOException, InterruptedException {
+        return get(url, eTag, lastModified, 0, null, deadlineNanos);
+    }
+
+    /**
+     * Makes a GET request for the body from rangeStart on, which the server answers with a 206
+     * if the body still matches ifRange, or else with the whole body. Otherwise like get()
+     * @param ifRange A strong ETag or a Last-Modified date, as the server sent it
+     */
+    public Response getRange(String url, long rangeStart, String ifRange, long deadlineNanos)
+            throws IOException, InterruptedException {
+        return get(url, null, 0, rangeStart, ifRange, deadlineNanos);
+    }
+
+    private Response get(String url, String eTag, long lastModified, long rangeStart,
+                         String ifRange, long deadlineNanos) throws IOException, InterruptedException {
+        final URL target = new URL(url);
+
+        synchronized (mNegativeCache) {
+            final Long retryAfter = mNegativeCache.get(url);
+            if (retryAfter != null) {
+                if (System.currentTimeMillis() < retryAfter) {
+                    mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.NEGATIVE_HIT).increment();
+                    throw new FailFastException("Not found lately - " + url);
+                }
+                mNegativeCache.remove(url);
+            }
+        }
+
+        final RetryPolicy retryPolicy = mRetryPolicy;
+        for (int attempt = 1; ; attempt++) {
+            final long delayMs = retryPolicy.getDelayMs(attempt);
+
+            try {
+                final Response response =
+                        mHedgingEnabled && eTag == null && lastModified == 0 && rangeStart == 0
+                        ? getHedged(target, deadlineNanos)
+                        : followRedirects(target, eTag, lastModified, rangeStart, ifRange,
+                                deadlineNanos, null);
+                final int code = response.getCode();
+
+                if (code == HttpURLConnection.HTTP_NOT_FOUND || code == 410) {
+                    synchronized (mNegativeCache) {
+                        mNegativeCache.put(url, System.currentTimeMillis() + NEGATIVE_CACHE_MS);
+                    }
+                }
+                if (!RetryPolicy.isTransient(code)
+                        || !canRetry(retryPolicy, attempt, delayMs, deadlineNanos)) {
+                    return response;
+                }
+                response.close();
+
+            } catch (FailFastException e) {
+                throw e;
+            } catch (MalformedURLException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!canRetry(retryPolicy, attempt, delayMs, deadlineNanos)) throw e;
+            }
+
+            mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.RETRY).increment();
+            Thread.sleep(delayMs);
+        }
+    }
+
+    private static boolean canRetry(RetryPolicy retryPolicy, int attempt, long delayMs,
+                                    long deadlineNanos) {
+        return attempt < retryPolicy.getMaxAttempts()
+                && System.nanoTime() + delayMs * 1000000L < deadlineNanos;
+    }
+
+    /**
+     * Makes a GET that is sent again if it is slow to start, see the class comment
+     */
+    private Response getHedged(final URL target, final long deadlineNanos)
+            throws IOException, InterruptedException {
+        final long thresholdNanos = getHostStats(getHostKey(target))
+                .getTimeToFirstByteNanos(HEDGE_PERCENTILE);
+        synchronized (mHedgeLock) {
+            mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + HEDGE_BUDGET_RATIO);
+        }
+
+        //Nothing to tell a slow response by yet
+        if (thresholdNanos < 0) {
+            return followRedirects(target, null, 0, 0, null, deadlineNanos, null);
+        }
+
+        final HedgedGet hedgedGet = new HedgedGet();
+        final ScheduledFuture<?> hedgeTimer = mHedgeExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!hedgedGet.startHedge()) return;
+                if (!spendHedgeToken()) {
+                    hedgedGet.hedgeFailed();
+                    return;
+                }
+
+                mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.HEDGE).increment();
+                try {
+                    final Response response =
+                            followRedirects(target, null, 0, 0, null, deadlineNanos,
+                                    hedgedGet.getHedgeCall());
+                    if (!hedgedGet.offerHedge(response)) {
+                        response.abort();
+                    }
+                } catch (IOException e) {
+                    hedgedGet.hedgeFailed();
+                } catch (InterruptedException e) {
+                    hedgedGet.hedgeFailed();
+                }
+            }
+        }, thresholdNanos, TimeUnit.NANOSECONDS);
+
+        try {
+            final Response response =
+                    followRedirects(target, null, 0, 0, null, deadlineNanos,
+                            hedgedGet.getPrimaryCall());
+            if (hedgedGet.offerPrimary(response)) return response;
+
+            response.abort();
+            return hedgeWon(hedgedGet.getWinner());
+
+        } catch (IOException e) {
+            //Cancelled because the hedge won, or failed while the hedge may still win
+            final Response hedged = hedgedGet.primaryFailed();
+            if (hedged != null) return hedgeWon(hedged);
+            throw e;
+
+        } catch (InterruptedException e) {
+            hedgedGet.abandon();
+            throw e;
+
+        } finally {
+            hedgeTimer.cancel(false);
+        }
+    }
+
+    /**
+     * Counts a request answered by its hedge. Counted here rather than by the hedge, so the
+     * count is up to date once the caller has the response
+     */
+    private Response hedgeWon(Response response) {
+        mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.HEDGE_WON).increment();
+        return response;
+    }
+
+    /**
+     * Sets how many hedges are saved up, so tests can start from a known budget
+     */
+    void setHedgeTokens(double tokens) {
+        synchronized (mHedgeLock) {
+            mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, tokens);
+        }
+    }
+
+    /**
+     * Returns the number of requests holding a connection slot, to all hosts
+     */
+    synchronized int getActiveRequestCount() {
+        int active = 0;
+        for (Integer count : mActiveByHost.values()) {
+            active += count;
+        }
+        return active;
+    }
+
+    private boolean spendHedgeToken() {
+        synchronized (mHedgeLock) {
+            if (mHedgeTokens < 1) return false;
+            mHedgeTokens--;
+            return true;
+        }
+    }
+
+    /**
+     * @param call The attempt this is part of, to be able to cancel it, or null
+     */
+    private Response followRedirects(URL target, String eTag, long lastModified, long rangeStart,
+                                     String ifRange, long deadlineNanos, Call call)
+            throws IOException, InterruptedException {
+
+        for (int redirects = 0; ; redirects++) {
+            final String protocol = target.getProtocol();
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                throw new MalformedURLException("Not an HTTP URL - " + target);
+            }
+
+            final Response response = open("GET", target, eTag, lastModified, rangeStart, ifRange,
+                    deadlineNanos, call);
+
+            final String location = response.getHeaderField("Location");
+            if (!response.isRedirect() || location == null) return response;
+
+            response.close();
+            if (redirects == MAX_REDIRECTS) {
+                throw new IOException("Too many redirects - " + target);
+            }
+            target = new URL(target, location);
+        }
+    }
+
+    /**
+     * Makes a single request, without following redirects, once a slot to the host is free.
+     * A hedge does not wait for one, it is pointless once it would
+     */
+    private Response open(String method, URL target, String eTag, long lastModified,
+                          long rangeStart, String ifRange, long deadlineNanos, Call call)
+            throws IOException, InterruptedException {
+        final String host = getHostKey(target);
+
+        //Fails before asking the breaker if the deadline has already passed
+        getTimeoutMs(READ_TIMEOUT_MS, deadlineNanos);
+
+        final CircuitBreaker breaker = getCircuitBreaker(host);
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.CIRCUIT_OPEN).increment();
+            throw new FailFastException("Host is down - " + host);
+        }
+
+        Response response = null;
+        boolean acquired = false;
+        try {
+            if (call != null && call.isHedge()) {
+                if (!tryAcquire(host)) {
+                    throw new IOException("No free connection for a hedge - " + host);
+                }
+            } else {
+                acquire(host, deadlineNanos);
+            }
+            acquired = true;
+            final long startNanos = System.nanoTime();
+
+            final HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+            if (call != null) {
+                call.setConnection(connection);
+            }
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(getTimeoutMs(CONNECT_TIMEOUT_MS, deadlineNanos));
+            connection.setReadTimeout(getTimeoutMs(READ_TIMEOUT_MS, deadlineNanos));
+            connection.setInstanceFollowRedirects(false);
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+            if (rangeStart > 0) {
+                connection.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+                if (ifRange != null) {
+                    connection.setRequestProperty("If-Range", ifRange);
+                }
+            }
+
+            response = new Response(this, host, breaker, connection, connection.getResponseCode(),
+                    deadlineNanos);
+
+            final long timeToFirstByte = System.nanoTime() - startNanos;
+            getHostStats(host).recordTimeToFirstByte(timeToFirstByte);
+            mMetrics.histogram(ImageMetrics.NETWORK + ImageMetrics.TIME_TO_FIRST_BYTE_US)
+                    .record(timeToFirstByte / 1000);
+        } catch (IOException e) {
+            //Running out of time waiting for a slot, or losing to a hedge, is not the host's fault
+            if (acquired && (call == null || !call.isCancelled())) {
+                breaker.recordFailure(System.currentTimeMillis());
+            }
+            throw e;
+        } finally {
+            if (response == null) {
+                breaker.recordAbandoned();
+                if (acquired) {
+                    release(host);
+                }
+            }
+        }
+
+        if (response.getCode() >= 500) {
+            breaker.recordFailure(System.currentTimeMillis());
+        } else {
+            breaker.recordSuccess();
+        }
+        return response;
+    }
+
+    private HostStats getHostStats(String host) {
+        synchronized (mHostStats) {
+            HostStats stats = mHostStats.get(host);
+            if (stats == null) {
+                stats = new HostStats();
+                mHostStats.put(host, stats);
+            }
+            return stats;
+        }
+    }
+
+    private CircuitBreaker getCircuitBreaker(String host) {
+        synchronized (mCircuitBreakers) {
+            CircuitBreaker breaker = mCircuitBreakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker();
+                mCircuitBreakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Returns timeoutMs, or less if the deadline is closer
+     * @throws SocketTimeoutException if the deadline has passed
+     */
+    private static int getTimeoutMs(int timeoutMs, long deadlineNanos) throws SocketTimeoutException {
+        if (deadlineNanos == NO_DEADLINE) return timeoutMs;
+
+        final long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+        if (remainingMs <= 0) {
+            throw new SocketTimeoutException("Deadline exceeded");
+        }
+        return (int) Math.min(timeoutMs, remainingMs);
+    }
+
+    private synchronized void acquire(String host, long deadlineNanos)
+            throws InterruptedException, SocketTimeoutException {
+        final long waitStart = System.nanoTime();
+
+        Integer active;
+        while ((active = mActiveByHost.get(host)) != null && active >= mMaxConnectionsPerHost) {
+            if (deadlineNanos == NO_DEADLINE) {
+                wait();
+            } else {
+                wait(getTimeoutMs(Integer.MAX_VALUE, deadlineNanos));
+            }
+        }
+        mActiveByHost.put(host, active == null ? 1 : active + 1);
+
+        mMetrics.histogram(ImageMetrics.NETWORK + ImageMetrics.WAIT_US)
+                .record((System.nanoTime() - waitStart) / 1000);
+    }
+
+    private synchronized boolean tryAcquire(String host) {
+        final Integer active = mActiveByHost.get(host);
+        if (active != null && active >= mMaxConnectionsPerHost) return false;
+
+        mActiveByHost.put(host, active == null ? 1 : active + 1);
+        return true;
+    }
+
+    private synchronized void release(String host) {
+        final int active = mActiveByHost.get(host) - 1;
+        if (active == 0) {
+            mActiveByHost.remove(host);
+        } else {
+            mActiveByHost.put(host, active);
+        }
+        notifyAll();
+    }
+
+    private static String getHostKey(URL url) {
+        return url.getHost() + ":" + getPort(url);
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * One attempt at a request, which another thread can cancel by disconnecting it
+     */
+    static final class Call {
+        private final boolean mHedge;
+        private HttpURLConnection mConnection;
+        private boolean mCancelled;
+
+        Call(boolean hedge) {
+            mHedge = hedge;
+        }
+
+        boolean isHedge() {
+            return mHedge;
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized void setConnection(HttpURLConnection connection) throws InterruptedIOException {
+            if (mCancelled) {
+                throw new InterruptedIOException("Cancelled");
+            }
+            mConnection = connection;
+        }
+
+        void cancel() {
+            final HttpURLConnection connection;
+            synchronized (this) {
+                mCancelled = true;
+                connection = mConnection;
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Thrown without a connection attempt for a url that was not found lately or a host whose
+     * circuit breaker is open
+     */
+    public static class FailFastException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FailFastException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A response holding a connection slot until it is closed
+     */
+    public static final class Response {
+        private final HttpTransport mTransport;
+        private final String mHost;
+        private final CircuitBreaker mBreaker;
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final long mDeadlineNanos;
+        private InputStream mBody;
+        private boolean mClosed;
+
+        private Response(HttpTransport transport, String host, CircuitBreaker breaker,
+                         HttpURLConnection connection, int code, long deadlineNanos) {
+            mTransport = transport;
+            mHost = host;
+            mBreaker = breaker;
+            mConnection = connection;
+            mCode = code;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public boolean isSuccessful() {
+            return mCode == HttpURLConnection.HTTP_OK;
+        }
+
+        public boolean isNotModified() {
+            return mCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        public boolean isPartialContent() {
+            return mCode == HttpURLConnection.HTTP_PARTIAL;
+        }
+
+        private boolean isRedirect() {
+            return mCode == HttpURLConnection.HTTP_MOVED_PERM
+                    || mCode == HttpURLConnection.HTTP_MOVED_TEMP
+                    || mCode == HttpURLConnection.HTTP_SEE_OTHER
+                    || mCode == 307 || mCode == 308;
+        }
+
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the Content-Length, or -1 if not known
+         */
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        /**
+         * @return the first byte position of a Content-Range: bytes first-last/total, or -1
+         */
+        public long getContentRangeStart() {
+            return parseContentRange(0);
+        }
+
+        /**
+         * @return the total of a Content-Range: bytes first-last/total, or -1 if not known
+         */
+        public long getContentRangeTotal() {
+            return parseContentRange(1);
+        }
+
+        private long parseContentRange(int part) {
+            final String contentRange = mConnection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+
+            final int dash = contentRange.indexOf('-');
+            final int slash = contentRange.indexOf('/');
+            if (dash < 0 || slash < dash) return -1;
+
+            try {
+                return part == 0
+                        ? Long.parseLong(contentRange.substring(6, dash).trim())
+                        : Long.parseLong(contentRange.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public long getLastModified() {
+            return mConnection.getLastModified();
+        }
+
+        public long getExpiration() {
+            return mConnection.getExpiration();
+        }
+
+        /**
+         * Returns the body of the response, or of the error for an unsuccessful one. A read
+         * error counts as a failure of the host, a read past the deadline fails but does not
+         */
+        public synchronized InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream body = mCode < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getInputStream() : mConnection.getErrorStream();
+                if (body == null) {
+                    body = new ByteArrayInputStream(new byte[0]);
+                }
+
+                mBody = new FilterInputStream(body) {
+                    @Override
+                    public int read() throws IOException {
+                        checkDeadline();
+                        try {
+                            return super.read();
+                        } catch (IOException e) {
+                            mBreaker.recordFailure(System.currentTimeMillis());
+                            throw e;
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int count) throws IOException {
+                        checkDeadline();
+                        try {
+                            return super.read(buffer, offset, count);
+                        } catch (IOException e) {
+                            mBreaker.recordFailure(System.currentTimeMillis());
+                            throw e;
+                        }
+                    }
+                };
+            }
+            return mBody;
+        }
+
+        private void checkDeadline() throws SocketTimeoutException {
+            if (mDeadlineNanos != NO_DEADLINE && System.nanoTime() >= mDeadlineNanos) {
+                throw new SocketTimeoutException("Deadline exceeded");
+            }
+        }
+
+        /**
+         * Reads the whole body and closes the response
+         */
+        public byte[] readBody() throws IOException, InterruptedException {
+            try {
+                final InputStream in = getBody();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[READ_SIZE];
+                int readResult;
+
+                while ((readResult = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, readResult);
+
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                return out.toByteArray();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Drops the connection without reading the body, and frees the connection slot
+         */
+        void abort() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+            }
+
+            mConnection.disconnect();
+            mTransport.release(mHost);
+        }
+
+        /**
+         * Gives the connection back to the pool if what is left of the body is short enough
+         * to read, otherwise drops it, and frees the connection slot. Safe to call twice
+         */
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+            }
+
+            boolean reusable = false;
+            try {
+                final InputStream in = getBody();
+                final byte[] buffer = new byte[READ_SIZE];
+                int drained = 0;
+                int readResult;
+
+                while (drained <= MAX_DRAIN_BYTES && (readResult = in.read(buffer)) != -1) {
+                    drained += readResult;
+                }
+                reusable = drained <= MAX_DRAIN_BYTES;
+                in.close();
+            } catch (IOException e) {
+                //Broken, it must not go back to the pool
+            } finally {
+                if (!reusable) {
+                    mTransport.mMetrics.counter(ImageMetrics.NETWORK + ImageMetrics.DISCARDED)
+                            .increment();
+                    mConnection.disconnect();
+                }
+                mTransport.release(mHost);
+            }
+        }
+    }
+}
@@ -4,8 +4,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
@@ -14,7 +12,6 @@ import android.os.StatFs;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
-import android.util.LruCache;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -22,18 +19,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.lang.ref.WeakReference;
 
 /**
  * Created by desmond on 7/5/14.
  */
-public class ImageCache {
+public class ImageCache implements Trimmable {
     private static final String TAG = "ImageCache";
 
     // Default memory cache size in kilobytes
@@ -47,18 +38,34 @@ public class ImageCache {
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
     private static final int DISK_CACHE_INDEX = 0;
 
+    //Every disk entry also holds the ImageMetadata of its image, so a hit skips the bounds pass
+    private static final int DISK_METADATA_INDEX = 1;
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+
+    //Version of the on-disk layout. 2 added the metadata value and moved to CacheKey file
+    //names, an older cache no longer matches its journal and is cleared when opened
+    private static final int DISK_CACHE_VERSION = 2;
+
     //Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
+    //Eviction policy of the memory cache
+    private static final MemoryCache.Policy DEFAULT_MEM_CACHE_POLICY = MemoryCache.Policy.LRU;
+
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    private MemoryCache<CacheKey, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private final Object mMemCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private final BitmapPool mBitmapPool = BitmapPool.getInstance();
+    private final ActiveResources mActiveResources = new ActiveResources();
+    private final ImageMetrics mMetrics = ImageMetrics.getInstance();
+
+    //Share of memCacheSize the memory cache is currently allowed, lowered by trimMemory()
+    private int mMemCacheBudgetPercent = 100;
 
     /**
      * ImageCache object across configuration changes such as a change in device orientation.
@@ -99,40 +106,47 @@ public class ImageCache {
 
         //Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
+            MemoryTrimmer.getInstance().addTrimmable(this);
 
-            if (BackgroundUtils.hasHoneycomb()) {
-                mReusableBitmaps = Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-            }
-
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
+            mMemoryCache = MemoryCache.create(mCacheParams.memCachePolicy, mCacheParams.memCacheSize,
+                    new MemoryCache.Callbacks<CacheKey, BitmapDrawable>() {
                 /**
                  * Notify the removed entry that is no longer being cached
                   */
                 @Override
-                protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+                public void entryRemoved(boolean evicted, CacheKey key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+                    if (evicted) {
+                        mMetrics.counter(ImageMetrics.MEMORY_DECODED + ImageMetrics.EVICTION).increment();
+                    }
+
                     if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-                        // The removed entry is a recycling drawable, so notify it
-                        // that it has been removed from the memory cache
-                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        // The removed entry is a standard BitmapDrawable
-                        if (BackgroundUtils.hasHoneycomb()) {
-                            // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            addBitmapIntoReusableSet(oldValue.getBitmap());
+                        // An evicted drawable may still be displayed, keep track of it so
+                        // the next bind of the same key shares it instead of decoding again
+                        if (evicted) {
+                            mActiveResources.activate(key, (RecyclingBitmapDrawable) oldValue);
                         }
+
+                        // The removed entry is a recycling drawable, so give back the
+                        // cache's lease. Once no view displays it the bitmap is pooled
+                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
                     }
+                    // A standard BitmapDrawable may still be on screen, so its bitmap is
+                    // left to the garbage collector rather than reused
                 }
 
                 @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
+                public int sizeOf(CacheKey key, BitmapDrawable value) {
                     final int bitmapSize = getBitmapSize(value) / 1024;
 //                    return bitmapSize == 0 ? 1 : bitmapSize;
                     return  bitmapSize;
                 }
-            };
+            });
+
+            mMetrics.gauge(ImageMetrics.MEMORY_DECODED + ImageMetrics.BYTES, new SizeGauge(this, false));
         }
 
+        mMetrics.gauge(ImageMetrics.DISK_DECODED + ImageMetrics.BYTES, new SizeGauge(this, true));
+
         // By default the disk cache is not initialized here as it should be initialized
         // on a separate thread due to disk access.
         if (cacheParams.initDiskCacheOnCreate) {
@@ -159,8 +173,8 @@ public class ImageCache {
 
                     if (getUsableSpace(diskCacheDir) >= mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_VERSION,
+                                    DISK_CACHE_VALUE_COUNT, mCacheParams.diskCacheSize);
                             Log.i(TAG, "Disk cache initialized");
                         } catch (IOException e) {
                             mCacheParams.diskCacheDir = null;
@@ -177,24 +191,28 @@ public class ImageCache {
      * Add a bitmap to both memory and disk cache
      */
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
-    public void addBitmapToCache(String data, BitmapDrawable value) {
+    public void addBitmapToCache(CacheKey data, BitmapDrawable value) {
         if (data == null || value == null) {return;}
 
         //Add to memory cache
         if (mMemoryCache != null) {
-            if (RecyclingBitmapDrawable.class.isInstance(value)) {
-                //The removed entry is a recycling drawable, so notify it
-                //that it has been added into the memory cache
-                ((RecyclingBitmapDrawable) value).setIsCached(true);
-            }
-            mMemoryCache.put(data, value);
+            //A freshly decoded drawable supersedes one still displayed elsewhere
+            mActiveResources.remove(data);
+            addBitmapToMemCache(data, value);
         }
 
+        addBitmapToDiskCache(data, value.getBitmap());
+    }
+
+    /**
+     * Add a bitmap to the disk cache only, e.g. for a prefetch. Includes disk access
+     */
+    public void addBitmapToDiskCache(CacheKey data, Bitmap bitmap) {
         synchronized (mDiskCacheLock) {
 
             //Add to disk cache
             if (mDiskLruCache != null) {
-                final String key = hashKeyforDisk(data);
+                final String key = data.getDiskName();
                 OutputStream out = null;
                 try {
                     DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
@@ -202,10 +220,16 @@ public class ImageCache {
                         final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
                         if (editor != null) {
                             out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(mCacheParams.compressFormat,
+                            bitmap.compress(mCacheParams.compressFormat,
                                     mCacheParams.compressQuality, out);
-                            editor.commit();
                             out.close();
+
+                            out = editor.newOutputStream(DISK_METADATA_INDEX);
+                            new ImageMetadata(bitmap.getWidth(), bitmap.getHeight(),
+                                    getMimeType(mCacheParams.compressFormat),
+                                    ImageMetadata.ORIENTATION_UNDEFINED, null).writeTo(out);
+                            out.close();
+                            editor.commit();
                         }
                     } else {
                         snapshot.getInputStream(DISK_CACHE_INDEX).close();
@@ -226,14 +250,69 @@ public class ImageCache {
     }
 
     /**
-     * Get from memory cache
+     * Returns true if the disk cache holds data, without reading it. Includes disk access
+     */
+    public boolean isInDiskCache(CacheKey data) {
+        synchronized (mDiskCacheLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) return false;
+            try {
+                final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(data.getDiskName());
+                if (snapshot == null) return false;
+                snapshot.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private void addBitmapToMemCache(CacheKey data, BitmapDrawable value) {
+        MemoryTrimmer.getInstance().restoreIfCooledDown();
+
+        if (RecyclingBitmapDrawable.class.isInstance(value)) {
+            //The removed entry is a recycling drawable, so notify it
+            //that it has been added into the memory cache
+            ((RecyclingBitmapDrawable) value).setIsCached(true);
+        }
+        mMemoryCache.put(data, value);
+    }
+
+    /**
+     * Get from memory cache, looking first at the drawables that were evicted while still
+     * on screen. A RecyclingBitmapDrawable is returned with a lease the caller must release()
+     * once it has been bound
      */
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
-    public BitmapDrawable getBitmapFromMemCache(String data) {
+    public BitmapDrawable getBitmapFromMemCache(CacheKey data) {
         BitmapDrawable memValue = null;
 
         if (mMemoryCache != null) {
+            final RecyclingBitmapDrawable active = mActiveResources.acquire(data);
+            if (active != null) {
+                Log.i(TAG, "Bitmap found in active resources");
+                mMetrics.counter(ImageMetrics.MEMORY_ACTIVE + ImageMetrics.HIT).increment();
+
+                //Resurrect it, it is in use so it is likely to be asked for again
+                addBitmapToMemCache(data, active);
+                return active;
+            }
+
             memValue = mMemoryCache.get(data);
+
+            //Lost the race with the cache giving back the last lease
+            if (memValue instanceof RecyclingBitmapDrawable
+                    && !((RecyclingBitmapDrawable) memValue).tryAcquire()) {
+                memValue = null;
+            }
+
+            mMetrics.counter(ImageMetrics.MEMORY_DECODED
+                    + (memValue != null ? ImageMetrics.HIT : ImageMetrics.MISS)).increment();
         }
 
         return memValue;
@@ -242,8 +321,8 @@ public class ImageCache {
     /**
      * Get from diskCache
      */
-    public Bitmap getBitmapFromDiskCache(String data) {
-        final String key = hashKeyforDisk(data);
+    public Bitmap getBitmapFromDiskCache(CacheKey data) {
+        final String key = data.getDiskName();
         Bitmap bitmap = null;
 
         synchronized (mDiskCacheLock) {
@@ -260,6 +339,7 @@ public class ImageCache {
                     if (snapshot != null) {
                         Log.i(TAG, "Bitmap found in Disk cache");
 
+                        final ImageMetadata metadata = readMetadata(snapshot);
                         inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
 
                         if (inputStream != null) {
@@ -267,8 +347,9 @@ public class ImageCache {
 
                             //Decode bitmap, but we don't want to sample so give MAX_VALUE as the
                             //target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(fd, metadata,
+                                    Integer.MAX_VALUE, Integer.MAX_VALUE, this,
+                                    ImageResizer.DEFAULT_DECODE_QUALITY);
                         }
                     }
                 } catch (IOException e) {
@@ -280,49 +361,73 @@ public class ImageCache {
                         }
                     } catch (IOException e) {}
                 }
+
+                mMetrics.counter(ImageMetrics.DISK_DECODED
+                        + (bitmap != null ? ImageMetrics.HIT : ImageMetrics.MISS)).increment();
             }
             return bitmap;
         }
     }
 
-    protected void addBitmapIntoReusableSet(final Bitmap bitmap) {
-        if (mReusableBitmaps != null) {
-            synchronized (mReusableBitmaps) {
-                if (bitmap != null) {
-                    mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
-                }
-            }
+    /**
+     * Returns the metadata stored with a disk entry, or null if it cannot be read, the decode
+     * then falls back to a bounds pass
+     */
+    private static ImageMetadata readMetadata(DiskLruCache.Snapshot snapshot) {
+        final InputStream in = snapshot.getInputStream(DISK_METADATA_INDEX);
+        try {
+            return ImageMetadata.readFrom(in);
+        } catch (IOException e) {
+            Log.i(TAG, "readMetadata - " + e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {}
         }
     }
 
-    protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (item != null && item.isMutable()) {
-                        //Check to see if the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
+    private static String getMimeType(CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            case JPEG:
+            default:
+                return "image/jpeg";
+        }
+    }
 
-                            //Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        //Remove from the set if the reference has been cleared
-                        iterator.remove();
-                    }
-                }
+    /**
+     * Shrinks the memory cache according to the trim level, or restores the full memory
+     * cache budget for MemoryTrimmer.TRIM_LEVEL_NONE. The bitmap pool trims itself
+     */
+    @Override
+    public void trimMemory(int level) {
+        if (mMemoryCache == null) return;
+
+        int resizedPercent = -1;
+        synchronized (mMemCacheLock) {
+            final int percent = level == MemoryTrimmer.TRIM_LEVEL_NONE ? 100
+                    : Math.min(mMemCacheBudgetPercent, MemoryTrimmer.decodedBudgetPercent(level));
+            if (percent != mMemCacheBudgetPercent) {
+                mMemCacheBudgetPercent = percent;
+                resizedPercent = percent;
             }
         }
-        return bitmap;
+
+        if (resizedPercent >= 0) {
+            Log.i(TAG, "trimMemory " + level + ", memory cache budget " + resizedPercent + "%");
+            mMemoryCache.resize(mCacheParams.memCacheSize * resizedPercent / 100);
+        }
+    }
+
+    /**
+     * Returns the pool of bitmaps available for inBitmap
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
     /**
@@ -333,6 +438,7 @@ public class ImageCache {
     public void clearCache() {
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
+            mActiveResources.clear();
             Log.i(TAG, "Memory cache cleared");
         }
 
@@ -393,6 +499,7 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public MemoryCache.Policy memCachePolicy = DEFAULT_MEM_CACHE_POLICY;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -418,40 +525,6 @@ public class ImageCache {
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(final Bitmap candidate, BitmapFactory.Options targetOptions) {
-
-        if (!BackgroundUtils.hasKitKat()) {
-            //On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        //From KitKat onward, can re-use if the byte size of the new bitmap is smaller
-        //than reusable bitmap candidate allocation byte count
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get an usable directory (external if possible, internal otherwise)
      */
@@ -488,52 +561,17 @@ public class ImageCache {
 
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable for using as a
-     * disk filename.
+     * disk filename, see CacheKey.getDiskName()
      */
     public static String hashKeyforDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDisgest = MessageDigest.getInstance("MD5");
-            mDisgest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDisgest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        return CacheKey.of(key).getDiskName();
     }
 
     /**
-     * Get the size in bytes of a bitmap in a BitmapDrawable. Note that from KitKat
-     * onward, this returns the allocated memory size of the bitmap which can be
-     * larger than the actual bitmap data byte count
+     * Get the size in bytes of a bitmap in a BitmapDrawable, see BitmapPool.getBitmapByteCount()
      */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
     public static int getBitmapSize(BitmapDrawable value) {
-        Bitmap bitmap = value.getBitmap();
-
-        if (BackgroundUtils.hasKitKat()) {
-            return bitmap.getAllocationByteCount();
-        }
-
-        if (BackgroundUtils.hasHoneycombMR1()) {
-            return bitmap.getByteCount();
-        }
-
-        //Pre HC-MR1
-        return bitmap.getRowBytes() * bitmap.getHeight();
+        return BitmapPool.getBitmapByteCount(value.getBitmap());
     }
 
     /**
@@ -594,4 +632,31 @@ public class ImageCache {
             return mObject;
         }
     }
+
+    /**
+     * Reports the size of the memory or the disk cache to ImageMetrics. ImageMetrics lives as
+     * long as the process, so it only holds the cache weakly and reports 0 once it is gone
+     */
+    private static class SizeGauge implements ImageMetrics.Gauge {
+        private final WeakReference<ImageCache> mCache;
+        private final boolean mDisk;
+
+        SizeGauge(ImageCache cache, boolean disk) {
+            mCache = new WeakReference<ImageCache>(cache);
+            mDisk = disk;
+        }
+
+        @Override
+        public long getValue() {
+            final ImageCache cache = mCache.get();
+            if (cache == null) return 0;
+
+            if (mDisk) {
+                final DiskLruCache diskLruCache = cache.mDiskLruCache;
+                return diskLruCache != null && !diskLruCache.isClosed() ? diskLruCache.size() : 0;
+            }
+            final MemoryCache<CacheKey, BitmapDrawable> memoryCache = cache.mMemoryCache;
+            return memoryCache != null ? memoryCache.size() * 1024L : 0;
+        }
+    }
 }
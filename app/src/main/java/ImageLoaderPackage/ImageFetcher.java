@@ -2,17 +2,9 @@ package ImageLoaderPackage;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.util.Log;
-import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-
-import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Created by desmond on 8/5/14.
@@ -30,38 +22,46 @@ public class ImageFetcher extends ImageResizer {
         init(context);
     }
 
+    /**
+     * Decodes each image at the size of the ImageView it is loaded into
+     */
     public ImageFetcher(Context context) {
-        super(context, Integer.MAX_VALUE);
+        super(context, SIZE_FROM_VIEW);
         init(context);
     }
 
     private void init(Context context) {
-        checkConnection(context);
+        //Requests load offline, from the caches only, while there is no connectivity
+        ConnectivityMonitor.getInstance().register(context);
     }
 
-    private void checkConnection(Context context) {
-        final ConnectivityManager cm =
-                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        final NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-
-        if (networkInfo == null || !networkInfo.isConnectedOrConnecting()) {
-            Toast.makeText(context, "No Connection Found", Toast.LENGTH_LONG).show();
-            Log.e(TAG, "checkConnection - no connection found");
-        }
+    @Override
+    protected boolean usesNetwork() {
+        return true;
     }
 
     /**
-     * Main process method
+     * Main process method, decoding at reqWidth x reqHeight or, for SIZE_FROM_VIEW, at the
+     * screen size. With a crop only the region it keeps is decoded
      */
-    private Bitmap processBitmap(String url) {
+    private Bitmap processBitmap(String url, int reqWidth, int reqHeight, CroppingTransformation crop) {
         Log.i(TAG, "Process bitmap - " + url);
 
         try {
             if (url == null) return null;
 
             byte[] bitmapBytes = getUrlBytes(url);
+            if (bitmapBytes == null) return null;
 
-            return decodeSampledBitmapFromByte(mContext, bitmapBytes, getImageCache());
+            if (crop != null) {
+                return decodeCenterCropFromByte(mContext, bitmapBytes,
+                        crop.getCropWidth(), crop.getCropHeight(), getImageCache());
+            }
+            if (reqWidth == SIZE_FROM_VIEW || reqHeight == SIZE_FROM_VIEW) {
+                return decodeSampledBitmapFromByte(mContext, bitmapBytes, getImageCache(), mDecodeQuality);
+            }
+            return decodeSampledBitmapFromByte(bitmapBytes, reqWidth, reqHeight, getImageCache(),
+                    mDecodeQuality);
         } catch (IOException e) {
             Log.e(TAG, "Error downloading photo - " + e);
         }
@@ -71,34 +71,43 @@ public class ImageFetcher extends ImageResizer {
     @Override
     protected Bitmap processBitmap(Object data) {
         Log.i(TAG, "Downloading bitmap");
-        return processBitmap(String.valueOf(data));
+        return processBitmap(String.valueOf(data), mImageWidth, mImageHeight, null);
+    }
+
+    @Override
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight,
+                                   Transformation transformation) {
+        Log.i(TAG, "Downloading bitmap at " + reqWidth + "x" + reqHeight);
+        final CroppingTransformation crop = transformation instanceof CroppingTransformation
+                ? (CroppingTransformation) transformation : null;
+        return processBitmap(String.valueOf(data), reqWidth, reqHeight, crop);
     }
 
     /**
      * Download image byte from url
      */
     private byte[] getUrlBytes(String urlSpec) throws IOException {
-        final URL url = new URL(urlSpec);
-        final HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+        HttpTransport.Response response = null;
 
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            InputStream in = connection.getInputStream();
-
-            if (connection.getResponseCode() != HttpsURLConnection.HTTP_OK) {
-                Log.e(TAG, "Connection Error");
+            response = HttpTransport.getInstance().get(urlSpec);
+            if (!response.isSuccessful()) {
+                Log.e(TAG, "Connection Error - HTTP " + response.getCode());
                 return null;
             }
 
-            int byteRead;
-            byte[] buffer = new byte[1024];
-            while ((byteRead = in.read(buffer)) > 0) {
-                out.write(buffer, 0, byteRead);
-            }
-            out.close();
-            return out.toByteArray();
+            final byte[] bytes = response.readBody();
+            ImageMetrics.getInstance().counter(ImageMetrics.NETWORK + ImageMetrics.BYTES_READ)
+                    .add(bytes.length);
+            return bytes;
+        } catch (InterruptedException e) {
+            //The task was cancelled
+            Thread.currentThread().interrupt();
+            return null;
         } finally {
-            connection.disconnect();
+            if (response != null) {
+                response.close();
+            }
         }
     }
 }
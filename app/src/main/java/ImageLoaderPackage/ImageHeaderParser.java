@@ -0,0 +1,314 @@
+package ImageLoaderPackage;
+
+/**
+ * Reads the size, format and EXIF orientation of an image from its first bytes, without
+ * BitmapFactory: JPEG (SOF markers and the APP1 Exif segment), PNG (IHDR), GIF, WebP (VP8,
+ * VP8L and VP8X) and BMP. It runs on a plain JVM and allocates nothing, so it can be run on
+ * every packet of a download until it has what it needs.
+ *
+ * The size is the one stored in the file, before the orientation is applied, which is what
+ * BitmapFactory reports too. A parser holds the result of the last parse(), get one per
+ * thread with get().
+ */
+public final class ImageHeaderParser {
+
+    public enum Format {
+        UNKNOWN(null),
+        JPEG("image/jpeg"),
+        PNG("image/png"),
+        GIF("image/gif"),
+        WEBP("image/webp"),
+        BMP("image/bmp");
+
+        private final String mMimeType;
+
+        Format(String mimeType) {
+            mMimeType = mimeType;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+    }
+
+    //Results of parse()
+    public static final int PARSED = 1;
+    public static final int NEED_MORE_DATA = 0;
+    public static final int UNSUPPORTED = -1;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+
+    private static final ThreadLocal<ImageHeaderParser> sParser = new ThreadLocal<ImageHeaderParser>() {
+        @Override
+        protected ImageHeaderParser initialValue() {
+            return new ImageHeaderParser();
+        }
+    };
+
+    private byte[] mData;
+    private int mOffset, mLength;
+
+    private Format mFormat;
+    private int mWidth, mHeight;
+    private int mOrientation;
+
+    /**
+     * Returns the calling thread's parser
+     */
+    public static ImageHeaderParser get() {
+        return sParser.get();
+    }
+
+    /**
+     * Parses the header of the image that starts at data[offset]. length may cover only the
+     * first part of it, NEED_MORE_DATA then asks to be called again once more has arrived
+     * @return PARSED if the size is known, NEED_MORE_DATA, or UNSUPPORTED if the bytes are
+     *         not an image this parser can read
+     */
+    public int parse(byte[] data, int offset, int length) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mFormat = Format.UNKNOWN;
+        mWidth = 0;
+        mHeight = 0;
+        mOrientation = ImageMetadata.ORIENTATION_UNDEFINED;
+
+        try {
+            if (length < 2) return NEED_MORE_DATA;
+
+            if (u8(0) == 0xFF && u8(1) == 0xD8) {
+                mFormat = Format.JPEG;
+                return parseJpeg();
+            }
+            if (u8(0) == 0x89 && startsWith(1, "PNG")) {
+                mFormat = Format.PNG;
+                return parsePng();
+            }
+            if (startsWith(0, "GIF")) {
+                mFormat = Format.GIF;
+                return parseGif();
+            }
+            if (startsWith(0, "RIFF")) {
+                return parseRiff();
+            }
+            if (startsWith(0, "BM")) {
+                mFormat = Format.BMP;
+                return parseBmp();
+            }
+            return length < 12 ? NEED_MORE_DATA : UNSUPPORTED;
+        } finally {
+            //Do not hold on to the caller's buffer
+            mData = null;
+        }
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the EXIF orientation, 1 to 8, or ImageMetadata.ORIENTATION_UNDEFINED
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Returns the result of the last parse() as metadata, or null if it did not return PARSED
+     */
+    public ImageMetadata toMetadata(String eTag) {
+        if (mWidth <= 0 || mHeight <= 0) return null;
+        return new ImageMetadata(mWidth, mHeight, mFormat.getMimeType(), mOrientation, eTag);
+    }
+
+    private int parseJpeg() {
+        int position = 2;
+
+        while (true) {
+            if (position + 4 > mLength) return NEED_MORE_DATA;
+            if (u8(position) != 0xFF) return UNSUPPORTED;
+
+            final int marker = u8(position + 1);
+
+            //Fill bytes before a marker
+            if (marker == 0xFF) {
+                position++;
+                continue;
+            }
+
+            //Markers without a segment
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                position += 2;
+                continue;
+            }
+
+            //Image data or the end came before any frame header
+            if (marker == 0xDA || marker == 0xD9) return UNSUPPORTED;
+
+            final int segmentLength = u16be(position + 2);
+            final int segment = position + 4;
+            final int segmentEnd = position + 2 + segmentLength;
+
+            if (marker == 0xE1) {
+                //Usually the Exif segment is too large to wait for, read what is there
+                parseExif(segment, Math.min(segmentEnd, mLength));
+            } else if (isStartOfFrame(marker)) {
+                if (segment + 5 > mLength) return NEED_MORE_DATA;
+                mHeight = u16be(segment + 1);
+                mWidth = u16be(segment + 3);
+                return mWidth > 0 && mHeight > 0 ? PARSED : UNSUPPORTED;
+            }
+
+            position = segmentEnd;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        //SOF0 to SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Looks for the orientation tag in IFD0 of an APP1 segment running from start to end
+     */
+    private void parseExif(int start, int end) {
+        if (start + 14 > end || !startsWith(start, "Exif") || u8(start + 4) != 0 || u8(start + 5) != 0) {
+            return;
+        }
+
+        final int tiff = start + 6;
+        final boolean littleEndian;
+        if (u8(tiff) == 'I' && u8(tiff + 1) == 'I') {
+            littleEndian = true;
+        } else if (u8(tiff) == 'M' && u8(tiff + 1) == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        if (u16(tiff + 2, littleEndian) != 42) return;
+
+        final long ifdOffset = u32(tiff + 4, littleEndian);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) return;
+
+        final int ifd = tiff + (int) ifdOffset;
+        final int entryCount = u16(ifd, littleEndian);
+        for (int i = 0; i < entryCount; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) return;
+
+            if (u16(entry, littleEndian) == EXIF_TAG_ORIENTATION) {
+                //A SHORT, stored in the first two bytes of the value field
+                final int orientation = u16(entry + 8, littleEndian);
+                if (orientation >= 1 && orientation <= 8) {
+                    mOrientation = orientation;
+                }
+                return;
+            }
+        }
+    }
+
+    private int parsePng() {
+        if (mLength < 24) return NEED_MORE_DATA;
+        if (!startsWith(12, "IHDR")) return UNSUPPORTED;
+
+        mWidth = (int) u32(16, false);
+        mHeight = (int) u32(20, false);
+        return mWidth > 0 && mHeight > 0 ? PARSED : UNSUPPORTED;
+    }
+
+    private int parseGif() {
+        if (mLength < 10) return NEED_MORE_DATA;
+
+        mWidth = u16(6, true);
+        mHeight = u16(8, true);
+        return mWidth > 0 && mHeight > 0 ? PARSED : UNSUPPORTED;
+    }
+
+    private int parseRiff() {
+        if (mLength < 16) return NEED_MORE_DATA;
+        if (!startsWith(8, "WEBP")) return UNSUPPORTED;
+        mFormat = Format.WEBP;
+
+        if (startsWith(12, "VP8 ")) {
+            //Lossy: a 3 byte frame tag, the start code, then 14 bit width and height
+            if (mLength < 30) return NEED_MORE_DATA;
+            if (u8(23) != 0x9D || u8(24) != 0x01 || u8(25) != 0x2A) return UNSUPPORTED;
+            mWidth = u16(26, true) & 0x3FFF;
+            mHeight = u16(28, true) & 0x3FFF;
+        } else if (startsWith(12, "VP8L")) {
+            //Lossless: a signature byte, then width - 1 and height - 1 in 14 bits each
+            if (mLength < 25) return NEED_MORE_DATA;
+            if (u8(20) != 0x2F) return UNSUPPORTED;
+            final long bits = u32(21, true);
+            mWidth = (int) (bits & 0x3FFF) + 1;
+            mHeight = (int) ((bits >> 14) & 0x3FFF) + 1;
+        } else if (startsWith(12, "VP8X")) {
+            //Extended: flags, 3 reserved bytes, then canvas width - 1 and height - 1 in 24 bits
+            if (mLength < 30) return NEED_MORE_DATA;
+            mWidth = u24le(24) + 1;
+            mHeight = u24le(27) + 1;
+        } else {
+            return UNSUPPORTED;
+        }
+        return mWidth > 0 && mHeight > 0 ? PARSED : UNSUPPORTED;
+    }
+
+    private int parseBmp() {
+        if (mLength < 26) return NEED_MORE_DATA;
+
+        final long headerSize = u32(14, true);
+        if (headerSize == 12) {
+            //BITMAPCOREHEADER has 16 bit dimensions
+            mWidth = u16(18, true);
+            mHeight = u16(20, true);
+        } else if (headerSize >= 40) {
+            mWidth = (int) u32(18, true);
+
+            //Negative for a top-down bitmap
+            mHeight = Math.abs((int) u32(22, true));
+        } else {
+            return UNSUPPORTED;
+        }
+        return mWidth > 0 && mHeight > 0 ? PARSED : UNSUPPORTED;
+    }
+
+    private boolean startsWith(int position, String ascii) {
+        if (position + ascii.length() > mLength) return false;
+        for (int i = 0; i < ascii.length(); i++) {
+            if (u8(position + i) != ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int u8(int position) {
+        return mData[mOffset + position] & 0xFF;
+    }
+
+    private int u16be(int position) {
+        return (u8(position) << 8) | u8(position + 1);
+    }
+
+    private int u16(int position, boolean littleEndian) {
+        return littleEndian ? u8(position) | (u8(position + 1) << 8) : u16be(position);
+    }
+
+    private int u24le(int position) {
+        return u8(position) | (u8(position + 1) << 8) | (u8(position + 2) << 16);
+    }
+
+    private long u32(int position, boolean littleEndian) {
+        final long high = u16(position + (littleEndian ? 2 : 0), littleEndian);
+        final long low = u16(position + (littleEndian ? 0 : 2), littleEndian);
+        return (high << 16) | low;
+    }
+}
@@ -0,0 +1,140 @@
+package ImageLoaderPackage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * What a decode needs to know about an image before it reads the pixel data: its size, its
+ * MIME type and its EXIF orientation. It is stored next to the image in the disk caches, so a
+ * disk hit can work out inSampleSize and pick a pooled inBitmap without an
+ * inJustDecodeBounds pass over the whole image.
+ *
+ * It has no android dependencies, so ImageHeaderParser and the JVM tools can produce it;
+ * ImageResizer reads it into BitmapFactory.Options.
+ *
+ * It also carries the HTTP freshness of the image: the ETag and Last-Modified validators it
+ * was served with and the time it stops being fresh, after which it can be revalidated.
+ */
+public final class ImageMetadata {
+    //EXIF orientation when the image has none or it is not known
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    //Bumped whenever the stored layout changes. Version 1 had no freshness
+    private static final int VERSION = 2;
+
+    private final int mWidth, mHeight;
+    private final String mMimeType;
+    private final int mOrientation;
+    private final String mETag;
+    private final long mLastModified;
+    private final long mExpires;
+
+    public ImageMetadata(int width, int height, String mimeType, int orientation, String eTag) {
+        this(width, height, mimeType, orientation, eTag, 0, 0);
+    }
+
+    /**
+     * @param lastModified The Last-Modified time in milliseconds, or 0 if not known
+     * @param expires The time in milliseconds the image stops being fresh, or 0 for never
+     */
+    public ImageMetadata(int width, int height, String mimeType, int orientation, String eTag,
+                         long lastModified, long expires) {
+        mWidth = width;
+        mHeight = height;
+        mMimeType = mimeType;
+        mOrientation = orientation;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpires = expires;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public long getExpires() {
+        return mExpires;
+    }
+
+    /**
+     * Returns a copy with the freshness of a later response for the same image
+     */
+    public ImageMetadata withFreshness(String eTag, long lastModified, long expires) {
+        return new ImageMetadata(mWidth, mHeight, mMimeType, mOrientation, eTag, lastModified,
+                expires);
+    }
+
+    public boolean isStale(long nowMillis) {
+        return mExpires != 0 && nowMillis >= mExpires;
+    }
+
+    /**
+     * Returns true if a conditional request can tell whether the image changed
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(VERSION);
+        data.writeInt(mWidth);
+        data.writeInt(mHeight);
+        data.writeByte(mOrientation);
+        data.writeUTF(mMimeType != null ? mMimeType : "");
+        data.writeUTF(mETag != null ? mETag : "");
+        data.writeLong(mLastModified);
+        data.writeLong(mExpires);
+        data.flush();
+    }
+
+    /**
+     * Reads metadata written by writeTo() of this or an earlier version
+     * @return the metadata, or null if it was written by an unknown version or is empty
+     */
+    public static ImageMetadata readFrom(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final int version = data.read();
+        if (version < 1 || version > VERSION) return null;
+
+        final int width = data.readInt();
+        final int height = data.readInt();
+        final int orientation = data.readByte();
+        final String mimeType = data.readUTF();
+        final String eTag = data.readUTF();
+        final long lastModified = version >= 2 ? data.readLong() : 0;
+        final long expires = version >= 2 ? data.readLong() : 0;
+        return new ImageMetadata(width, height, mimeType.length() > 0 ? mimeType : null,
+                orientation, eTag.length() > 0 ? eTag : null, lastModified, expires);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMetadata{" + mWidth + "x" + mHeight + " " + mMimeType
+                + " orientation=" + mOrientation + " etag=" + mETag
+                + " lastModified=" + mLastModified + " expires=" + mExpires + "}";
+    }
+}
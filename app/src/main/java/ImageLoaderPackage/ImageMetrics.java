@@ -0,0 +1,345 @@
+package ImageLoaderPackage;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process-wide registry of counters, gauges and histograms for the caches and thread
+ * pools. Recording is lock-free so it can sit on the bind and decode paths. Use snapshot()
+ * to read a consistent-enough copy, or dump() to print everything.
+ *
+ * Histograms use power-of-two buckets, so percentiles are reported as the upper bound of
+ * the bucket they fall in.
+ */
+public class ImageMetrics {
+
+    //Counter and histogram names shared by both pipelines
+    public static final String MEMORY_ENCODED = "memory.encoded";
+    public static final String MEMORY_DECODED = "memory.decoded";
+    public static final String MEMORY_ACTIVE = "memory.active";
+    public static final String DISK_ENCODED = "disk.encoded";
+    public static final String DISK_DECODED = "disk.decoded";
+    public static final String NETWORK = "network";
+    public static final String BITMAP_POOL = "pool.bitmap";
+
+    public static final String HIT = ".hit";
+    public static final String MISS = ".miss";
+    public static final String EVICTION = ".eviction";
+    public static final String BYTES = ".bytes";
+    public static final String BYTES_READ = ".bytes_read";
+    public static final String BYTES_WRITTEN = ".bytes_written";
+    public static final String LOAD_TIME_US = ".load_time_us";
+    public static final String WAIT_US = ".wait_us";
+    public static final String DOWNSAMPLED = ".downsampled";
+    public static final String REVALIDATE = ".revalidate";
+    public static final String NOT_MODIFIED = ".not_modified";
+    public static final String MODIFIED = ".modified";
+    public static final String OFFLINE = ".offline";
+    public static final String DISCARDED = ".discarded";
+    public static final String PRECONNECT = ".preconnect";
+    public static final String RETRY = ".retry";
+    public static final String FAILED = ".failed";
+    public static final String NEGATIVE_HIT = ".negative_hit";
+    public static final String CIRCUIT_OPEN = ".circuit_open";
+    public static final String HEDGE = ".hedge";
+    public static final String HEDGE_WON = ".hedge_won";
+    public static final String TIME_TO_FIRST_BYTE_US = ".ttfb_us";
+    public static final String RESUMED = ".resumed";
+    public static final String RANGE_IGNORED = ".range_ignored";
+    public static final String PARTIAL_SAVED = ".partial_saved";
+
+    public static final String DOWNLOAD_QUEUE_PENDING = "queue.download.pending";
+    public static final String DOWNLOAD_QUEUE_DEPTH = "queue.download.depth";
+    public static final String DOWNLOAD_QUEUE_WAIT_US = "queue.download.wait_us";
+    public static final String DECODE_QUEUE_PENDING = "queue.decode.pending";
+    public static final String DECODE_QUEUE_DEPTH = "queue.decode.depth";
+    public static final String DECODE_QUEUE_WAIT_US = "queue.decode.wait_us";
+    public static final String DECODE_TIME_US = "decode.time_us.";
+    public static final String DOWNLOAD_QUEUE_EXPIRED = "queue.download.expired";
+    public static final String DECODE_QUEUE_EXPIRED = "queue.decode.expired";
+    public static final String DECODE_DEADLINE_DOWNSAMPLED = "decode.deadline.downsampled";
+    public static final String DECODE_BUDGET = "decode.budget";
+
+    //Source pixel count classes used to bucket decode times
+    private static final long[] PIXEL_CLASS_LIMITS = {256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+    private static final String[] PIXEL_CLASS_NAMES = {"lt0.25mp", "lt1mp", "lt4mp", "ge4mp"};
+
+    private static final int BUCKET_COUNT = 64;
+
+    private static final ImageMetrics sInstance = new ImageMetrics();
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+
+    public static ImageMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it on first use
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            final Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Records how long decoding an image with the given number of source pixels took
+     */
+    public void recordDecode(long sourcePixels, long nanos) {
+        histogram(DECODE_TIME_US + getPixelClassName(sourcePixels)).record(nanos / 1000);
+    }
+
+    /**
+     * Returns the mean time decodes of images with about this many source pixels took, or 0
+     * if none has been recorded
+     */
+    public long estimateDecodeUs(long sourcePixels) {
+        final HistogramSnapshot decodes =
+                histogram(DECODE_TIME_US + getPixelClassName(sourcePixels)).snapshot();
+        return decodes.count > 0 ? (long) decodes.mean() : 0;
+    }
+
+    private static String getPixelClassName(long sourcePixels) {
+        int pixelClass = 0;
+        while (pixelClass < PIXEL_CLASS_LIMITS.length && sourcePixels >= PIXEL_CLASS_LIMITS[pixelClass]) {
+            pixelClass++;
+        }
+        return PIXEL_CLASS_NAMES[pixelClass];
+    }
+
+    /**
+     * Resets all counters and histograms. Gauges are left registered
+     */
+    public void reset() {
+        for (Counter counter : mCounters.values()) {
+            counter.mValue.set(0);
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    public Snapshot snapshot() {
+        final Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().getValue());
+        }
+
+        final Map<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(counters, histograms);
+    }
+
+    public void dump(PrintWriter writer) {
+        snapshot().dump(writer);
+    }
+
+    /**
+     * A value that is read when a snapshot is taken, such as a cache size
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * Records a non-negative value. Bucket i holds values in [2^(i-1), 2^i)
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+
+            mBuckets.incrementAndGet(bucketFor(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max;
+            while (value > (max = mMax.get())) {
+                if (mMax.compareAndSet(max, value)) {
+                    break;
+                }
+            }
+        }
+
+        private static int bucketFor(long value) {
+            return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        public HistogramSnapshot snapshot() {
+            final long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new HistogramSnapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+        }
+    }
+
+    public static class HistogramSnapshot {
+        private final long[] mBuckets;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given fraction of the values
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long bucket : mBuckets) {
+                total += bucket;
+            }
+            if (total == 0) return 0;
+
+            final long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * An immutable copy of every metric, sorted by name
+     */
+    public static class Snapshot {
+        private final Map<String, Long> mCounters;
+        private final Map<String, HistogramSnapshot> mHistograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /**
+         * Returns a counter or gauge value, 0 if it was never recorded
+         */
+        public long get(String name) {
+            final Long value = mCounters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        public HistogramSnapshot getHistogram(String name) {
+            return mHistograms.get(name);
+        }
+
+        /**
+         * Returns hits / (hits + misses) for a tier such as MEMORY_ENCODED
+         */
+        public double hitRatio(String tier) {
+            final long hits = get(tier + HIT);
+            final long total = hits + get(tier + MISS);
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        public Map<String, Long> getCounters() {
+            return mCounters;
+        }
+
+        public Map<String, HistogramSnapshot> getHistograms() {
+            return mHistograms;
+        }
+
+        public void dump(PrintWriter writer) {
+            for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+                writer.println(entry.getKey() + " " + entry.getValue());
+            }
+
+            for (Map.Entry<String, HistogramSnapshot> entry : mHistograms.entrySet()) {
+                final HistogramSnapshot histogram = entry.getValue();
+                writer.printf("%s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d%n",
+                        entry.getKey(), histogram.count, histogram.mean(),
+                        histogram.percentile(0.5), histogram.percentile(0.9),
+                        histogram.percentile(0.99), histogram.max);
+            }
+            writer.flush();
+        }
+    }
+}
@@ -1,24 +1,45 @@
 package ImageLoaderPackage;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Build;
 import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
 import java.io.FileDescriptor;
+import java.io.IOException;
 
 /**
  * Created by desmond on 8/5/14.
  */
 public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageResizer";
+
+    /**
+     * How closely a decode matches the requested size
+     */
+    public enum DecodeQuality {
+        //Power of two inSampleSize only, keeps up to twice the requested pixels
+        FAST,
+        //inSampleSize, then inDensity/inTargetDensity scaling inside the decoder, no extra pass
+        BALANCED,
+        //inSampleSize, then one filtered scale pass into a pooled bitmap, the best looking
+        HIGH
+    }
+
+    public static final DecodeQuality DEFAULT_DECODE_QUALITY = DecodeQuality.BALANCED;
+
     protected int mImageWidth;
     protected int mImageHeight;
+    protected DecodeQuality mDecodeQuality = DEFAULT_DECODE_QUALITY;
 
     /**
      * Initialize provide a single target image size
@@ -45,9 +66,17 @@ public class ImageResizer extends ImageWorker {
         setImageSize(size, size);
     }
 
+    /**
+     * Set how closely decoded bitmaps match the image size, trading decode time for memory
+     */
+    public void setDecodeQuality(DecodeQuality quality) {
+        mDecodeQuality = quality;
+    }
+
     private Bitmap processBitmap(int resID) {
         Log.i(TAG, "ImageResizer ProcessBitmap - " + resID);
-        return decodeSampledBitmapFromResource(mResources, resID, mImageWidth, mImageHeight, getImageCache());
+        return decodeSampledBitmapFromResource(mResources, resID, mImageWidth, mImageHeight,
+                getImageCache(), mDecodeQuality);
     }
 
     @Override
@@ -55,11 +84,39 @@ public class ImageResizer extends ImageWorker {
         return processBitmap(Integer.parseInt(String.valueOf(data)));
     }
 
+    @Override
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight,
+                                   Transformation transformation) {
+        return decodeSampledBitmapFromResource(mResources, Integer.parseInt(String.valueOf(data)),
+                reqWidth, reqHeight, getImageCache(), mDecodeQuality);
+    }
+
+    /**
+     * The image size set on this ImageResizer, unless it is SIZE_FROM_VIEW
+     */
+    @Override
+    protected int getDefaultWidth() {
+        return mImageWidth;
+    }
+
+    @Override
+    protected int getDefaultHeight() {
+        return mImageHeight;
+    }
+
     /**
      * Decode and sample down a bitmap from a byte stream
      */
-    @SuppressLint("NewApi")
     public static Bitmap decodeSampledBitmapFromByte(Context context, byte[] bitmapBytes, ImageCache cache) {
+        return decodeSampledBitmapFromByte(context, bitmapBytes, cache, DEFAULT_DECODE_QUALITY);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a byte stream to the screen size
+     */
+    @SuppressLint("NewApi")
+    public static Bitmap decodeSampledBitmapFromByte(Context context, byte[] bitmapBytes,
+                                                     ImageCache cache, DecodeQuality quality) {
         Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
         int reqWidth;
         int reqHeight;
@@ -74,13 +131,38 @@ public class ImageResizer extends ImageWorker {
             reqHeight = display.getHeight();
         }
 
+        return decodeSampledBitmapFromByte(bitmapBytes, reqWidth, reqHeight, cache, quality);
+    }
 
+    /**
+     * Decode and sample down a bitmap from a byte stream to the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByte(byte[] bitmapBytes, int reqWidth, int reqHeight,
+                                                     ImageCache cache) {
+        return decodeSampledBitmapFromByte(bitmapBytes, reqWidth, reqHeight, cache, DEFAULT_DECODE_QUALITY);
+    }
+
+    public static Bitmap decodeSampledBitmapFromByte(byte[] bitmapBytes, int reqWidth, int reqHeight,
+                                                     ImageCache cache, DecodeQuality quality) {
+        return decodeSampledBitmapFromByte(bitmapBytes, null, reqWidth, reqHeight, cache, quality);
+    }
+
+    /**
+     * @param metadata The stored metadata of bitmapBytes, which saves the bounds pass. May be null
+     */
+    public static Bitmap decodeSampledBitmapFromByte(byte[] bitmapBytes, ImageMetadata metadata,
+                                                     int reqWidth, int reqHeight, ImageCache cache,
+                                                     DecodeQuality quality) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;          //Query bitmap without allocating memory for its pixel
-        BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length, options);
+        if (metadata != null) {
+            applyMetadata(metadata, options);
+        } else {
+            options.inJustDecodeBounds = true;          //Query bitmap without allocating memory for its pixel
+            BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length, options);
+        }
 
-        //Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        //Calculate inSampleSize and the scaling down to the target size
+        final Point target = prepareDecode(options, reqWidth, reqHeight, quality);
 
         //Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -89,7 +171,109 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length, options);
+        final long reserved = admitDecode(options);
+        if (reserved < 0) return null;
+
+        try {
+            final long sourcePixels = (long) options.outWidth * options.outHeight;
+            final long decodeStart = System.nanoTime();
+            final Bitmap bitmap = finishDecode(
+                    BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length, options),
+                    options, target, quality);
+            ImageMetrics.getInstance().recordDecode(sourcePixels, System.nanoTime() - decodeStart);
+            return bitmap;
+        } finally {
+            DecodeBudget.getInstance().release(reserved);
+        }
+    }
+
+    /**
+     * Decode only the centre of a byte stream that has the aspect ratio of reqWidth x reqHeight,
+     * sampled down to no less than that size. This is all a center crop into such a cell
+     * keeps, so a tall panorama in a square cell decodes a fraction of its pixels. Formats
+     * BitmapRegionDecoder cannot read, such as GIF, are decoded in full and cropped later
+     */
+    public static Bitmap decodeCenterCropFromByte(Context context, byte[] bitmapBytes,
+                                                  int reqWidth, int reqHeight, ImageCache cache) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(bitmapBytes, 0, bitmapBytes.length, false);
+        } catch (IOException e) {
+            Log.i(TAG, "Region decode not supported - " + e);
+        }
+
+        if (decoder == null) {
+            return decodeSampledBitmapFromByte(bitmapBytes, reqWidth, reqHeight, cache);
+        }
+
+        try {
+            return decodeCenterCrop(decoder, reqWidth, reqHeight, cache);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Bitmap decodeCenterCrop(BitmapRegionDecoder decoder, int reqWidth, int reqHeight,
+                                           ImageCache cache) {
+        final Rect region = getCenterCropRegion(decoder.getWidth(), decoder.getHeight(),
+                reqWidth, reqHeight);
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(region.width(), region.height(),
+                reqWidth, reqHeight);
+
+        options.outWidth = region.width();
+        options.outHeight = region.height();
+
+        //Region decodes only take inBitmap from Jelly Bean
+        if (BackgroundUtils.hasJellyBean()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        final long reserved = admitDecode(options);
+        if (reserved < 0) return null;
+
+        try {
+            final long sourcePixels = (long) region.width() * region.height();
+            long decodeStart = System.nanoTime();
+            Bitmap bitmap;
+            try {
+                bitmap = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) throw e;
+
+                //The pooled bitmap did not fit after all, retry with a fresh allocation
+                if (cache != null) {
+                    cache.getBitmapPool().put(options.inBitmap);
+                }
+                options.inBitmap = null;
+                decodeStart = System.nanoTime();
+                bitmap = decoder.decodeRegion(region, options);
+            }
+            ImageMetrics.getInstance().recordDecode(sourcePixels, System.nanoTime() - decodeStart);
+            return bitmap;
+        } finally {
+            DecodeBudget.getInstance().release(reserved);
+        }
+    }
+
+    /**
+     * Returns the largest centred rectangle of a width x height image that has the aspect
+     * ratio of reqWidth x reqHeight
+     */
+    public static Rect getCenterCropRegion(int width, int height, int reqWidth, int reqHeight) {
+        if ((long) width * reqHeight > (long) reqWidth * height) {
+            //Wider than the target, cut the sides
+            final int cropWidth = (int) ((long) height * reqWidth / reqHeight);
+            final int left = (width - cropWidth) / 2;
+            return new Rect(left, 0, left + cropWidth, height);
+        }
+
+        //Taller than the target, cut the top and bottom
+        final int cropHeight = (int) ((long) width * reqHeight / reqWidth);
+        final int top = (height - cropHeight) / 2;
+        return new Rect(0, top, width, top + cropHeight);
     }
 
     /**
@@ -97,14 +281,35 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth,
                                                            int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, cache,
+                DEFAULT_DECODE_QUALITY);
+    }
 
-        //First decode with inJustDecodeBounds=true to check dimensions
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth,
+                                                           int reqHeight, ImageCache cache,
+                                                           DecodeQuality quality) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, null, reqWidth, reqHeight, cache,
+                quality);
+    }
+
+    /**
+     * @param metadata The stored metadata of the image, which saves the bounds pass. May be null
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor,
+                                                           ImageMetadata metadata, int reqWidth,
+                                                           int reqHeight, ImageCache cache,
+                                                           DecodeQuality quality) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        if (metadata != null) {
+            applyMetadata(metadata, options);
+        } else {
+            //First decode with inJustDecodeBounds=true to check dimensions
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
 
-        //Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        //Calculate inSampleSize and the scaling down to the target size
+        final Point target = prepareDecode(options, reqWidth, reqHeight, quality);
 
         //Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -113,7 +318,15 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        final long reserved = admitDecode(options);
+        if (reserved < 0) return null;
+
+        try {
+            return finishDecode(BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options),
+                    options, target, quality);
+        } finally {
+            DecodeBudget.getInstance().release(reserved);
+        }
     }
 
     /**
@@ -121,14 +334,21 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
                                                          int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromResource(res, resId, reqWidth, reqHeight, cache,
+                DEFAULT_DECODE_QUALITY);
+    }
+
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
+                                                         int reqWidth, int reqHeight, ImageCache cache,
+                                                         DecodeQuality quality) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeResource(res, resId, options);
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        // Calculate inSampleSize and the scaling down to the target size
+        final Point target = prepareDecode(options, reqWidth, reqHeight, quality);
 
 
         // Decode bitmap with inSampleSize set
@@ -139,7 +359,14 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeResource(res, resId, options);
+        final long reserved = admitDecode(options);
+        if (reserved < 0) return null;
+
+        try {
+            return finishDecode(BitmapFactory.decodeResource(res, resId, options), options, target, quality);
+        } finally {
+            DecodeBudget.getInstance().release(reserved);
+        }
     }
 
     /**
@@ -147,11 +374,16 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromPath(String path, int reqWidth, int reqHeight,
                                                      ImageCache cache) {
+        return decodeSampledBitmapFromPath(path, reqWidth, reqHeight, cache, DEFAULT_DECODE_QUALITY);
+    }
+
+    public static Bitmap decodeSampledBitmapFromPath(String path, int reqWidth, int reqHeight,
+                                                     ImageCache cache, DecodeQuality quality) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(path, options);
 
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        final Point target = prepareDecode(options, reqWidth, reqHeight, quality);
 
         options.inJustDecodeBounds = false;
 
@@ -160,7 +392,27 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeFile(path, options);
+        final long reserved = admitDecode(options);
+        if (reserved < 0) return null;
+
+        try {
+            return finishDecode(BitmapFactory.decodeFile(path, options), options, target, quality);
+        } finally {
+            DecodeBudget.getInstance().release(reserved);
+        }
+    }
+
+    /**
+     * Reserves room for a decode in the DecodeBudget, which may sample it down further.
+     * Returns -1 if the thread was interrupted while waiting, the decode is abandoned then
+     */
+    private static long admitDecode(BitmapFactory.Options options) {
+        try {
+            return DecodeBudget.getInstance().admit(options);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
     }
 
     private static void addInBitmapOptions(BitmapFactory.Options options, ImageCache cache) {
@@ -170,7 +422,7 @@ public class ImageResizer extends ImageWorker {
 
         if (cache != null) {
             //Try and find a bitmap to use for inBitmap
-            Bitmap inBitmap = cache.getBitmapFromReusableSet(options);
+            Bitmap inBitmap = cache.getBitmapPool().get(options);
 
             if (inBitmap != null) {
                 Log.i(TAG, "Use inBitmap");
@@ -179,6 +431,114 @@ public class ImageResizer extends ImageWorker {
         }
     }
 
+    /**
+     * Sets up options, whose outWidth and outHeight have been read, to decode close to
+     * reqWidth x reqHeight. Every quality sets inSampleSize. BALANCED also sets
+     * inDensity/inTargetDensity so the decoder scales the rest of the way itself.
+     * @return the exact size the image should end up at, for finishDecode(), or null if
+     *         the sampled decode is all that is wanted
+     */
+    public static Point prepareDecode(BitmapFactory.Options options, int reqWidth, int reqHeight,
+                                      DecodeQuality quality) {
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        final Point target = quality == DecodeQuality.FAST || reqWidth <= 0 || reqHeight <= 0
+                ? null : getTargetSize(width, height, reqWidth, reqHeight);
+
+        if (target == null) {
+            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            return null;
+        }
+
+        //Largest power of two that still leaves at least the target size
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= target.x && height / (inSampleSize * 2) >= target.y) {
+            inSampleSize *= 2;
+        }
+        options.inSampleSize = inSampleSize;
+
+        final int sampledWidth = width / inSampleSize;
+        if (quality == DecodeQuality.BALANCED && sampledWidth > target.x) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = target.x;
+        }
+        return target;
+    }
+
+    /**
+     * Reads the metadata of encoded image bytes from their header, or with a bounds pass for
+     * a format ImageHeaderParser does not know
+     * @return the metadata, or null if the bytes are not an image BitmapFactory can decode
+     */
+    public static ImageMetadata decodeMetadata(byte[] bytes, String eTag) {
+        final ImageHeaderParser parser = ImageHeaderParser.get();
+        if (parser.parse(bytes, 0, bytes.length) == ImageHeaderParser.PARSED) {
+            return parser.toMetadata(eTag);
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        return new ImageMetadata(options.outWidth, options.outHeight, options.outMimeType,
+                ImageMetadata.ORIENTATION_UNDEFINED, eTag);
+    }
+
+    /**
+     * Fills in options from stored metadata the way an inJustDecodeBounds pass would
+     */
+    public static void applyMetadata(ImageMetadata metadata, BitmapFactory.Options options) {
+        options.outWidth = metadata.getWidth();
+        options.outHeight = metadata.getHeight();
+        options.outMimeType = metadata.getMimeType();
+    }
+
+    /**
+     * Finishes a decode set up by prepareDecode(). A density scaled bitmap is given the screen
+     * density back so it is drawn at its pixel size. With HIGH the bitmap is scaled to exactly
+     * the target size in one filtered pass and the sampled bitmap goes back to the pool
+     */
+    public static Bitmap finishDecode(Bitmap bitmap, BitmapFactory.Options options, Point target,
+                                      DecodeQuality quality) {
+        if (bitmap == null || target == null) {
+            return bitmap;
+        }
+
+        if (options.inDensity != 0) {
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+
+        //Also leaves a bitmap the DecodeBudget sampled below the target as it is
+        if (quality != DecodeQuality.HIGH
+                || bitmap.getWidth() < target.x || bitmap.getHeight() < target.y) {
+            return bitmap;
+        }
+
+        return TransformationContext.get().apply(new FitCenterTransformation(target.x, target.y), bitmap);
+    }
+
+    /**
+     * Returns the size an image of width x height is scaled down to so that it just covers
+     * reqWidth x reqHeight, or null if it should be left at its size
+     */
+    private static Point getTargetSize(int width, int height, int reqWidth, int reqHeight) {
+        double scale = Math.max((double) reqWidth / width, (double) reqHeight / height);
+
+        //As in calculateInSampleSize(), anything more than 2x the requested pixels is
+        //scaled down further, so panoramas do not stay huge
+        final double maxPixels = 2.0 * reqWidth * reqHeight;
+        if ((double) width * height * scale * scale > maxPixels) {
+            scale = Math.sqrt(maxPixels / ((double) width * height));
+        }
+
+        if (scale >= 1) return null;
+
+        return new Point(Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale)));
+    }
+
     /**
      * Calculate an inSampleSize for use in a {@link android.graphics.BitmapFactory.Options} object when decoding
      * bitmaps using the decode* methods from {@link android.graphics.BitmapFactory}. This implementation calculates
@@ -186,8 +546,14 @@ public class ImageResizer extends ImageWorker {
      * having a width and height equal to or larger than the requested width and height
      */
     public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        final int height = options.outHeight;
-        final int width = options.outWidth;
+        return calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+    }
+
+    /**
+     * Calculate an inSampleSize for an image of width x height, see
+     * calculateInSampleSize(BitmapFactory.Options, int, int)
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
         int inSampleSize = 1;
 
         if (height > reqHeight || width > reqWidth) {
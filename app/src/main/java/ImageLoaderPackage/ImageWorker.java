@@ -3,22 +3,15 @@ package ImageLoaderPackage;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapShader;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.RectF;
-import android.graphics.Shader.TileMode;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
 import android.os.AsyncTask;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
@@ -35,6 +28,8 @@ public abstract class ImageWorker {
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
     private boolean mExitTasksEarly = false;
+    private CircleCropTransformation mCircleCrop;
+    private CachePolicy mCachePolicy = CachePolicy.CACHE_FIRST;
     protected boolean mPauseWork = false;
     private final Object mPauseWorkLock = new Object();
 
@@ -46,6 +41,11 @@ public abstract class ImageWorker {
     private static final int MESSAGE_FLUSH = 2;
     private static final int MESSAGE_CLOSE = 3;
 
+    //Width or height of a request that takes its size from the ImageView
+    public static final int SIZE_FROM_VIEW = 0;
+
+    private final ViewSizeResolver mSizeResolver = new ViewSizeResolver();
+
     /**
      * Subclasses should override this to define any processing or work that must happen to produce
      * the final bitmap. This will be executed in a background thread and be long running. For
@@ -53,6 +53,37 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Like processBitmap(Object), for a request that wants reqWidth x reqHeight and knowing the
+     * transformation that will be applied to the result, so that subclasses can decode less,
+     * for example only the region a CroppingTransformation keeps. The transformation is still
+     * applied afterwards
+     */
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight,
+                                   Transformation transformation) {
+        return processBitmap(data);
+    }
+
+    /**
+     * Returns the size to load at when a request does not give one, SIZE_FROM_VIEW to use the
+     * size of the ImageView
+     */
+    protected int getDefaultWidth() {
+        return SIZE_FROM_VIEW;
+    }
+
+    protected int getDefaultHeight() {
+        return SIZE_FROM_VIEW;
+    }
+
+    /**
+     * Returns true if processBitmap() loads from the network. Requests are then switched to
+     * CachePolicy.OFFLINE while there is no connectivity
+     */
+    protected boolean usesNetwork() {
+        return false;
+    }
+
 
     protected ImageWorker(Context context) {
         mResources = context.getResources();
@@ -65,20 +96,87 @@ public abstract class ImageWorker {
      * Otherwise, AsyncTask created to asynchronously load the bitmap
      */
     public void loadImage(Object data, ImageView imageView, int loadingBitmapResId) {
+        loadImage(data, imageView, null, loadingBitmapResId);
+    }
+
+    /**
+     * Load an image into an ImageView after applying transformation to it, which may be null.
+     * The transformed image is what gets cached, keyed by the transformation's signature.
+     * Keep a transformation around and reuse it rather than creating one per call
+     */
+    public void loadImage(Object data, ImageView imageView, Transformation transformation,
+                          int loadingBitmapResId) {
+        loadImage(data, imageView, getDefaultWidth(), getDefaultHeight(), transformation,
+                loadingBitmapResId);
+    }
+
+    /**
+     * Load an image at width x height. SIZE_FROM_VIEW for either takes it from the ImageView,
+     * less its padding, and waits for the view to be laid out if it has not been yet. The
+     * size is part of the cache key, so every cell size is cached separately
+     */
+    public void loadImage(Object data, ImageView imageView, int width, int height,
+                          Transformation transformation, int loadingBitmapResId) {
+        loadImage(data, imageView, width, height, transformation, mCachePolicy, loadingBitmapResId);
+    }
+
+    /**
+     * Load an image at width x height with the given cache policy. processBitmap() is only
+     * called for policies that use the network, the cache has no freshness so
+     * STALE_WHILE_REVALIDATE loads like CACHE_FIRST
+     */
+    public void loadImage(final Object data, ImageView imageView, final int width, final int height,
+                          final Transformation transformation, final CachePolicy cachePolicy,
+                          final int loadingBitmapResId) {
         if (data == null) {return;}
 
+        //A request still waiting for this view to be laid out is superseded
+        mSizeResolver.clear(imageView);
+
+        final int targetWidth = width != SIZE_FROM_VIEW ? width : ViewSizeResolver.getTargetWidth(imageView);
+        final int targetHeight = height != SIZE_FROM_VIEW ? height : ViewSizeResolver.getTargetHeight(imageView);
+
+        if (targetWidth > 0 && targetHeight > 0) {
+            loadImageAtSize(data, imageView, targetWidth, targetHeight, transformation, cachePolicy,
+                    loadingBitmapResId);
+            return;
+        }
+
+        //Stop whatever the view was loading before, then wait for layout
+        if (!cancelPotentialWork(data, imageView)) return;
+
+        mSizeResolver.getSize(imageView, new ViewSizeResolver.SizeReadyCallback() {
+            @Override
+            public void onSizeReady(View view, int viewWidth, int viewHeight) {
+                loadImageAtSize(data, (ImageView) view,
+                        width != SIZE_FROM_VIEW ? width : viewWidth,
+                        height != SIZE_FROM_VIEW ? height : viewHeight,
+                        transformation, cachePolicy, loadingBitmapResId);
+            }
+        });
+    }
+
+    private void loadImageAtSize(Object data, ImageView imageView, int width, int height,
+                                 Transformation transformation, CachePolicy cachePolicy,
+                                 int loadingBitmapResId) {
+        final CacheKey key = new CacheKey(data, width, height,
+                transformation != null ? transformation.getKey() : null);
+        final CachePolicy policy = applyConnectivity(cachePolicy);
+
         BitmapDrawable value = null;
-        if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+        if (mImageCache != null && policy.readsCache()) {
+            value = mImageCache.getBitmapFromMemCache(key);
         }
 
         if (value != null) {
             Log.i(TAG, "Bitmap found in memCache");
             imageView.setImageDrawable(value);
+            releaseBoundLease(imageView, value);
 
         } else if (cancelPotentialWork(data, imageView)) {
             //Create new workerTask and asyncDrawable to bind the imageView to its task
-            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, loadingBitmapResId);
+            final BitmapWorkerTask task = new BitmapWorkerTask(data, key, transformation, policy,
+                    imageView, loadingBitmapResId);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, getBitmapFromResID(loadingBitmapResId), task);
             imageView.setImageDrawable(asyncDrawable);
@@ -88,30 +186,63 @@ public abstract class ImageWorker {
     }
 
     /**
-     * Load circular image
+     * Loads an image into the disk cache ahead of time, without decoding it for display or
+     * taking memory cache space. Nothing is fetched if it is cached already or there is no
+     * connectivity. width and height must be the size the image will be loaded at
      */
-    public void loadCircularImage(Object data, ImageView imageView,
-                                  int size, int borderWidth, int loadingBitmapResId) {
-        if (data == null) {return;}
+    public void prefetch(final Object data, int width, int height, final Transformation transformation) {
+        if (data == null || mImageCache == null) return;
 
-        BitmapDrawable value = null;
+        final CacheKey key = new CacheKey(data, width, height,
+                transformation != null ? transformation.getKey() : null);
+        if (!applyConnectivity(CachePolicy.CACHE_FIRST).usesNetwork()) return;
 
-        if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data) + "/" + size + "/" + borderWidth);
-        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ImageCache imageCache = mImageCache;
+                if (imageCache == null || mExitTasksEarly || imageCache.isInDiskCache(key)) return;
 
-        if (value != null) {
-            Log.i(TAG, "Bitmap found in memCache");
-            imageView.setImageDrawable(value);
+                Bitmap bitmap = processBitmap(data, key.getWidth(), key.getHeight(), transformation);
+                if (bitmap == null) return;
 
-        } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, size, borderWidth, loadingBitmapResId);
-            final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mResources, getBitmapFromResID(loadingBitmapResId), task);
-            imageView.setImageDrawable(asyncDrawable);
+                final TransformationContext context = TransformationContext.get();
+                if (transformation != null) {
+                    bitmap = context.apply(transformation, bitmap);
+                }
+                imageCache.addBitmapToDiskCache(key, bitmap);
 
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                //Nobody displays it, its memory goes straight back to the pool
+                context.recycle(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Sets the policy of requests that do not give one, CachePolicy.CACHE_FIRST by default
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+    }
+
+    private CachePolicy applyConnectivity(CachePolicy cachePolicy) {
+        return usesNetwork() ? ConnectivityMonitor.getInstance().apply(cachePolicy) : cachePolicy;
+    }
+
+    /**
+     * Load circular image, see CircleCropTransformation
+     */
+    public void loadCircularImage(Object data, ImageView imageView,
+                                  int size, int borderWidth, int loadingBitmapResId) {
+        //Lists usually ask for the same circle over and over, reuse it
+        CircleCropTransformation circleCrop = mCircleCrop;
+        if (circleCrop == null || circleCrop.getSize() != size
+                || circleCrop.getBorderWidth() != borderWidth) {
+            circleCrop = new CircleCropTransformation(size, borderWidth);
+            mCircleCrop = circleCrop;
         }
+
+        loadImage(data, imageView, circleCrop, loadingBitmapResId);
     }
 
     public void setLoadingImage(Bitmap bitmap) {
@@ -129,6 +260,7 @@ public abstract class ImageWorker {
     public void addImageCache(FragmentManager fm, ImageCache.ImageCacheParams params) {
         mImageCacheParams = params;
         mImageCache = ImageCache.getInstance(fm, mImageCacheParams);
+        MemoryTrimmer.getInstance().register(mContext);
         new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
     }
 
@@ -219,34 +351,46 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Gives back a lease on a drawable that was just bound to imageView. A RecyclingImageView
+     * takes its own display lease, a plain ImageView does not, so there the lease is kept and
+     * the bitmap is never pooled while it may still be on screen
+     */
+    private static void releaseBoundLease(ImageView imageView, BitmapDrawable value) {
+        if (imageView instanceof RecyclingImageView) {
+            releaseLease(value);
+        }
+    }
+
+    private static void releaseLease(BitmapDrawable value) {
+        if (value instanceof RecyclingBitmapDrawable) {
+            ((RecyclingBitmapDrawable) value).release();
+        }
+    }
+
     /**
      * The actual AsyncTask that will asynchronously process the image.
      */
     private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
         private Object mData;
-        private boolean mIsCircular;
-        private int mCircleSize, mBorderWidth, mLoadingImageId;
+        private final CacheKey mKey;
+        private final Transformation mTransformation;
+        private final CachePolicy mCachePolicy;
+        private int mLoadingImageId;
         private final WeakReference<ImageView> imageViewReference;
 
-        public BitmapWorkerTask(Object data, ImageView imageView, int loadingImageId) {
+        public BitmapWorkerTask(Object data, CacheKey key, Transformation transformation,
+                                CachePolicy cachePolicy, ImageView imageView, int loadingImageId) {
             mData = data;
-            mIsCircular = false;
+            mKey = key;
+            mTransformation = transformation;
+            mCachePolicy = cachePolicy;
             mLoadingImageId = loadingImageId;
             imageViewReference = new WeakReference<ImageView>(imageView);
         }
 
-        public BitmapWorkerTask(Object data, ImageView imageView, int size, int borderWidth, int loadingImageId) {
-            mData = data;
-            mIsCircular = true;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mCircleSize = size;
-            mBorderWidth = borderWidth;
-            mLoadingImageId = loadingImageId;
-        }
-
         @Override
         protected BitmapDrawable doInBackground(Void... params) {
-            final String dataString = String.valueOf(mData);
             Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
@@ -263,18 +407,18 @@ public abstract class ImageWorker {
             //another thread and the imageView that was originally bound to this task
             //is still bound bck to this task & "exit early" flag is not set then try
             //and fetch the bitmap from the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString + (mIsCircular ? ("/" + mCircleSize + "/" + mBorderWidth): ""));
+            if (mImageCache != null && mCachePolicy.readsCache() && !isCancelled()
+                    && getAttachedImageView() != null && !mExitTasksEarly) {
+                bitmap = mImageCache.getBitmapFromDiskCache(mKey);
             }
 
             //If the bitmap was not found in the cache and this task has not been cancelled by
             //another thread and the ImageView that was originally bound to this task is still
             //bounded back to this task and "exit early" flag is not set, then call the main
             //process method
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(mData);
+            if (bitmap == null && mCachePolicy.usesNetwork() && !isCancelled()
+                    && getAttachedImageView() != null && !mExitTasksEarly) {
+                bitmap = processBitmap(mData, mKey.getWidth(), mKey.getHeight(), mTransformation);
             }
 
             //If the bitmap was processed and the image cache is available, then add the processed
@@ -282,19 +426,20 @@ public abstract class ImageWorker {
             //if it was, and the thread is still running, we may as well add the processed the bitmap to
             //our cache as it might be used again in the future
             if (bitmap != null) {
-                if (mIsCircular) {
-                    bitmap = getCircularBitmap(bitmap, mCircleSize, mCircleSize/2, mBorderWidth);
+                if (mTransformation != null) {
+                    bitmap = TransformationContext.get().apply(mTransformation, bitmap);
                 }
 
-                if (BackgroundUtils.hasHoneycomb()) {
-                    drawable = new BitmapDrawable(mResources, bitmap);
-                } else {
-                    drawable = new RecyclingBitmapDrawable(mResources, bitmap);
-                }
+                //Leased until onPostExecute() binds it, so the cache evicting it in the meantime
+                //cannot hand the bitmap to the pool
+                final RecyclingBitmapDrawable recyclingDrawable =
+                        new RecyclingBitmapDrawable(mResources, bitmap);
+                recyclingDrawable.acquire();
+                drawable = recyclingDrawable;
 
                 //Save to cache
                 if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(dataString + (mIsCircular ? ("/" + mCircleSize + "/" + mBorderWidth): ""), drawable);
+                    mImageCache.addBitmapToCache(mKey, drawable);
                 }
 
             } else {
@@ -315,12 +460,16 @@ public abstract class ImageWorker {
             final ImageView imageView = getAttachedImageView();
             if (value != null && imageView != null) {
                 setImageDrawable(imageView, value, mLoadingImageId);
+                releaseBoundLease(imageView, value);
+            } else {
+                releaseLease(value);
             }
         }
 
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
+            releaseLease(value);
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
@@ -334,41 +483,6 @@ public abstract class ImageWorker {
             }
             return null;
         }
-
-        private Bitmap getCircularBitmap(Bitmap bitmap, int size,
-                                         float radius, int borderWidth) {
-            //Extract the bitmap to the desired size
-            bitmap = ThumbnailUtils.extractThumbnail(bitmap, size, size);
-
-            //Draw the bitmap into a circle
-            BitmapShader shader = new BitmapShader(bitmap, TileMode.CLAMP, TileMode.CLAMP);
-
-            Paint drawImagePaint = new Paint();
-            drawImagePaint.setAntiAlias(true);
-            drawImagePaint.setShader(shader);
-
-            RectF bitmapRect = new RectF(0.0f, 0.0f, size, size);
-
-            // rect contains the bounds of the shape
-            // radius is the radius in pixels of the rounded corners
-            // paint contains the shader that will texture the shape
-            Bitmap result = Bitmap.createBitmap(size, size, Config.ARGB_8888);
-            Canvas canvas = new Canvas(result);
-            canvas.drawCircle(size/2, size/2, radius, drawImagePaint);
-
-            //Draw the border
-            Paint borderPaint = new Paint();
-            borderPaint.setStyle(Paint.Style.STROKE);
-            borderPaint.setColor(Color.WHITE);
-            borderPaint.setStrokeWidth(borderWidth);
-            borderPaint.setAntiAlias(true);
-            radius -= Math.ceil(borderWidth / 2.0);
-            canvas.drawCircle(size/2, size/2, radius, borderPaint);
-
-            return result;
-        }
-
-
     }
 
     /**
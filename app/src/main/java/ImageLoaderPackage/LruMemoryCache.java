@@ -0,0 +1,111 @@
+package ImageLoaderPackage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used eviction on top of an access-ordered LinkedHashMap. Behaves like
+ * android.util.LruCache.
+ */
+public class LruMemoryCache<K, V> extends MemoryCache<K, V> {
+    private final LinkedHashMap<K, V> mMap = new LinkedHashMap<K, V>(0, 0.75f, true);
+    private int mSize;
+
+    public LruMemoryCache(int maxSize, Callbacks<K, V> callbacks) {
+        super(maxSize, callbacks);
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        synchronized (this) {
+            return mMap.get(key);
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        V previous;
+        synchronized (this) {
+            mSize += safeSizeOf(key, value);
+            previous = mMap.put(key, value);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+            }
+        }
+
+        if (previous != null) {
+            mCallbacks.entryRemoved(false, key, previous, value);
+        }
+
+        trimToSize(mMaxSize);
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        V previous;
+        synchronized (this) {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+            }
+        }
+
+        if (previous != null) {
+            mCallbacks.entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    @Override
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    @Override
+    public void resize(int maxSize) {
+        checkMaxSize(maxSize);
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes the eldest entries until the total size is at or below maxSize
+     */
+    private void trimToSize(int maxSize) {
+        while (true) {
+            K key;
+            V value;
+            synchronized (this) {
+                if (mSize <= maxSize || mMap.isEmpty()) {
+                    break;
+                }
+
+                final Map.Entry<K, V> toEvict = mMap.entrySet().iterator().next();
+                key = toEvict.getKey();
+                value = toEvict.getValue();
+                mMap.remove(key);
+                mSize -= safeSizeOf(key, value);
+            }
+
+            mCallbacks.entryRemoved(true, key, value, null);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ImageLoaderPackage;
+
+/**
+ * A size-bounded memory cache with a pluggable eviction policy. It keeps the contract of
+ * android.util.LruCache: entries are weighed with sizeOf(), and entryRemoved() is called
+ * outside of any lock for every entry that is evicted, removed or replaced, so the caller
+ * can hand bitmaps back to the reuse pool.
+ */
+public abstract class MemoryCache<K, V> {
+
+    /**
+     * The available eviction policies
+     */
+    public enum Policy {
+        //Least recently used, the behaviour of android.util.LruCache
+        LRU,
+
+        //Window TinyLFU: a small LRU window in front of a frequency-admitted segmented LRU
+        TINY_LFU,
+
+        //Lock-free reads and striped writes with CLOCK eviction, for caches hit from many threads
+        CONCURRENT
+    }
+
+    /**
+     * Weighs entries and receives removal notifications, see LruCache.sizeOf() and
+     * LruCache.entryRemoved()
+     */
+    public interface Callbacks<K, V> {
+
+        int sizeOf(K key, V value);
+
+        /**
+         * @param evicted true if the entry was removed to make space or by evictAll(), false
+         *                if it was removed by remove() or replaced by put()
+         * @param newValue the replacing value when the entry was replaced by put(), else null
+         */
+        void entryRemoved(boolean evicted, K key, V oldValue, V newValue);
+    }
+
+    protected final Callbacks<K, V> mCallbacks;
+    protected volatile int mMaxSize;
+
+    protected MemoryCache(int maxSize, Callbacks<K, V> callbacks) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Creates a cache that uses the given policy
+     */
+    public static <K, V> MemoryCache<K, V> create(Policy policy, int maxSize, Callbacks<K, V> callbacks) {
+        switch (policy) {
+            case TINY_LFU:
+                return new TinyLfuMemoryCache<K, V>(maxSize, callbacks);
+            case CONCURRENT:
+                return new ConcurrentMemoryCache<K, V>(maxSize, callbacks);
+            case LRU:
+            default:
+                return new LruMemoryCache<K, V>(maxSize, callbacks);
+        }
+    }
+
+    /**
+     * Returns the value for key, or null. A hit counts as an access for the policy
+     */
+    public abstract V get(K key);
+
+    /**
+     * Caches value for key and returns the previous value, if any
+     */
+    public abstract V put(K key, V value);
+
+    public abstract V remove(K key);
+
+    /**
+     * Removes every entry, calling entryRemoved() for each
+     */
+    public abstract void evictAll();
+
+    /**
+     * Returns the sum of sizeOf() over all entries
+     */
+    public abstract int size();
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Changes the size budget, evicting entries right away if the cache no longer fits
+     */
+    public abstract void resize(int maxSize);
+
+    protected static void checkMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+    }
+
+    protected int safeSizeOf(K key, V value) {
+        final int size = mCallbacks.sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+}
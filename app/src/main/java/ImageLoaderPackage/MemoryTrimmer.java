@@ -0,0 +1,159 @@
+package ImageLoaderPackage;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Listens for onTrimMemory() and passes the level on to the registered caches. The caches
+ * shrink in graduated steps: decoded bitmaps go first since they are the largest and the
+ * cheapest to rebuild from the encoded tier, the encoded bytes are kept as long as possible
+ * so the app comes back warm.
+ *
+ * Lowered budgets stay in force until no trim callback has arrived for COOL_DOWN_MS. The
+ * caches call restoreIfCooledDown() when they are written to, which only happens while the
+ * app is in use again.
+ */
+public class MemoryTrimmer implements ComponentCallbacks2 {
+    private static final String TAG = "MemoryTrimmer";
+
+    public static final int TRIM_LEVEL_NONE = 0;
+
+    //How long budgets stay lowered after the last trim callback
+    private static final long COOL_DOWN_MS = 30 * 1000;
+
+    private static final MemoryTrimmer sInstance = new MemoryTrimmer();
+
+    private final List<WeakReference<Trimmable>> mTrimmables = new ArrayList<WeakReference<Trimmable>>();
+    private boolean mRegistered;
+    private volatile int mLevel = TRIM_LEVEL_NONE;
+    private volatile long mLastTrimTime;
+
+    public static MemoryTrimmer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts listening for trim callbacks. Safe to call more than once. Before Ice Cream
+     * Sandwich there are no trim levels and nothing is registered
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public synchronized void register(Context context) {
+        if (mRegistered || !BackgroundUtils.hasIceCreamSandwich()) return;
+
+        context.getApplicationContext().registerComponentCallbacks(this);
+        mRegistered = true;
+    }
+
+    /**
+     * Adds a cache to be trimmed. It is only weakly referenced
+     */
+    public void addTrimmable(Trimmable trimmable) {
+        synchronized (mTrimmables) {
+            mTrimmables.add(new WeakReference<Trimmable>(trimmable));
+        }
+    }
+
+    /**
+     * Returns the level of the last trim callback, or TRIM_LEVEL_NONE if budgets are restored
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Restores full budgets if no trim callback has arrived for a while
+     */
+    public void restoreIfCooledDown() {
+        if (mLevel == TRIM_LEVEL_NONE
+                || SystemClock.uptimeMillis() - mLastTrimTime < COOL_DOWN_MS) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mLevel == TRIM_LEVEL_NONE) return;
+            mLevel = TRIM_LEVEL_NONE;
+        }
+
+        Log.i(TAG, "restoring cache budgets");
+        dispatch(TRIM_LEVEL_NONE);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.i(TAG, "onTrimMemory " + level);
+
+        synchronized (this) {
+            mLevel = level;
+            mLastTrimTime = SystemClock.uptimeMillis();
+        }
+        dispatch(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void dispatch(int level) {
+        final List<Trimmable> trimmables = new ArrayList<Trimmable>();
+        synchronized (mTrimmables) {
+            final Iterator<WeakReference<Trimmable>> iterator = mTrimmables.iterator();
+            while (iterator.hasNext()) {
+                final Trimmable trimmable = iterator.next().get();
+                if (trimmable == null) {
+                    iterator.remove();
+                } else {
+                    trimmables.add(trimmable);
+                }
+            }
+        }
+
+        for (Trimmable trimmable : trimmables) {
+            trimmable.trimMemory(level);
+        }
+    }
+
+    /**
+     * Returns the share of its full budget the decoded bitmap cache keeps at a trim level
+     */
+    public static int decodedBudgetPercent(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) return 0;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) return 25;
+        if (level >= TRIM_MEMORY_RUNNING_LOW) return 50;
+        return 100;
+    }
+
+    /**
+     * Returns the share of its full budget the encoded byte cache keeps at a trim level
+     */
+    public static int encodedBudgetPercent(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) return 0;
+        if (level >= TRIM_MEMORY_MODERATE) return 25;
+        if (level >= TRIM_MEMORY_BACKGROUND) return 50;
+        if (level >= TRIM_MEMORY_UI_HIDDEN) return 100;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) return 50;
+        if (level >= TRIM_MEMORY_RUNNING_LOW) return 75;
+        return 100;
+    }
+
+    /**
+     * Returns whether bitmaps kept for inBitmap reuse should be dropped at a trim level
+     */
+    public static boolean shouldClearBitmapPool(int level) {
+        return level >= TRIM_MEMORY_RUNNING_LOW;
+    }
+}
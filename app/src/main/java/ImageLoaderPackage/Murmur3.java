@@ -0,0 +1,151 @@
+package ImageLoaderPackage;
+
+/**
+ * Incremental MurmurHash3 x64 128-bit hasher. Values are fed in as 16-bit units so strings
+ * can be hashed char by char without encoding them to bytes first. Not cryptographic, it
+ * only has to spread keys well enough that two different ones never share a disk file.
+ *
+ * An instance is not thread safe, use get() for the one belonging to the calling thread.
+ */
+class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final ThreadLocal<Murmur3> sHasher = new ThreadLocal<Murmur3>() {
+        @Override
+        protected Murmur3 initialValue() {
+            return new Murmur3();
+        }
+    };
+
+    private long mH1, mH2;
+    //The current 16 byte block, filled from the low bits of mK1 up
+    private long mK1, mK2;
+    private int mBits;
+    private int mLength;
+
+    /**
+     * Returns the calling thread's hasher, reset and ready for input
+     */
+    static Murmur3 get() {
+        return sHasher.get().reset();
+    }
+
+    Murmur3 reset() {
+        mH1 = 0;
+        mH2 = 0;
+        mK1 = 0;
+        mK2 = 0;
+        mBits = 0;
+        mLength = 0;
+        return this;
+    }
+
+    Murmur3 putInt(int value) {
+        putUnit(value & 0xffff);
+        putUnit(value >>> 16);
+        return this;
+    }
+
+    /**
+     * Hashes the length ahead of the chars so that consecutive strings cannot run together,
+     * a null string is distinct from an empty one
+     */
+    Murmur3 putString(String value) {
+        if (value == null) {
+            return putInt(-1);
+        }
+
+        final int length = value.length();
+        putInt(length);
+        for (int i = 0; i < length; i++) {
+            putUnit(value.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Finishes the hash, read the result with h1() and h2()
+     */
+    Murmur3 finish() {
+        if (mBits > 0) {
+            mH1 ^= mixK1(mK1);
+            mH2 ^= mixK2(mK2);
+        }
+
+        mH1 ^= mLength;
+        mH2 ^= mLength;
+
+        mH1 += mH2;
+        mH2 += mH1;
+
+        mH1 = fmix64(mH1);
+        mH2 = fmix64(mH2);
+
+        mH1 += mH2;
+        mH2 += mH1;
+        return this;
+    }
+
+    long h1() {
+        return mH1;
+    }
+
+    long h2() {
+        return mH2;
+    }
+
+    private void putUnit(int unit) {
+        final long value = unit & 0xffffL;
+        if (mBits < 64) {
+            mK1 |= value << mBits;
+        } else {
+            mK2 |= value << (mBits - 64);
+        }
+        mBits += 16;
+        mLength += 2;
+
+        if (mBits == 128) {
+            mixBlock();
+        }
+    }
+
+    private void mixBlock() {
+        mH1 ^= mixK1(mK1);
+        mH1 = Long.rotateLeft(mH1, 27);
+        mH1 += mH2;
+        mH1 = mH1 * 5 + 0x52dce729;
+
+        mH2 ^= mixK2(mK2);
+        mH2 = Long.rotateLeft(mH2, 31);
+        mH2 += mH1;
+        mH2 = mH2 * 5 + 0x38495ab5;
+
+        mK1 = 0;
+        mK2 = 0;
+        mBits = 0;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
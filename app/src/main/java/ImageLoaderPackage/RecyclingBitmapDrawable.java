@@ -2,64 +2,134 @@ package ImageLoaderPackage;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
+import android.util.Log;
 
 /**
- * Created by desmond on 7/5/14.
+ * A BitmapDrawable whose bitmap is handed back to a BitmapPool once nothing uses it anymore.
+ * Every holder takes a lease with acquire() and gives it back with release(): the memory
+ * cache while the drawable is cached, each view while it is displayed, and a worker while
+ * the drawable is in flight between being created and being bound. When the last lease is
+ * released the bitmap goes to the pool and the drawable must not be used again.
+ *
+ * Code that may race with the last release, such as a memory cache lookup, uses
+ * tryAcquire() and treats failure as a miss.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
     private static final String TAG = "CountingBitmapDrawable";
 
-    private int mCacheRefCount = 0;
-    private int mDisplayRefCount = 0;
-
-    private boolean mHasBeenDisplayed;
+    private final BitmapPool mPool;
+    private int mLeaseCount = 0;
+    private boolean mReleased;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        this(res, bitmap, BitmapPool.getInstance());
+    }
+
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap, BitmapPool pool) {
         super(res, bitmap);
+        mPool = pool;
     }
 
     /**
-     * Notify the drawable that the displayed state has changed. Internally a
-     * count is kept so that the drawable knows when it is no longer being
-     * displayed.
+     * Takes a lease unless the bitmap was already given back to the pool
+     * @return false if the drawable is released and must not be used
      */
-    public void setIsDisplayed(boolean isDisplayed) {
+    public synchronized boolean tryAcquire() {
+        if (mReleased) return false;
+
+        mLeaseCount++;
+        return true;
+    }
+
+    /**
+     * Takes a lease on a drawable the caller knows is still held by someone else
+     */
+    public void acquire() {
+        if (!tryAcquire()) {
+            throw new IllegalStateException("acquire() on a released drawable");
+        }
+    }
+
+    /**
+     * Gives a lease back. The last one returns the bitmap to the pool
+     */
+    public void release() {
+        Bitmap bitmap = null;
+
         synchronized (this) {
-            if (isDisplayed) {
-                mDisplayRefCount++;
-                mHasBeenDisplayed = true;
-            } else {
-                mDisplayRefCount--;
+            if (mLeaseCount <= 0) {
+                throw new IllegalStateException("release() without acquire()");
+            }
+
+            if (--mLeaseCount == 0 && hasValidBitmap()) {
+                mReleased = true;
+                bitmap = getBitmap();
             }
         }
 
-        //Check to see if recycle() can be called;
-        checkState();
+        if (bitmap != null && mPool != null) {
+            mPool.put(bitmap);
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return mReleased;
     }
 
     /**
-     * Notify the drawable that the cache state has changed. Internally a count
-     * is kept so that the drawable knows when it is no longer being cached.
+     * Notify the drawable that the displayed state has changed, taking or giving back the
+     * view's lease
+     */
+    public void setIsDisplayed(boolean isDisplayed) {
+        if (isDisplayed) {
+            acquire();
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Notify the drawable that the cache state has changed, taking or giving back the
+     * cache's lease
      */
     public void setIsCached(boolean isCached) {
-        synchronized (this) {
-            if (isCached) {
-                mCacheRefCount++;
-            } else {
-                mCacheRefCount--;
-            }
+        if (isCached) {
+            acquire();
+        } else {
+            release();
         }
+    }
 
-        checkState();
+    @Override
+    public void draw(Canvas canvas) {
+        //The pixels may already belong to another image
+        if (isReleased()) {
+            Log.w(TAG, "draw() on a released drawable");
+            return;
+        }
+        super.draw(canvas);
     }
 
-    private synchronized void checkState() {
-        // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
-        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0
-                && mHasBeenDisplayed && hasValidBitmap()) {
-//            getBitmap().recycle();
+    /**
+     * Takes or gives back a display lease on every RecyclingBitmapDrawable in drawable,
+     * looking inside LayerDrawables such as the fade-in TransitionDrawable
+     */
+    public static void notifyDisplayed(Drawable drawable, boolean isDisplayed) {
+        if (drawable instanceof RecyclingBitmapDrawable) {
+
+            ((RecyclingBitmapDrawable) drawable).setIsDisplayed(isDisplayed);
+
+        } else if (drawable instanceof LayerDrawable) {
+
+            LayerDrawable layerDrawable = (LayerDrawable) drawable;
+
+            for (int i = 0, z = layerDrawable.getNumberOfLayers(); i < z; ++i) {
+                notifyDisplayed(layerDrawable.getDrawable(i), isDisplayed);
+            }
         }
     }
 
@@ -2,12 +2,14 @@ package ImageLoaderPackage;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LayerDrawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
 /**
  * Created by desmond on 7/5/14.
+ *
+ * Holds a lease on every RecyclingBitmapDrawable it displays, and gives it back when the
+ * drawable is replaced or the view is detached.
  */
 public class RecyclingImageView extends ImageView {
 
@@ -33,26 +35,9 @@ public class RecyclingImageView extends ImageView {
         //Call super to set new drawable
         super.setImageDrawable(drawable);
 
-        //Notify new Drawable that it is being displayed
-        notifyDrawable(drawable, true);
-
-        //Notify old Drawable so it is no longer being displayed
-        notifyDrawable(previousDrawable, false);
-    }
-
-    private void notifyDrawable(Drawable drawable, final boolean isDisplayed) {
-
-        if (drawable instanceof RecyclingBitmapDrawable) {
-
-            ((RecyclingBitmapDrawable) drawable).setIsDisplayed(isDisplayed);
-
-        } else if (drawable instanceof LayerDrawable) {
-
-            LayerDrawable layerDrawable = (LayerDrawable) drawable;
-
-            for (int i = 0, z = layerDrawable.getNumberOfLayers(); i < z; ++i) {
-                notifyDrawable(layerDrawable.getDrawable(i), isDisplayed);
-            }
-        }
+        //Take a lease on the new Drawable before giving back the old one, which may be
+        //the same drawable
+        RecyclingBitmapDrawable.notifyDisplayed(drawable, true);
+        RecyclingBitmapDrawable.notifyDisplayed(previousDrawable, false);
     }
 }
@@ -0,0 +1,56 @@
+package ImageLoaderPackage;
+
+import java.util.Random;
+
+/**
+ * How HttpTransport retries a request that failed in a way that may pass: a connection or
+ * read error before the response, or a 408, 429 or 5xx. Attempt n waits a random time up to
+ * baseDelayMs * 2^(n-1), capped at maxDelayMs, so clients that failed together do not retry
+ * together.
+ */
+public final class RetryPolicy {
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 250, 2000);
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxAttempts Attempts in total, the first included
+     * @param baseDelayMs Upper bound of the wait before the first retry
+     * @param maxDelayMs Upper bound of any wait
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns true if a response with this status may succeed when asked again
+     */
+    public static boolean isTransient(int code) {
+        return code == 408 || code == 429 || code >= 500;
+    }
+
+    /**
+     * Returns how long to wait after the given failed attempt, counted from 1
+     */
+    public long getDelayMs(int attempt) {
+        final long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(attempt - 1, 20));
+        if (ceiling <= 0) return 0;
+
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapShader;
+import android.graphics.Paint;
+import android.graphics.Shader.TileMode;
+
+/**
+ * Rounds the corners of the image, leaving its size as it is
+ */
+public class RoundedCornersTransformation implements Transformation {
+    private final float mRadius;
+    private final String mKey;
+
+    public RoundedCornersTransformation(float radius) {
+        mRadius = radius;
+        mKey = "roundedCorners:" + radius;
+    }
+
+    @Override
+    public Bitmap transform(TransformationContext context, Bitmap source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+
+        //The corners must be transparent, so draw into a bitmap with alpha
+        final Bitmap result = context.obtainBitmap(width, height, Config.ARGB_8888);
+
+        final Paint paint = context.getPaint();
+        paint.setShader(new BitmapShader(source, TileMode.CLAMP, TileMode.CLAMP));
+
+        context.getCanvas(result).drawRoundRect(
+                context.getRect(0, 0, width, height), mRadius, mRadius, paint);
+
+        return result;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+}
@@ -0,0 +1,306 @@
+package ImageLoaderPackage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Window TinyLFU eviction. New entries go into a small LRU window. When the window is full
+ * its eldest entry becomes a candidate for the main cache, a segmented LRU split into a
+ * probation and a protected segment, and is only admitted if a FrequencySketch estimates it
+ * has been requested more often than the entry it would displace. Entries hit while on
+ * probation are promoted to the protected segment.
+ *
+ * This keeps images the user keeps returning to, like avatars and headers, from being pushed
+ * out by a long fling through images that are shown only once.
+ */
+public class TinyLfuMemoryCache<K, V> extends MemoryCache<K, V> {
+    //Share of the cache taken by the window, and of the main cache taken by protected entries
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<K, Node<K, V>> mMap = new HashMap<K, Node<K, V>>();
+    private final AccessQueue<K, V> mWindow = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> mProbation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> mProtected = new AccessQueue<K, V>();
+    private final FrequencySketch mSketch = new FrequencySketch(0);
+
+    private int mWindowMaxSize;
+    private int mProtectedMaxSize;
+
+    public TinyLfuMemoryCache(int maxSize, Callbacks<K, V> callbacks) {
+        super(maxSize, callbacks);
+        setRegionSizes();
+    }
+
+    private void setRegionSizes() {
+        mWindowMaxSize = Math.max(1, mMaxSize * WINDOW_PERCENT / 100);
+        mWindowMaxSize = Math.min(mWindowMaxSize, mMaxSize);
+        mProtectedMaxSize = (mMaxSize - mWindowMaxSize) * PROTECTED_PERCENT / 100;
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        synchronized (this) {
+            mSketch.increment(key);
+            final Node<K, V> node = mMap.get(key);
+            if (node == null) {
+                return null;
+            }
+
+            onAccess(node);
+            return node.value;
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        V previous = null;
+        final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+        synchronized (this) {
+            final int size = safeSizeOf(key, value);
+            mSketch.increment(key);
+
+            Node<K, V> node = mMap.get(key);
+            if (node != null) {
+                previous = node.value;
+                queueOf(node).size += size - node.size;
+                node.value = value;
+                node.size = size;
+                onAccess(node);
+            } else {
+                node = new Node<K, V>(key, value, size);
+                mMap.put(key, node);
+                mWindow.addLast(node, WINDOW);
+                mSketch.ensureCapacity(mMap.size());
+            }
+
+            evict(evicted);
+        }
+
+        if (previous != null) {
+            mCallbacks.entryRemoved(false, key, previous, value);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> node;
+        synchronized (this) {
+            node = mMap.remove(key);
+            if (node != null) {
+                queueOf(node).remove(node);
+            }
+        }
+
+        if (node == null) {
+            return null;
+        }
+        mCallbacks.entryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    @Override
+    public void evictAll() {
+        final List<Node<K, V>> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<Node<K, V>>(mMap.values());
+            mMap.clear();
+            mWindow.clear();
+            mProbation.clear();
+            mProtected.clear();
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void resize(int maxSize) {
+        checkMaxSize(maxSize);
+        final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+        synchronized (this) {
+            mMaxSize = maxSize;
+            setRegionSizes();
+            evict(evicted);
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mWindow.size + mProbation.size + mProtected.size;
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted) {
+        for (Node<K, V> node : evicted) {
+            mCallbacks.entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    private AccessQueue<K, V> queueOf(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                return mWindow;
+            case PROBATION:
+                return mProbation;
+            default:
+                return mProtected;
+        }
+    }
+
+    /**
+     * Moves a node that was hit to the most recent end of its segment, promoting it out of
+     * probation
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == PROBATION) {
+            mProbation.remove(node);
+            mProtected.addLast(node, PROTECTED);
+
+            //Demote the eldest protected entries to make room
+            while (mProtected.size > mProtectedMaxSize && mProtected.count > 1) {
+                final Node<K, V> demoted = mProtected.first();
+                mProtected.remove(demoted);
+                mProbation.addLast(demoted, PROBATION);
+            }
+        } else {
+            queueOf(node).moveToLast(node);
+        }
+    }
+
+    /**
+     * Moves overflow from the window into the main cache, then evicts until the cache fits.
+     * The newest entry always stays in the window, even when it is larger than the window,
+     * so an image is not rejected the moment it is bound
+     */
+    private void evict(List<Node<K, V>> evicted) {
+        while (mWindow.size > mWindowMaxSize && mWindow.count > 1) {
+            final Node<K, V> candidate = mWindow.first();
+            mWindow.remove(candidate);
+            mProbation.addLast(candidate, PROBATION);
+            admit(candidate, evicted);
+        }
+
+        while (size() > mMaxSize) {
+            Node<K, V> victim = mProbation.first();
+            if (victim == null) victim = mProtected.first();
+            if (victim == null) victim = mWindow.first();
+            if (victim == null) break;
+            evictNode(victim, evicted);
+        }
+    }
+
+    /**
+     * Makes room for a candidate that just left the window by evicting main cache entries
+     * that are requested less often than it. If any of them is requested at least as often,
+     * the candidate is evicted instead
+     */
+    private void admit(Node<K, V> candidate, List<Node<K, V>> evicted) {
+        final int candidateFrequency = mSketch.frequency(candidate.key);
+
+        while (size() > mMaxSize) {
+            Node<K, V> victim = mProbation.first();
+            if (victim == candidate) {
+                victim = mProtected.first();
+            }
+            if (victim == null) {
+                return;
+            }
+
+            if (candidateFrequency > mSketch.frequency(victim.key)) {
+                evictNode(victim, evicted);
+            } else {
+                evictNode(candidate, evicted);
+                return;
+            }
+        }
+    }
+
+    private void evictNode(Node<K, V> node, List<Node<K, V>> evicted) {
+        mMap.remove(node.key);
+        queueOf(node).remove(node);
+        evicted.add(node);
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        V value;
+        int size;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes from eldest to most recent, keeping the total size
+     */
+    private static class AccessQueue<K, V> {
+        private final Node<K, V> mHead = new Node<K, V>(null, null, 0);
+        int size;
+        int count;
+
+        AccessQueue() {
+            mHead.prev = mHead;
+            mHead.next = mHead;
+        }
+
+        Node<K, V> first() {
+            return mHead.next == mHead ? null : mHead.next;
+        }
+
+        void addLast(Node<K, V> node, int queue) {
+            node.queue = queue;
+            node.prev = mHead.prev;
+            node.next = mHead;
+            mHead.prev.next = node;
+            mHead.prev = node;
+            size += node.size;
+            count++;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size -= node.size;
+            count--;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            final int queue = node.queue;
+            remove(node);
+            addLast(node, queue);
+        }
+
+        void clear() {
+            mHead.prev = mHead;
+            mHead.next = mHead;
+            size = 0;
+            count = 0;
+        }
+    }
+}
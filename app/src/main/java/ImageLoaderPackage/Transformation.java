@@ -0,0 +1,24 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+
+/**
+ * Turns a decoded bitmap into the bitmap that is cached and displayed, for example by
+ * cropping it into a circle. Transformations are applied on the worker thread through
+ * TransformationContext.apply() and can be combined with ChainTransformation.
+ */
+public interface Transformation {
+
+    /**
+     * Draws source into a bitmap obtained from context.obtainBitmap() using the context's
+     * Paint, Canvas and Matrix. Returns source itself if there is nothing to do. Must not
+     * recycle source, the context hands it back to the pool
+     */
+    Bitmap transform(TransformationContext context, Bitmap source);
+
+    /**
+     * Returns a signature that is equal for transformations producing the same output, used
+     * in the CacheKey. Build it once in the constructor, it is read on every bind
+     */
+    String getKey();
+}
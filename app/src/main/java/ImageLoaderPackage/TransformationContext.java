@@ -0,0 +1,109 @@
+package ImageLoaderPackage;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * The objects a Transformation draws with, kept per thread so that transforming a bitmap
+ * does not allocate a Paint, Canvas, Matrix and RectF each time. Output bitmaps come from
+ * the BitmapPool and the bitmaps a transformation replaces go back to it.
+ */
+public class TransformationContext {
+    private static final int PAINT_FLAGS =
+            Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG;
+
+    private static final ThreadLocal<TransformationContext> sContext =
+            new ThreadLocal<TransformationContext>() {
+        @Override
+        protected TransformationContext initialValue() {
+            return new TransformationContext(BitmapPool.getInstance());
+        }
+    };
+
+    private final BitmapPool mPool;
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint(PAINT_FLAGS);
+    private final Matrix mMatrix = new Matrix();
+    private final RectF mRect = new RectF();
+
+    /**
+     * Returns the calling thread's context
+     */
+    public static TransformationContext get() {
+        return sContext.get();
+    }
+
+    TransformationContext(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Applies transformation to source, which the caller must own. If a new bitmap is
+     * returned, source has been handed to the pool and must not be used anymore
+     */
+    public Bitmap apply(Transformation transformation, Bitmap source) {
+        final Bitmap result;
+        try {
+            result = transformation.transform(this, source);
+        } finally {
+            //Do not keep the bitmaps reachable through the canvas or a shader
+            mCanvas.setBitmap(null);
+            mPaint.reset();
+        }
+
+        if (result != source) {
+            recycle(source);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a transparent bitmap to draw into, reused from the pool when one fits
+     */
+    public Bitmap obtainBitmap(int width, int height, Config config) {
+        return mPool.get(width, height, config);
+    }
+
+    /**
+     * Hands an intermediate bitmap the caller owns back to the pool
+     */
+    public void recycle(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    public Canvas getCanvas(Bitmap target) {
+        mCanvas.setBitmap(target);
+        return mCanvas;
+    }
+
+    /**
+     * Returns the shared Paint, reset to anti aliased and filtered drawing
+     */
+    public Paint getPaint() {
+        mPaint.reset();
+        mPaint.setFlags(PAINT_FLAGS);
+        return mPaint;
+    }
+
+    public Matrix getMatrix() {
+        mMatrix.reset();
+        return mMatrix;
+    }
+
+    public RectF getRect(float left, float top, float right, float bottom) {
+        mRect.set(left, top, right, bottom);
+        return mRect;
+    }
+
+    /**
+     * Returns the config to draw a copy of source in. Bitmaps decoded from some formats
+     * report none
+     */
+    public static Config getConfig(Bitmap source) {
+        return source.getConfig() != null ? source.getConfig() : Config.ARGB_8888;
+    }
+}
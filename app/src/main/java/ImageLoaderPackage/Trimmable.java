@@ -0,0 +1,14 @@
+package ImageLoaderPackage;
+
+/**
+ * Something that can give memory back when the system runs low, see MemoryTrimmer
+ */
+public interface Trimmable {
+
+    /**
+     * @param level One of the ComponentCallbacks2.TRIM_MEMORY_* levels, or
+     *              MemoryTrimmer.TRIM_LEVEL_NONE once the pressure has eased and full
+     *              budgets can be restored
+     */
+    void trimMemory(int level);
+}
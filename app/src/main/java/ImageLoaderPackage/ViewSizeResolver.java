@@ -0,0 +1,139 @@
+package ImageLoaderPackage;
+
+import android.util.DisplayMetrics;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Works out the size to decode an image at from the view it is bound to: the exact size in
+ * its layout params, or else its laid out size, both less padding. When neither is known yet,
+ * because the view has not been laid out, getSize() waits for the view's next pre-draw pass.
+ * A WRAP_CONTENT dimension has nothing to go by and gets the screen's.
+ *
+ * Must be used on the UI thread.
+ */
+public class ViewSizeResolver {
+
+    /**
+     * Gets the view back rather than holding on to it, the pending requests must not keep
+     * their views alive
+     */
+    public interface SizeReadyCallback {
+        void onSizeReady(View view, int width, int height);
+    }
+
+    //Views waiting for layout. A later request for the same view replaces the earlier one
+    private final Map<View, PendingSize> mPending = new WeakHashMap<View, PendingSize>();
+
+    /**
+     * Calls callback with the view's target size, right away if it is known and otherwise
+     * once the view has been laid out
+     */
+    public void getSize(View view, SizeReadyCallback callback) {
+        clear(view);
+
+        final int width = getTargetWidth(view);
+        final int height = getTargetHeight(view);
+        if (width > 0 && height > 0) {
+            callback.onSizeReady(view, width, height);
+            return;
+        }
+
+        final PendingSize pending = new PendingSize(view, callback);
+        mPending.put(view, pending);
+        view.getViewTreeObserver().addOnPreDrawListener(pending);
+    }
+
+    /**
+     * Drops a request that is still waiting for the view to be laid out
+     */
+    public void clear(View view) {
+        final PendingSize pending = mPending.remove(view);
+        if (pending != null) {
+            pending.removeListener(view);
+        }
+    }
+
+    /**
+     * Returns the width to decode at for view, or 0 if it is not known until layout
+     */
+    public static int getTargetWidth(View view) {
+        final ViewGroup.LayoutParams params = view.getLayoutParams();
+        return getTargetDimension(view, view.getWidth(), params != null ? params.width : 0,
+                view.getPaddingLeft() + view.getPaddingRight(), getDisplayMetrics(view).widthPixels);
+    }
+
+    /**
+     * Returns the height to decode at for view, or 0 if it is not known until layout
+     */
+    public static int getTargetHeight(View view) {
+        final ViewGroup.LayoutParams params = view.getLayoutParams();
+        return getTargetDimension(view, view.getHeight(), params != null ? params.height : 0,
+                view.getPaddingTop() + view.getPaddingBottom(), getDisplayMetrics(view).heightPixels);
+    }
+
+    private static int getTargetDimension(View view, int viewSize, int paramSize, int padding,
+                                          int screenSize) {
+        //An exact size in the layout params holds before and after layout
+        if (paramSize - padding > 0) {
+            return paramSize - padding;
+        }
+
+        //A pending layout may still change the size, recycled list items keep their old one
+        if (view.isLayoutRequested()) {
+            return 0;
+        }
+
+        if (viewSize - padding > 0) {
+            return viewSize - padding;
+        }
+
+        if (paramSize == ViewGroup.LayoutParams.WRAP_CONTENT) {
+            return screenSize;
+        }
+        return 0;
+    }
+
+    private static DisplayMetrics getDisplayMetrics(View view) {
+        return view.getResources().getDisplayMetrics();
+    }
+
+    private class PendingSize implements ViewTreeObserver.OnPreDrawListener {
+        private final WeakReference<View> mViewReference;
+        private final SizeReadyCallback mCallback;
+
+        PendingSize(View view, SizeReadyCallback callback) {
+            mViewReference = new WeakReference<View>(view);
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            final View view = mViewReference.get();
+            if (view == null) return true;
+
+            final int width = getTargetWidth(view);
+            final int height = getTargetHeight(view);
+            if (width > 0 && height > 0) {
+                if (mPending.get(view) == this) {
+                    mPending.remove(view);
+                }
+                removeListener(view);
+                mCallback.onSizeReady(view, width, height);
+            }
+            return true;
+        }
+
+        void removeListener(View view) {
+            final ViewTreeObserver observer = view.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.replaid.efficientbitmap.app;
 
 import android.app.Activity;
+import android.content.res.Resources;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.util.Log;
@@ -40,6 +41,13 @@ public class PhotoGalleryFragment extends Fragment {
 //        mImageLoader.addImageCache(fm, cacheParams);
 
         mAdapter = new GalleryPhotoAdapter(getActivity(), mImageLoader);
+
+        //The grid is not laid out yet when the feed arrives, so its first screen is worked out
+        //from the row height and the screen height
+        final Resources resources = getResources();
+        final int rowHeight = resources.getDimensionPixelSize(R.dimen.gallery_photo_height);
+        final int rows = (resources.getDisplayMetrics().heightPixels + rowHeight - 1) / rowHeight;
+        mAdapter.setFirstScreenCount(rows * resources.getInteger(R.integer.gallery_columns));
     }
 
     @Override
@@ -120,6 +128,7 @@ public class PhotoGalleryFragment extends Fragment {
         Log.i(TAG, "PhotoGalleryFragment onResume");
         super.onResume();
 //        mImageLoader.setExitTasksEarly(false);
+        PhotoManager.getInstance().onResume();
     }
 
     @Override
@@ -129,7 +138,7 @@ public class PhotoGalleryFragment extends Fragment {
 //        mImageLoader.setPauseWork(false);
 //        mImageLoader.setExitTasksEarly(true);
 //        mImageLoader.flushCache();
-        PhotoManager.getInstance().clearCache();
+        PhotoManager.getInstance().onPause();
     }
 
     @Override
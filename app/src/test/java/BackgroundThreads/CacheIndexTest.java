@@ -0,0 +1,104 @@
+package BackgroundThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheIndexTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("cacheindex", "");
+        assertTrue(mDir.delete() && mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DiskLruCache.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void addingAgainRefreshesTheAddedTime() {
+        final CacheIndex index = new CacheIndex();
+        index.add("http://a/1", 1000);
+        index.add("http://a/1", 5000, "feed");
+
+        assertEquals(Collections.<String>emptyList(), index.urlsAddedBefore(2000));
+        assertEquals(Arrays.asList("http://a/1"), index.urlsAddedBefore(6000));
+        assertEquals(Arrays.asList("http://a/1"), index.urlsWithTag("feed"));
+    }
+
+    @Test
+    public void removesUrlsByDiskKey() {
+        final CacheIndex index = new CacheIndex();
+        index.add("http://a/1", 1000, "feed");
+        index.add("http://a/2", 1000, "feed");
+
+        index.removeDiskKey(ImageCache.hashKeyforDisk("http://a/1"));
+        index.removeDiskKey("unknown");
+
+        assertEquals(Arrays.asList("http://a/2"), index.urls());
+        assertEquals(Arrays.asList("http://a/2"), index.urlsWithTag("feed"));
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        final File file = new File(mDir, "index");
+        final CacheIndex index = new CacheIndex();
+        index.add("http://a/1", 1000, "feed", "user");
+        index.add("http://b/2", 2000);
+        index.save(file);
+
+        final CacheIndex loaded = new CacheIndex();
+        loaded.load(file);
+
+        assertEquals(Arrays.asList("http://a/1", "http://b/2"), loaded.urls());
+        assertEquals(Arrays.asList("http://a/1"), loaded.urlsWithPrefix("http://a/"));
+        assertEquals(Arrays.asList("http://a/1"), loaded.urlsWithTag("user"));
+        assertEquals(Arrays.asList("http://a/1"), loaded.urlsAddedBefore(1500));
+
+        loaded.removeDiskKey(ImageCache.hashKeyforDisk("http://b/2"));
+        assertEquals(Arrays.asList("http://a/1"), loaded.urls());
+    }
+
+    @Test
+    public void diskCacheReportsEvictedKeys() throws IOException {
+        final DiskLruCache cache = DiskLruCache.open(mDir, 1, 1, 100);
+        final List<String> evicted = new ArrayList<String>();
+        cache.setEvictionListener(new DiskLruCache.EvictionListener() {
+            @Override
+            public void onEvicted(String key) {
+                evicted.add(key);
+            }
+        });
+
+        for (int i = 0; i < 5; i++) {
+            final DiskLruCache.Editor editor = cache.edit("k" + i);
+            final OutputStream out = editor.newOutputStream(0);
+            out.write(new byte[40]);
+            out.close();
+            editor.commit();
+        }
+        cache.remove("k4");
+        cache.flush();
+
+        //k4 was removed, not evicted
+        assertEquals(Arrays.asList("k0", "k1"), evicted);
+        assertTrue(cache.contains("k2"));
+        assertTrue(cache.contains("k3"));
+        cache.close();
+    }
+}
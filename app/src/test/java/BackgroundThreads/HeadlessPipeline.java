@@ -0,0 +1,206 @@
+package BackgroundThreads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ImageLoaderPackage.CachePolicy;
+import ImageLoaderPackage.ImageMetadata;
+import ImageLoaderPackage.MemoryCache;
+import Simulation.SimulatedPipeline;
+
+/**
+ * The PhotoManager download path without the views: a real ImageCache and a fixed pool of
+ * PhotoDownloadRunnables, which go through HttpTransport. It stops where PhotoManager would
+ * queue the decode, so it measures scheduling, caching and transfer behaviour.
+ */
+public class HeadlessPipeline implements SimulatedPipeline {
+
+    //Matches PhotoManager's download pool
+    private static final int DOWNLOAD_POOL_SIZE = 8;
+
+    private final ThreadPoolExecutor mDownloadThreadPool;
+    private final Map<Integer, HeadlessTask> mPendingLoads = new HashMap<Integer, HeadlessTask>();
+    private final ImageCache mImageCache;
+
+    /**
+     * @param memoryCacheBytes Byte budget of the memory cache
+     * @param memoryCachePolicy Eviction policy of the memory cache
+     * @param diskCacheDir Directory for the disk cache
+     * @param diskCacheBytes Byte budget of the disk cache
+     */
+    public HeadlessPipeline(long memoryCacheBytes, MemoryCache.Policy memoryCachePolicy,
+                            File diskCacheDir, long diskCacheBytes) {
+        final ImageCache.ImageCacheParams params = new ImageCache.ImageCacheParams(diskCacheDir);
+
+        //ImageCache weighs its entries in kilobytes
+        params.memCacheSize = (int) (memoryCacheBytes / 1024);
+        params.memCachePolicy = memoryCachePolicy;
+        params.diskCacheSize = (int) diskCacheBytes;
+        mImageCache = new ImageCache(params);
+        mImageCache.initDiskCache();
+
+        mDownloadThreadPool = new ThreadPoolExecutor(
+                DOWNLOAD_POOL_SIZE,
+                DOWNLOAD_POOL_SIZE,
+                1,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>()
+        );
+    }
+
+    /**
+     * Looks the url up in the memory cache and queues its download, like
+     * PhotoManager.startDownload()
+     */
+    @Override
+    public void load(int position, String url, Callback callback) {
+        final byte[] cached = mImageCache.getByteFromMemCache(url);
+        if (cached != null) {
+            callback.onLoaded(position, Source.MEMORY, cached.length);
+            return;
+        }
+
+        final HeadlessTask task = new HeadlessTask(position, url, callback);
+        synchronized (mPendingLoads) {
+            mPendingLoads.put(position, task);
+        }
+        mDownloadThreadPool.execute(task.mDownloadRunnable);
+    }
+
+    /**
+     * Interrupts the download and takes it off the queue, like PhotoManager.removeDownload()
+     */
+    @Override
+    public void cancel(int position) {
+        final HeadlessTask task;
+        synchronized (mPendingLoads) {
+            task = mPendingLoads.remove(position);
+        }
+        if (task == null) return;
+
+        synchronized (task) {
+            if (task.mCurrentThread != null) {
+                task.mCurrentThread.interrupt();
+            }
+        }
+        mDownloadThreadPool.remove(task.mDownloadRunnable);
+    }
+
+    @Override
+    public void shutdown() {
+        mDownloadThreadPool.shutdownNow();
+        try {
+            mDownloadThreadPool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mImageCache.close();
+    }
+
+    /**
+     * Stands in for PhotoTask, reporting the end of the download to the simulator instead of
+     * queuing a decode
+     */
+    private class HeadlessTask implements PhotoDownloadRunnable.TaskRunnableDownloadMethods {
+        private final int mPosition;
+        private final String mUrl;
+        private final Callback mCallback;
+        private final long mDeadlineNanos;
+        private final RequestTrace mRequestTrace = new RequestTrace();
+        private final Runnable mDownloadRunnable;
+
+        private byte[] mImageBuffer;
+        private ImageMetadata mImageMetadata;
+        private Thread mCurrentThread;
+
+        HeadlessTask(int position, String url, Callback callback) {
+            mPosition = position;
+            mUrl = url;
+            mCallback = callback;
+            mDeadlineNanos = System.nanoTime() + PhotoManager.DEFAULT_REQUEST_TIMEOUT_MS * 1000000L;
+            mRequestTrace.reset(url);
+            mRequestTrace.mark(RequestTrace.EVENT_ENQUEUED);
+            mDownloadRunnable = new PhotoDownloadRunnable(this);
+        }
+
+        @Override
+        public synchronized void setDownloadThread(Thread currentThread) {
+            mCurrentThread = currentThread;
+        }
+
+        @Override
+        public byte[] getByteBuffer() {
+            return mImageBuffer;
+        }
+
+        @Override
+        public void setByteBuffer(byte[] buffer) {
+            mImageBuffer = buffer;
+        }
+
+        @Override
+        public ImageMetadata getImageMetadata() {
+            return mImageMetadata;
+        }
+
+        @Override
+        public void setImageMetadata(ImageMetadata metadata) {
+            mImageMetadata = metadata;
+        }
+
+        @Override
+        public void handleDownloadState(int state) {
+            if (state == PhotoDownloadRunnable.HTTP_STATE_STARTED) return;
+
+            synchronized (mPendingLoads) {
+                if (mPendingLoads.get(mPosition) == this) {
+                    mPendingLoads.remove(mPosition);
+                }
+            }
+
+            if (state == PhotoDownloadRunnable.HTTP_STATE_COMPLETED) {
+                mCallback.onLoaded(mPosition,
+                        mRequestTrace.getSource() == RequestTrace.SOURCE_DISK
+                                ? Source.DISK : Source.NETWORK,
+                        mImageBuffer.length);
+            } else {
+                mCallback.onFailed(mPosition, new IOException("Download failed - " + mUrl));
+            }
+        }
+
+        @Override
+        public ImageCache getImageCache() {
+            return mImageCache;
+        }
+
+        @Override
+        public String getImageURL() {
+            return mUrl;
+        }
+
+        @Override
+        public RequestTrace getRequestTrace() {
+            return mRequestTrace;
+        }
+
+        @Override
+        public CachePolicy getCachePolicy() {
+            return PhotoManager.DEFAULT_CACHE_POLICY;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return mDeadlineNanos;
+        }
+
+        @Override
+        public void awaitPreload() {
+            //Nothing is preloaded in the simulation
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package BackgroundThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ImageLoaderPackage.HttpTransport;
+import Simulation.LocalImageServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResumableDownloadTest {
+    private static final String ETAG = "\"v1\"";
+
+    //Well past MIN_PARTIAL_BYTES, so a cut off download of it is worth keeping
+    private static final int STORED_LENGTH = 70000;
+
+    /**
+     * Keeps the parts in memory instead of the disk cache
+     */
+    private static class MemoryPartialStore implements ResumableDownload.PartialStore {
+        final Map<String, PartialDownload> mPartials = new HashMap<String, PartialDownload>();
+
+        @Override
+        public PartialDownload getPartialFromDiskCache(String data) {
+            return mPartials.get(data);
+        }
+
+        @Override
+        public void addPartialToDiskCache(String data, PartialDownload partial) {
+            mPartials.put(data, partial);
+        }
+
+        @Override
+        public void removePartialFromDiskCache(String data) {
+            mPartials.remove(data);
+        }
+    }
+
+    private final HttpTransport mTransport = HttpTransport.getInstance();
+    private final LocalImageServer.Config mConfig = new LocalImageServer.Config();
+    private final MemoryPartialStore mStore = new MemoryPartialStore();
+    private LocalImageServer mServer;
+    private String mUrl;
+    private byte[] mImage;
+
+    @Before
+    public void setUp() throws Exception {
+        mConfig.imageWidth = 200;
+        mConfig.imageHeight = 200;
+        mConfig.eTag = ETAG;
+        mServer = new LocalImageServer(mConfig);
+        mServer.start();
+
+        mUrl = mServer.urlFor(0);
+        mImage = mTransport.get(mUrl).readBody();
+        assertTrue(mImage.length > STORED_LENGTH);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private void storeFirstBytes(int length, String validator, int totalLength) {
+        mStore.addPartialToDiskCache(mUrl,
+                new PartialDownload(Arrays.copyOf(mImage, length), validator, totalLength));
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int count)
+            throws IOException {
+        while (count > 0) {
+            final int readResult = in.read(buffer, offset, count);
+            if (readResult < 0) throw new EOFException();
+            offset += readResult;
+            count -= readResult;
+        }
+    }
+
+    @Test
+    public void resumesWithTheMissingPart() throws Exception {
+        storeFirstBytes(STORED_LENGTH, ETAG, mImage.length);
+        final long bytesServed = mServer.getBytesServed();
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        try {
+            assertEquals(206, response.getCode());
+            assertTrue(download.isResumed());
+            assertEquals(STORED_LENGTH, download.getStoredLength());
+
+            final byte[] body = new byte[download.getTotalLength(response.getContentLength())];
+            final int stored = download.copyStoredBytes(body);
+            readFully(response.getBody(), body, stored, body.length - stored);
+
+            assertArrayEquals(mImage, body);
+            assertEquals(mImage.length - STORED_LENGTH, mServer.getBytesServed() - bytesServed);
+        } finally {
+            response.close();
+        }
+
+        download.complete();
+        assertNull(mStore.getPartialFromDiskCache(mUrl));
+    }
+
+    @Test
+    public void dropsAPartLongerThanTheImageNow() throws Exception {
+        //Stored when the image was larger, the range is past its end and gets a 416
+        mStore.addPartialToDiskCache(mUrl,
+                new PartialDownload(new byte[mImage.length], ETAG, mImage.length * 2));
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+
+        assertEquals(200, response.getCode());
+        assertFalse(download.isResumed());
+        assertNull(mStore.getPartialFromDiskCache(mUrl));
+        assertArrayEquals(mImage, response.readBody());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void dropsAPartOfAChangedImage() throws Exception {
+        //If-Range does not match, so the server sends all of the new image
+        storeFirstBytes(STORED_LENGTH, "\"v0\"", mImage.length);
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+
+        assertEquals(200, response.getCode());
+        assertFalse(download.isResumed());
+        assertEquals(0, download.getStoredLength());
+        assertNull(mStore.getPartialFromDiskCache(mUrl));
+        assertArrayEquals(mImage, response.readBody());
+    }
+
+    @Test
+    public void dropsAPartWhenTheContentRangeStartsElsewhere() throws Exception {
+        mConfig.rangeSkew = 10;
+        storeFirstBytes(STORED_LENGTH, ETAG, mImage.length);
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        try {
+            assertEquals(206, response.getCode());
+            assertEquals(STORED_LENGTH + 10, response.getContentRangeStart());
+            assertFalse(download.isResumed());
+            assertFalse(response.isSuccessful());
+            assertNull(mStore.getPartialFromDiskCache(mUrl));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void dropsAPartWhenTheContentRangeTotalDiffers() throws Exception {
+        storeFirstBytes(STORED_LENGTH, ETAG, mImage.length + 1);
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        try {
+            assertEquals(206, response.getCode());
+            assertFalse(download.isResumed());
+            assertNull(mStore.getPartialFromDiskCache(mUrl));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void keepsACutOffDownloadOnlyFromMinPartialBytes() throws Exception {
+        final int min = ResumableDownload.MIN_PARTIAL_BYTES;
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        final byte[] body = new byte[response.getContentLength()];
+        try {
+            readFully(response.getBody(), body, 0, min);
+        } finally {
+            response.close();
+        }
+
+        assertFalse(download.keepPartial(body, min - 1, body.length));
+        assertNull(mStore.getPartialFromDiskCache(mUrl));
+
+        assertTrue(download.keepPartial(body, min, body.length));
+        final PartialDownload partial = mStore.getPartialFromDiskCache(mUrl);
+        assertNotNull(partial);
+        assertArrayEquals(Arrays.copyOf(mImage, min), partial.getBytes());
+        assertEquals(ETAG, partial.getValidator());
+        assertEquals(mImage.length, partial.getTotalLength());
+    }
+
+    @Test
+    public void keepsAResumedDownloadOnlyIfItGotFurther() throws Exception {
+        storeFirstBytes(STORED_LENGTH, ETAG, mImage.length);
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        final byte[] body = new byte[download.getTotalLength(response.getContentLength())];
+        try {
+            final int stored = download.copyStoredBytes(body);
+            readFully(response.getBody(), body, stored, 1000);
+        } finally {
+            response.close();
+        }
+
+        assertFalse(download.keepPartial(body, STORED_LENGTH, body.length));
+        assertTrue(download.keepPartial(body, STORED_LENGTH + 1000, body.length));
+        assertEquals(STORED_LENGTH + 1000, mStore.getPartialFromDiskCache(mUrl).getLength());
+    }
+
+    @Test
+    public void resumesAChunkedDownloadWithTheLengthFromContentRange() throws Exception {
+        mConfig.chunked = true;
+        final int min = ResumableDownload.MIN_PARTIAL_BYTES;
+
+        final ResumableDownload first = new ResumableDownload(mStore, mUrl);
+        HttpTransport.Response response = first.open(mTransport, HttpTransport.NO_DEADLINE);
+        assertEquals(-1, response.getContentLength());
+        final byte[] buffer = new byte[min];
+        try {
+            readFully(response.getBody(), buffer, 0, min);
+        } finally {
+            response.close();
+        }
+
+        assertTrue(first.keepPartial(buffer, min, PartialDownload.UNKNOWN_LENGTH));
+        assertEquals(PartialDownload.UNKNOWN_LENGTH,
+                mStore.getPartialFromDiskCache(mUrl).getTotalLength());
+
+        final ResumableDownload second = new ResumableDownload(mStore, mUrl);
+        response = second.open(mTransport, HttpTransport.NO_DEADLINE);
+        try {
+            assertTrue(second.isResumed());
+            assertEquals(mImage.length, second.getTotalLength(response.getContentLength()));
+
+            final byte[] body = new byte[mImage.length];
+            final int stored = second.copyStoredBytes(body);
+            readFully(response.getBody(), body, stored, body.length - stored);
+            assertArrayEquals(mImage, body);
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void keepsNothingWithoutAValidator() throws Exception {
+        mConfig.eTag = null;
+
+        final ResumableDownload download = new ResumableDownload(mStore, mUrl);
+        final HttpTransport.Response response = download.open(mTransport, HttpTransport.NO_DEADLINE);
+        final byte[] body = new byte[response.getContentLength()];
+        response.close();
+
+        assertFalse(download.keepPartial(body, ResumableDownload.MIN_PARTIAL_BYTES, body.length));
+        assertNull(mStore.getPartialFromDiskCache(mUrl));
+    }
+}
@@ -0,0 +1,227 @@
+package ImageLoaderPackage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import Simulation.LocalImageServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the transport against a LocalImageServer. Each test starts its own server, so the
+ * host, and with it the circuit breaker and the negative cache entries, are its own
+ */
+public class HttpTransportTest {
+
+    //Responses a host needs before its time to first byte is known, with a few to spare
+    private static final int HEDGE_WARM_UP = 20;
+
+    //Latency of the warm up responses. The hedge goes out about this long after the request,
+    //so the request reliably reaches the server first and gets its scripted latency
+    private static final int WARM_UP_MS = 30;
+
+    //Latency of the slow attempt in a race, far above any loopback response
+    private static final int SLOW_MS = 1500;
+
+    private final HttpTransport mTransport = HttpTransport.getInstance();
+    private final LocalImageServer.Config mConfig = new LocalImageServer.Config();
+    private LocalImageServer mServer;
+
+    @Before
+    public void setUp() {
+        mConfig.imageWidth = 8;
+        mConfig.imageHeight = 8;
+        mTransport.setRetryPolicy(new RetryPolicy(3, 1, 1));
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.setRetryPolicy(RetryPolicy.DEFAULT);
+        mTransport.setHedgingEnabled(false);
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    private void startServer() throws Exception {
+        mServer = new LocalImageServer(mConfig);
+        mServer.start();
+    }
+
+    private static long getCount(String name) {
+        return ImageMetrics.getInstance().snapshot().get(ImageMetrics.NETWORK + name);
+    }
+
+    /**
+     * Gives the host enough responses for a hedge threshold, then scripts the latency of the
+     * request and of its hedge, which arrive in that order
+     */
+    private void startRace(int primaryLatencyMs, int hedgeLatencyMs) throws Exception {
+        mConfig.scriptedLatencyMs = new int[HEDGE_WARM_UP + 2];
+        Arrays.fill(mConfig.scriptedLatencyMs, 0, HEDGE_WARM_UP, WARM_UP_MS);
+        mConfig.scriptedLatencyMs[HEDGE_WARM_UP] = primaryLatencyMs;
+        mConfig.scriptedLatencyMs[HEDGE_WARM_UP + 1] = hedgeLatencyMs;
+        startServer();
+
+        for (int i = 0; i < HEDGE_WARM_UP; i++) {
+            assertEquals(200, getCode(mServer.urlFor(i)));
+        }
+        mTransport.setHedgingEnabled(true);
+    }
+
+    /**
+     * Waits for the losing attempt to give its connection slot back
+     */
+    private void assertSlotsReleased() throws InterruptedException {
+        final long giveUp = System.currentTimeMillis() + 5000;
+        while (mTransport.getActiveRequestCount() > 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mTransport.getActiveRequestCount());
+    }
+
+    private int getCode(String url) throws Exception {
+        final HttpTransport.Response response = mTransport.get(url);
+        try {
+            if (response.isSuccessful()) {
+                response.readBody();
+            }
+            return response.getCode();
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void retriesA503UntilItPasses() throws Exception {
+        mConfig.failFirstRequests = 2;
+        startServer();
+
+        assertEquals(200, getCode(mServer.urlFor(0)));
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void returnsTheLastFailureOnceTheAttemptsAreUsedUp() throws Exception {
+        mConfig.failFirstRequests = 3;
+        startServer();
+
+        assertEquals(503, getCode(mServer.urlFor(0)));
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryWithoutAPolicy() throws Exception {
+        mConfig.failFirstRequests = 1;
+        startServer();
+        mTransport.setRetryPolicy(RetryPolicy.NONE);
+
+        assertEquals(503, getCode(mServer.urlFor(0)));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void remembersAUrlThatWasNotFound() throws Exception {
+        startServer();
+        final String missing = mServer.urlFor(0).replace("/image/", "/missing/");
+
+        assertEquals(404, getCode(missing));
+        try {
+            getCode(missing);
+            fail("Asked again for a url that was not found");
+        } catch (HttpTransport.FailFastException e) {
+            //Expected
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        //Other urls of the host are still asked for, and a 404 is no reason to retry
+        assertEquals(200, getCode(mServer.urlFor(0)));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cutsOffAHostThatKeepsFailing() throws Exception {
+        mConfig.failFirstRequests = 5;
+        startServer();
+        mTransport.setRetryPolicy(RetryPolicy.NONE);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(503, getCode(mServer.urlFor(i)));
+        }
+        try {
+            getCode(mServer.urlFor(5));
+            fail("Asked a host whose breaker is open");
+        } catch (HttpTransport.FailFastException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Host is down"));
+        }
+        assertEquals(5, mServer.getRequestCount());
+    }
+
+    @Test
+    public void staysClosedBelowTheThreshold() throws Exception {
+        mConfig.failFirstRequests = 4;
+        startServer();
+
+        //Three 503s from the first request, one from the second, then a success
+        assertEquals(503, getCode(mServer.urlFor(0)));
+        assertEquals(200, getCode(mServer.urlFor(1)));
+        assertEquals(5, mServer.getRequestCount());
+    }
+
+    @Test
+    public void hedgeWinsAndTheRequestIsAborted() throws Exception {
+        startRace(SLOW_MS, 0);
+        mTransport.setHedgeTokens(1);
+        final long hedges = getCount(ImageMetrics.HEDGE);
+        final long hedgesWon = getCount(ImageMetrics.HEDGE_WON);
+
+        final long start = System.currentTimeMillis();
+        assertEquals(200, getCode(mServer.urlFor(0)));
+        assertTrue("Waited for the slow request", System.currentTimeMillis() - start < SLOW_MS);
+
+        assertEquals(HEDGE_WARM_UP + 2, mServer.getRequestCount());
+        assertEquals(hedges + 1, getCount(ImageMetrics.HEDGE));
+        assertEquals(hedgesWon + 1, getCount(ImageMetrics.HEDGE_WON));
+        assertSlotsReleased();
+    }
+
+    @Test
+    public void requestWinsAndTheHedgeIsCancelled() throws Exception {
+        startRace(SLOW_MS / 3, SLOW_MS * 2);
+        mTransport.setHedgeTokens(1);
+        final long hedges = getCount(ImageMetrics.HEDGE);
+        final long hedgesWon = getCount(ImageMetrics.HEDGE_WON);
+
+        final long start = System.currentTimeMillis();
+        assertEquals(200, getCode(mServer.urlFor(0)));
+        assertTrue("Waited for the hedge", System.currentTimeMillis() - start < SLOW_MS * 2);
+
+        assertEquals(HEDGE_WARM_UP + 2, mServer.getRequestCount());
+        assertEquals(hedges + 1, getCount(ImageMetrics.HEDGE));
+        assertEquals(hedgesWon, getCount(ImageMetrics.HEDGE_WON));
+        assertSlotsReleased();
+
+        //Cancelling disconnects the hedge, it does not wait for its slow response
+        assertTrue("Hedge not cancelled", System.currentTimeMillis() - start < SLOW_MS * 2);
+    }
+
+    @Test
+    public void sendsNoHedgeOnceTheBudgetIsSpent() throws Exception {
+        startRace(SLOW_MS / 3, 0);
+        mTransport.setHedgeTokens(0);
+        final long hedges = getCount(ImageMetrics.HEDGE);
+
+        final long start = System.currentTimeMillis();
+        assertEquals(200, getCode(mServer.urlFor(0)));
+        assertTrue(System.currentTimeMillis() - start >= SLOW_MS / 3);
+
+        assertEquals(HEDGE_WARM_UP + 1, mServer.getRequestCount());
+        assertEquals(hedges, getCount(ImageMetrics.HEDGE));
+        assertSlotsReleased();
+    }
+}
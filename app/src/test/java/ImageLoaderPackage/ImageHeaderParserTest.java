@@ -0,0 +1,233 @@
+package ImageLoaderPackage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ImageHeaderParserTest {
+
+    /**
+     * Little helper to write image headers byte by byte
+     */
+    private static class Bytes {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Bytes u8(int... values) {
+            for (int value : values) {
+                mOut.write(value);
+            }
+            return this;
+        }
+
+        Bytes ascii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                mOut.write(text.charAt(i));
+            }
+            return this;
+        }
+
+        Bytes u16(int value, boolean littleEndian) {
+            return littleEndian ? u8(value & 0xFF, value >> 8 & 0xFF)
+                    : u8(value >> 8 & 0xFF, value & 0xFF);
+        }
+
+        Bytes u24le(int value) {
+            return u8(value & 0xFF, value >> 8 & 0xFF, value >> 16 & 0xFF);
+        }
+
+        Bytes u32(int value, boolean littleEndian) {
+            return littleEndian
+                    ? u8(value & 0xFF, value >> 8 & 0xFF, value >> 16 & 0xFF, value >>> 24)
+                    : u8(value >>> 24, value >> 16 & 0xFF, value >> 8 & 0xFF, value & 0xFF);
+        }
+
+        Bytes zeros(int count) {
+            for (int i = 0; i < count; i++) {
+                mOut.write(0);
+            }
+            return this;
+        }
+
+        byte[] toArray() {
+            return mOut.toByteArray();
+        }
+    }
+
+    private static byte[] jpeg(boolean littleEndian, int orientation, int width, int height) {
+        final Bytes bytes = new Bytes().u8(0xFF, 0xD8);
+
+        //APP1 with one IFD0 entry, the orientation
+        bytes.u8(0xFF, 0xE1).u16(2 + 6 + 8 + 2 + 12 + 4, false)
+                .ascii("Exif").u8(0, 0)
+                .ascii(littleEndian ? "II" : "MM").u16(42, littleEndian).u32(8, littleEndian)
+                .u16(1, littleEndian)
+                .u16(0x0112, littleEndian).u16(3, littleEndian).u32(1, littleEndian)
+                .u16(orientation, littleEndian).u16(0, littleEndian)
+                .u32(0, littleEndian);
+
+        //SOF0 with three components
+        bytes.u8(0xFF, 0xC0).u16(17, false).u8(8).u16(height, false).u16(width, false)
+                .u8(3).zeros(9);
+        return bytes.u8(0xFF, 0xD9).toArray();
+    }
+
+    private static byte[] png(int width, int height) {
+        return new Bytes().u8(0x89).ascii("PNG").u8(0x0D, 0x0A, 0x1A, 0x0A)
+                .u32(13, false).ascii("IHDR").u32(width, false).u32(height, false)
+                .u8(8, 6, 0, 0, 0).toArray();
+    }
+
+    private static byte[] gif(int width, int height) {
+        return new Bytes().ascii("GIF89a").u16(width, true).u16(height, true)
+                .u8(0, 0, 0).toArray();
+    }
+
+    private static Bytes webp(String chunk) {
+        return new Bytes().ascii("RIFF").u32(0, true).ascii("WEBP").ascii(chunk).u32(0, true);
+    }
+
+    private static byte[] bmp(int headerSize, int width, int height) {
+        final Bytes bytes = new Bytes().ascii("BM").zeros(12).u32(headerSize, true);
+        if (headerSize == 12) {
+            bytes.u16(width, true).u16(height, true).u16(1, true).u16(24, true);
+        } else {
+            bytes.u32(width, true).u32(height, true).zeros(headerSize - 12);
+        }
+        return bytes.toArray();
+    }
+
+    private static ImageHeaderParser parse(byte[] data, int expected) {
+        final ImageHeaderParser parser = ImageHeaderParser.get();
+        assertEquals(expected, parser.parse(data, 0, data.length));
+        return parser;
+    }
+
+    private static void assertSize(ImageHeaderParser parser, ImageHeaderParser.Format format,
+                                   int width, int height) {
+        assertEquals(format, parser.getFormat());
+        assertEquals(width, parser.getWidth());
+        assertEquals(height, parser.getHeight());
+    }
+
+    @Test
+    public void readsJpegSizeAndExifOrientation() {
+        ImageHeaderParser parser = parse(jpeg(false, 6, 640, 480), ImageHeaderParser.PARSED);
+        assertSize(parser, ImageHeaderParser.Format.JPEG, 640, 480);
+        assertEquals(6, parser.getOrientation());
+
+        parser = parse(jpeg(true, 3, 1024, 768), ImageHeaderParser.PARSED);
+        assertSize(parser, ImageHeaderParser.Format.JPEG, 1024, 768);
+        assertEquals(3, parser.getOrientation());
+    }
+
+    @Test
+    public void readsPng() {
+        assertSize(parse(png(300, 200), ImageHeaderParser.PARSED),
+                ImageHeaderParser.Format.PNG, 300, 200);
+    }
+
+    @Test
+    public void readsGif() {
+        assertSize(parse(gif(48, 32), ImageHeaderParser.PARSED),
+                ImageHeaderParser.Format.GIF, 48, 32);
+    }
+
+    @Test
+    public void readsLossyWebp() {
+        final byte[] data = webp("VP8 ").u8(0, 0, 0).u8(0x9D, 0x01, 0x2A)
+                .u16(400, true).u16(300, true).toArray();
+        assertSize(parse(data, ImageHeaderParser.PARSED), ImageHeaderParser.Format.WEBP, 400, 300);
+    }
+
+    @Test
+    public void readsLosslessWebp() {
+        final int bits = (400 - 1) | (300 - 1) << 14;
+        final byte[] data = webp("VP8L").u8(0x2F).u32(bits, true).toArray();
+        assertSize(parse(data, ImageHeaderParser.PARSED), ImageHeaderParser.Format.WEBP, 400, 300);
+    }
+
+    @Test
+    public void readsExtendedWebp() {
+        final byte[] data = webp("VP8X").u8(0x10, 0, 0, 0).u24le(4000 - 1).u24le(3000 - 1)
+                .toArray();
+        assertSize(parse(data, ImageHeaderParser.PARSED), ImageHeaderParser.Format.WEBP,
+                4000, 3000);
+    }
+
+    @Test
+    public void readsBmp() {
+        assertSize(parse(bmp(40, 120, 80), ImageHeaderParser.PARSED),
+                ImageHeaderParser.Format.BMP, 120, 80);
+
+        //Top-down bitmaps store a negative height
+        assertSize(parse(bmp(40, 120, -80), ImageHeaderParser.PARSED),
+                ImageHeaderParser.Format.BMP, 120, 80);
+
+        assertSize(parse(bmp(12, 64, 16), ImageHeaderParser.PARSED),
+                ImageHeaderParser.Format.BMP, 64, 16);
+    }
+
+    @Test
+    public void asksForMoreDataUntilTheSizeHasArrived() {
+        final byte[][] images = {
+                jpeg(false, 1, 640, 480),
+                png(300, 200),
+                gif(48, 32),
+                webp("VP8 ").u8(0, 0, 0).u8(0x9D, 0x01, 0x2A).u16(400, true).u16(300, true)
+                        .toArray(),
+                webp("VP8L").u8(0x2F).u32(399, true).toArray(),
+                webp("VP8X").zeros(4).u24le(399).u24le(299).toArray(),
+                bmp(40, 120, 80)
+        };
+
+        //Bytes up to the end of the width and height, the JPEG also has its Exif segment
+        final int[] needed = {2 + 36 + 4 + 5, 24, 10, 30, 25, 30, 26};
+
+        final ImageHeaderParser parser = ImageHeaderParser.get();
+        for (int i = 0; i < images.length; i++) {
+            for (int length = 0; length < needed[i]; length++) {
+                assertEquals("Image " + i + " cut at " + length, ImageHeaderParser.NEED_MORE_DATA,
+                        parser.parse(images[i], 0, length));
+                assertNull(parser.toMetadata(null));
+            }
+            assertEquals("Image " + i, ImageHeaderParser.PARSED,
+                    parser.parse(images[i], 0, needed[i]));
+        }
+    }
+
+    @Test
+    public void parsesAtAnOffset() {
+        final byte[] image = png(300, 200);
+        final byte[] buffer = new byte[image.length + 5];
+        System.arraycopy(image, 0, buffer, 5, image.length);
+
+        final ImageHeaderParser parser = ImageHeaderParser.get();
+        assertEquals(ImageHeaderParser.PARSED, parser.parse(buffer, 5, image.length));
+        assertSize(parser, ImageHeaderParser.Format.PNG, 300, 200);
+    }
+
+    @Test
+    public void rejectsUnknownBytes() {
+        parse(new Bytes().ascii("<html><body>Not found</body></html>").toArray(),
+                ImageHeaderParser.UNSUPPORTED);
+        parse(webp("VP9 ").zeros(16).toArray(), ImageHeaderParser.UNSUPPORTED);
+        assertNull(ImageHeaderParser.get().toMetadata(null));
+    }
+
+    @Test
+    public void turnsTheResultIntoMetadata() {
+        final ImageHeaderParser parser = parse(jpeg(true, 8, 640, 480), ImageHeaderParser.PARSED);
+        final ImageMetadata metadata = parser.toMetadata("\"v1\"");
+
+        assertNotNull(metadata);
+        assertEquals(640, metadata.getWidth());
+        assertEquals(480, metadata.getHeight());
+        assertEquals("image/jpeg", metadata.getMimeType());
+        assertEquals(8, metadata.getOrientation());
+        assertEquals("\"v1\"", metadata.getETag());
+    }
+}
@@ -0,0 +1,214 @@
+package ImageLoaderPackage;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryCacheTest {
+
+    private static final MemoryCache.Callbacks<Integer, String> UNIT_SIZE =
+            new MemoryCache.Callbacks<Integer, String>() {
+                @Override
+                public int sizeOf(Integer key, String value) {
+                    return 1;
+                }
+
+                @Override
+                public void entryRemoved(boolean evicted, Integer key, String oldValue,
+                                         String newValue) {
+                }
+            };
+
+    /**
+     * Counts the values still cached, by adding on put and subtracting on entryRemoved()
+     */
+    private static class CountingCallbacks implements MemoryCache.Callbacks<Integer, String> {
+        final Map<String, Integer> mLive = new HashMap<String, Integer>();
+
+        @Override
+        public int sizeOf(Integer key, String value) {
+            return 1;
+        }
+
+        @Override
+        public void entryRemoved(boolean evicted, Integer key, String oldValue, String newValue) {
+            final Integer count = mLive.get(oldValue);
+            assertNotNull("Removed twice or never put: " + oldValue, count);
+            if (count == 1) {
+                mLive.remove(oldValue);
+            } else {
+                mLive.put(oldValue, count - 1);
+            }
+        }
+
+        void onPut(String value) {
+            final Integer count = mLive.get(value);
+            mLive.put(value, count == null ? 1 : count + 1);
+        }
+    }
+
+    @Test
+    public void neverEvictsTheEntryJustPut() {
+        for (MemoryCache.Policy policy : MemoryCache.Policy.values()) {
+            final MemoryCache<Integer, String> cache =
+                    MemoryCache.create(policy, 12, UNIT_SIZE);
+
+            for (int i = 0; i < 2000; i++) {
+                cache.put(i, "v" + i);
+                assertNotNull(policy + " evicted " + i, cache.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void notifiesEveryRemovalExactlyOnce() {
+        for (MemoryCache.Policy policy : MemoryCache.Policy.values()) {
+            final CountingCallbacks callbacks = new CountingCallbacks();
+            final MemoryCache<Integer, String> cache = MemoryCache.create(policy, 8, callbacks);
+
+            for (int i = 0; i < 500; i++) {
+                final int key = (i * 7) % 20;
+                final String value = "v" + i;
+                callbacks.onPut(value);
+                cache.put(key, value);
+                if (i % 5 == 0) {
+                    cache.get((i * 3) % 20);
+                }
+                if (i % 11 == 0) {
+                    cache.remove((i * 13) % 20);
+                }
+                assertTrue(policy + " over budget", cache.size() <= 8);
+                assertEquals(policy.toString(), callbacks.mLive.size(), cache.size());
+            }
+
+            cache.evictAll();
+            assertEquals(policy.toString(), 0, cache.size());
+            assertTrue(policy + " leaked " + callbacks.mLive, callbacks.mLive.isEmpty());
+        }
+    }
+
+    @Test
+    public void clockGivesReferencedEntriesASecondChance() {
+        //One stripe, so that the hand goes over the entries in the order they were put
+        final MemoryCache<Integer, String> cache =
+                new ConcurrentMemoryCache<Integer, String>(4, UNIT_SIZE, 1);
+
+        for (int i = 0; i < 4; i++) {
+            cache.put(i, "v" + i);
+        }
+        cache.get(0);
+        cache.put(4, "v4");
+
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(4));
+    }
+
+    @Test
+    public void evictsAnEntryLargerThanTheWholeBudget() {
+        final MemoryCache<Integer, String> cache = MemoryCache.create(MemoryCache.Policy.CONCURRENT, 4,
+                new MemoryCache.Callbacks<Integer, String>() {
+                    @Override
+                    public int sizeOf(Integer key, String value) {
+                        return value.length();
+                    }
+
+                    @Override
+                    public void entryRemoved(boolean evicted, Integer key, String oldValue,
+                                             String newValue) {
+                    }
+                });
+
+        cache.put(0, "ab");
+        cache.put(1, "abcdefgh");
+
+        //Like LruCache, older entries go first and then the new one, which cannot fit
+        assertNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void stripedCacheKeepsItsBudgetAndNotifiesOnceUnderContention() throws Exception {
+        final int threads = 8;
+        final int budget = 16;
+        final Set<String> live = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger badRemovals = new AtomicInteger();
+
+        final ConcurrentMemoryCache<Integer, String> cache = new ConcurrentMemoryCache<Integer, String>(
+                budget, new MemoryCache.Callbacks<Integer, String>() {
+                    @Override
+                    public int sizeOf(Integer key, String value) {
+                        return 1;
+                    }
+
+                    @Override
+                    public void entryRemoved(boolean evicted, Integer key, String oldValue,
+                                             String newValue) {
+                        if (!live.remove(oldValue)) {
+                            badRemovals.incrementAndGet();
+                        }
+                    }
+                }, threads);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(thread);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        final int key = random.nextInt(64);
+                        final int op = random.nextInt(10);
+                        if (op < 6) {
+                            cache.get(key);
+                        } else if (op < 9) {
+                            final String value = key + ":" + thread + "-" + i;
+                            live.add(value);
+                            cache.put(key, value);
+                        } else {
+                            cache.remove(key);
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(0, badRemovals.get());
+        assertTrue("over budget: " + cache.size(), cache.size() <= budget);
+        assertEquals(live.size(), cache.size());
+        for (String value : live) {
+            final int key = Integer.parseInt(value.substring(0, value.indexOf(':')));
+            assertEquals(value, cache.get(key));
+        }
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue("leaked " + live, live.isEmpty());
+    }
+}
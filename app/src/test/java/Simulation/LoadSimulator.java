@@ -0,0 +1,310 @@
+package Simulation;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import BackgroundThreads.DiskLruCache;
+import BackgroundThreads.HeadlessPipeline;
+import ImageLoaderPackage.HttpTransport;
+import ImageLoaderPackage.MemoryCache;
+
+/**
+ * Replays a scroll trace over a simulated grid against an image pipeline and reports
+ * time-to-first-image, per-image latency percentiles, bytes transferred and cache hit
+ * ratios. Run it twice over the same trace and server config to compare a scheduling or
+ * caching change against the baseline.
+ */
+public class LoadSimulator {
+
+    //How long to wait for the last visible cells once the trace is over
+    private static final long DRAIN_TIMEOUT_MS = 30 * 1000;
+
+    private final SimulatedPipeline mPipeline;
+    private final LocalImageServer mServer;
+    private final int mItemCount;
+
+    private final Map<Integer, Long> mBindTimes = new HashMap<Integer, Long>();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final Object mResultLock = new Object();
+
+    private long mStartNanos;
+    private long mFirstImageNanos = -1;
+    private long[] mLatencies = new long[64];
+    private int mLatencyCount;
+    private final int[] mSourceCounts = new int[SimulatedPipeline.Source.values().length];
+    private int mFailureCount;
+    private int mCancelCount;
+
+    public LoadSimulator(SimulatedPipeline pipeline, LocalImageServer server, int itemCount) {
+        mPipeline = pipeline;
+        mServer = server;
+        mItemCount = itemCount;
+    }
+
+    /**
+     * Replays the trace in real time, binding cells as they become visible and cancelling
+     * them as they leave the screen, then waits for the last screen to finish loading
+     */
+    public Report run(ScrollTrace trace) throws InterruptedException {
+        final long bytesBefore = mServer.getBytesServed();
+        final long requestsBefore = mServer.getRequestCount();
+        final boolean[] bound = new boolean[mItemCount];
+
+        mStartNanos = System.nanoTime();
+
+        for (ScrollTrace.Frame frame : trace.getFrames()) {
+            final long dueNanos = mStartNanos + frame.timeMs * 1000000L;
+            final long waitMs = (dueNanos - System.nanoTime()) / 1000000L;
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+
+            //Unbind the cells that scrolled out of view
+            for (int position = 0; position < mItemCount; position++) {
+                if (bound[position] && !frame.isVisible(position)) {
+                    bound[position] = false;
+                    unbind(position);
+                }
+            }
+
+            //Bind the cells that scrolled into view
+            final int end = Math.min(mItemCount, frame.firstVisible + frame.visibleCount);
+            for (int position = Math.max(0, frame.firstVisible); position < end; position++) {
+                if (!bound[position]) {
+                    bound[position] = true;
+                    bind(position);
+                }
+            }
+        }
+
+        waitForOutstanding();
+
+        return buildReport(mServer.getBytesServed() - bytesBefore,
+                mServer.getRequestCount() - requestsBefore);
+    }
+
+    private void bind(final int position) {
+        synchronized (mResultLock) {
+            mBindTimes.put(position, System.nanoTime());
+        }
+        mOutstanding.incrementAndGet();
+
+        mPipeline.load(position, mServer.urlFor(position), new SimulatedPipeline.Callback() {
+            @Override
+            public void onLoaded(int position, SimulatedPipeline.Source source, int byteCount) {
+                final long now = System.nanoTime();
+                synchronized (mResultLock) {
+                    final Long bindTime = mBindTimes.remove(position);
+                    if (bindTime == null) {
+                        //Finished after it was unbound, the user never saw it
+                        return;
+                    }
+
+                    if (mFirstImageNanos < 0) {
+                        mFirstImageNanos = now;
+                    }
+                    addLatency(now - bindTime);
+                    mSourceCounts[source.ordinal()]++;
+                }
+                onRequestFinished();
+            }
+
+            @Override
+            public void onFailed(int position, Exception e) {
+                synchronized (mResultLock) {
+                    if (mBindTimes.remove(position) == null) {
+                        return;
+                    }
+                    mFailureCount++;
+                }
+                onRequestFinished();
+            }
+        });
+    }
+
+    private void unbind(int position) {
+        final boolean wasPending;
+        synchronized (mResultLock) {
+            wasPending = mBindTimes.remove(position) != null;
+            if (wasPending) {
+                mCancelCount++;
+            }
+        }
+
+        if (wasPending) {
+            mPipeline.cancel(position);
+            onRequestFinished();
+        }
+    }
+
+    private void onRequestFinished() {
+        if (mOutstanding.decrementAndGet() == 0) {
+            synchronized (mOutstanding) {
+                mOutstanding.notifyAll();
+            }
+        }
+    }
+
+    private void waitForOutstanding() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        synchronized (mOutstanding) {
+            while (mOutstanding.get() > 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                mOutstanding.wait(remaining);
+            }
+        }
+    }
+
+    private void addLatency(long nanos) {
+        if (mLatencyCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+        }
+        mLatencies[mLatencyCount++] = nanos;
+    }
+
+    private Report buildReport(long bytesTransferred, long networkRequests) {
+        synchronized (mResultLock) {
+            final Report report = new Report();
+            final long[] latencies = Arrays.copyOf(mLatencies, mLatencyCount);
+            Arrays.sort(latencies);
+
+            report.timeToFirstImageMs = mFirstImageNanos < 0 ? -1
+                    : (mFirstImageNanos - mStartNanos) / 1000000L;
+            report.imagesShown = latencies.length;
+            report.p50LatencyMs = percentile(latencies, 0.50);
+            report.p99LatencyMs = percentile(latencies, 0.99);
+            report.bytesTransferred = bytesTransferred;
+            report.networkRequests = networkRequests;
+            report.memoryHits = mSourceCounts[SimulatedPipeline.Source.MEMORY.ordinal()];
+            report.diskHits = mSourceCounts[SimulatedPipeline.Source.DISK.ordinal()];
+            report.networkLoads = mSourceCounts[SimulatedPipeline.Source.NETWORK.ordinal()];
+            report.failures = mFailureCount;
+            report.cancelled = mCancelCount;
+            report.unfinished = mBindTimes.size();
+            return report;
+        }
+    }
+
+    private static double percentile(long[] sortedNanos, double fraction) {
+        if (sortedNanos.length == 0) return -1;
+
+        final int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1000000.0;
+    }
+
+    /**
+     * The results of one simulation run
+     */
+    public static class Report {
+        public long timeToFirstImageMs;
+        public int imagesShown;
+        public double p50LatencyMs;
+        public double p99LatencyMs;
+        public long bytesTransferred;
+        public long networkRequests;
+        public int memoryHits;
+        public int diskHits;
+        public int networkLoads;
+        public int failures;
+        public int cancelled;
+        public int unfinished;
+
+        public double memoryHitRatio() {
+            return imagesShown == 0 ? 0 : (double) memoryHits / imagesShown;
+        }
+
+        public double diskHitRatio() {
+            return imagesShown == 0 ? 0 : (double) diskHits / imagesShown;
+        }
+
+        public void dump(PrintWriter writer) {
+            writer.printf("time to first image: %d ms%n", timeToFirstImageMs);
+            writer.printf("images shown: %d (failed %d, cancelled %d, unfinished %d)%n",
+                    imagesShown, failures, cancelled, unfinished);
+            writer.printf("latency p50: %.1f ms, p99: %.1f ms%n", p50LatencyMs, p99LatencyMs);
+            writer.printf("bytes transferred: %d in %d requests%n", bytesTransferred, networkRequests);
+            writer.printf("memory hit ratio: %.3f, disk hit ratio: %.3f, network: %d%n",
+                    memoryHitRatio(), diskHitRatio(), networkLoads);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Runs a fling down a two-column grid and back up against the local server with the
+     * headless pipeline, twice with the same caches. An optional argument names a trace file
+     * to replay instead. The memory cache
+     * policy can be chosen with -Dloadsim.policy=LRU|TINY_LFU|CONCURRENT. -Dloadsim.hedge=true gives 2%
+     * of the responses a one second stall and turns request hedging on against them.
+     */
+    public static void main(String[] args) throws Exception {
+        final int columns = 2;
+        final int visibleRows = 4;
+        final int itemCount = 500;
+        final MemoryCache.Policy policy =
+                MemoryCache.Policy.valueOf(System.getProperty("loadsim.policy", "LRU"));
+
+        final LocalImageServer.Config config = new LocalImageServer.Config();
+        config.latencyMs = 40;
+        config.latencyJitterMs = 60;
+        config.bytesPerSecond = 4 * 1024 * 1024;
+
+        if (Boolean.getBoolean("loadsim.hedge")) {
+            config.slowRate = 0.02f;
+            config.slowLatencyMs = 1000;
+            HttpTransport.getInstance().setHedgingEnabled(true);
+        }
+
+        final ScrollTrace trace;
+        if (args.length > 0) {
+            final FileReader reader = new FileReader(args[0]);
+            try {
+                trace = ScrollTrace.parse(reader);
+            } finally {
+                reader.close();
+            }
+        } else {
+            trace = ScrollTrace.flingAndBack(columns, visibleRows, itemCount, 40f, 2000, 1000, 16);
+        }
+
+        final LocalImageServer server = new LocalImageServer(config);
+        final File diskCacheDir = createTempDir();
+        server.start();
+
+        try {
+            final PrintWriter writer = new PrintWriter(System.out);
+            final HeadlessPipeline pipeline =
+                    new HeadlessPipeline(8 * 1024 * 1024, policy, diskCacheDir, 64 * 1024 * 1024);
+
+            //The second pass over the same trace shows the warm-cache behaviour
+            try {
+                for (int pass = 1; pass <= 2; pass++) {
+                    writer.println("pass " + pass);
+                    new LoadSimulator(pipeline, server, itemCount).run(trace).dump(writer);
+                }
+            } finally {
+                pipeline.shutdown();
+            }
+        } finally {
+            server.stop();
+            DiskLruCache.deleteContents(diskCacheDir);
+            diskCacheDir.delete();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        final File dir = File.createTempFile("loadsim", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+}
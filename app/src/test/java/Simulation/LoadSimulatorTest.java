@@ -0,0 +1,104 @@
+package Simulation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import BackgroundThreads.DiskLruCache;
+import BackgroundThreads.HeadlessPipeline;
+import ImageLoaderPackage.MemoryCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadSimulatorTest {
+    private static final int ITEM_COUNT = 16;
+    private static final int SCREEN = 8;
+
+    //Long enough for a screen of images to load before the next frame
+    private static final long FRAME_GAP_MS = 1000;
+
+    private final LocalImageServer.Config mConfig = new LocalImageServer.Config();
+    private LocalImageServer mServer;
+    private File mDiskCacheDir;
+    private HeadlessPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mConfig.imageWidth = 200;
+        mConfig.imageHeight = 200;
+        mConfig.latencyMs = 5;
+        mServer = new LocalImageServer(mConfig);
+        mServer.start();
+
+        mDiskCacheDir = File.createTempFile("loadsimtest", "");
+        assertTrue(mDiskCacheDir.delete() && mDiskCacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+        }
+        mServer.stop();
+        DiskLruCache.deleteContents(mDiskCacheDir);
+        mDiskCacheDir.delete();
+    }
+
+    /**
+     * The first screen, the next one, and back to the first
+     */
+    private static ScrollTrace downAndBack() {
+        return new ScrollTrace(Arrays.asList(
+                new ScrollTrace.Frame(0, 0, SCREEN),
+                new ScrollTrace.Frame(FRAME_GAP_MS, SCREEN, SCREEN),
+                new ScrollTrace.Frame(2 * FRAME_GAP_MS, 0, SCREEN)));
+    }
+
+    private LoadSimulator.Report run() throws InterruptedException {
+        return new LoadSimulator(mPipeline, mServer, ITEM_COUNT).run(downAndBack());
+    }
+
+    private static void assertAllShown(LoadSimulator.Report report) {
+        assertEquals(3 * SCREEN, report.imagesShown);
+        assertEquals(0, report.failures);
+        assertEquals(0, report.cancelled);
+        assertEquals(0, report.unfinished);
+    }
+
+    @Test
+    public void scrollingBackIsServedFromMemory() throws Exception {
+        mPipeline = new HeadlessPipeline(8 * 1024 * 1024, MemoryCache.Policy.CONCURRENT,
+                mDiskCacheDir, 8 * 1024 * 1024);
+
+        final LoadSimulator.Report cold = run();
+        assertAllShown(cold);
+        assertEquals(2 * SCREEN, cold.networkLoads);
+        assertEquals(2 * SCREEN, cold.networkRequests);
+        assertEquals(SCREEN, cold.memoryHits);
+        assertEquals(1.0 / 3, cold.memoryHitRatio(), 0.001);
+
+        final LoadSimulator.Report warm = run();
+        assertAllShown(warm);
+        assertEquals(0, warm.networkRequests);
+        assertEquals(1.0, warm.memoryHitRatio(), 0.001);
+    }
+
+    @Test
+    public void scrollingBackIsServedFromDiskWithoutMemory() throws Exception {
+        //Smaller than any image, so nothing stays in memory
+        mPipeline = new HeadlessPipeline(1024, MemoryCache.Policy.LRU,
+                mDiskCacheDir, 8 * 1024 * 1024);
+
+        final LoadSimulator.Report report = run();
+        assertAllShown(report);
+        assertEquals(0, report.memoryHits);
+        assertEquals(SCREEN, report.diskHits);
+        assertEquals(2 * SCREEN, report.networkLoads);
+        assertEquals(2 * SCREEN, report.networkRequests);
+        assertEquals(1.0 / 3, report.diskHitRatio(), 0.001);
+    }
+}
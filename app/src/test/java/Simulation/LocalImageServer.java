@@ -0,0 +1,464 @@
+package Simulation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small embedded HTTP/1.1 server that stands in for the image CDN. It serves synthetic
+ * BMP images of a configurable size and can inject latency, throttle bandwidth, fail a
+ * fraction of the requests and switch between chunked and content-length encoding, so the
+ * image pipeline can be driven reproducibly without touching real hosts. With an eTag it
+ * also answers Range requests, so cut off downloads can be resumed.
+ *
+ * Images are served from /image/<index>.bmp. The optional query parameters w and h override
+ * the configured image dimensions for a single request. Any other path is answered with
+ * a 404.
+ */
+public class LocalImageServer {
+    private static final String IMAGE_PATH = "/image/";
+    private static final int BMP_HEADER_SIZE = 54;
+    private static final int WRITE_CHUNK_SIZE = 1024 * 2;
+
+    /**
+     * A holder class that contains the server parameters
+     */
+    public static class Config {
+        public int imageWidth = 480;
+        public int imageHeight = 480;
+
+        //Delay before the response headers are written, in milliseconds
+        public int latencyMs = 0;
+
+        //Uniformly distributed extra delay added on top of latencyMs
+        public int latencyJitterMs = 0;
+
+        //Fraction of requests that are also delayed by slowLatencyMs, a tail of stragglers
+        public float slowRate = 0f;
+        public int slowLatencyMs = 0;
+
+        //Extra delay of the first requests, in the order they arrive, to script a race
+        public int[] scriptedLatencyMs = null;
+
+        //Throughput limit of a single response, 0 means unlimited
+        public int bytesPerSecond = 0;
+
+        //Fraction of requests answered with a 503, between 0 and 1
+        public float errorRate = 0f;
+
+        //Number of image requests answered with a 503 before any other, for a host that is down
+        public int failFirstRequests = 0;
+
+        //Use Transfer-Encoding: chunked instead of Content-Length
+        public boolean chunked = false;
+
+        //Sent as the ETag of every image. Range requests are only answered with one, and
+        //only while their If-Range, if any, matches it
+        public String eTag = null;
+
+        //Moves the start of the part sent for a Range request, for a server that sends the
+        //wrong part. Content-Range tells the part actually sent
+        public int rangeSkew = 0;
+
+        //Seed for the error and latency jitter generator
+        public long seed = 42;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+    private final ExecutorService mConnectionExecutor;
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicLong mImageRequestCount = new AtomicLong();
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private volatile boolean mRunning;
+
+    public LocalImageServer(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+        mConnectionExecutor = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Binds to an ephemeral port on the loopback interface and starts accepting connections
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalImageServer-accept");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {}
+
+        mConnectionExecutor.shutdownNow();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the URL of the synthetic image at the given index
+     */
+    public String urlFor(int index) {
+        return "http://127.0.0.1:" + getPort() + IMAGE_PATH + index + ".bmp";
+    }
+
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+
+                mConnectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveConnection(socket);
+                    }
+                });
+            } catch (IOException e) {
+                //The server socket has been closed by stop()
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves requests on a single connection until the client closes it or asks for
+     * Connection: close
+     */
+    private void serveConnection(Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+
+            while (mRunning) {
+                final Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+
+                final long index = mRequestCount.getAndIncrement();
+                serveRequest(request, index, out);
+                out.flush();
+
+                if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            //Client went away, nothing to do
+        } catch (IOException e) {
+            //Client went away, nothing to do
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void serveRequest(Request request, long index, OutputStream out)
+            throws IOException, InterruptedException {
+
+        sleepFor(nextLatency(index));
+
+        if (!request.path.startsWith(IMAGE_PATH)) {
+            writeStatus(out, 404, "Not Found");
+            return;
+        }
+
+        if (nextIsError()) {
+            writeStatus(out, 503, "Service Unavailable");
+            return;
+        }
+
+        final int width = request.intParam("w", mConfig.imageWidth);
+        final int height = request.intParam("h", mConfig.imageHeight);
+        final byte[] body = createBitmapFile(width, height, request.path.hashCode());
+
+        int start = getRangeStart(request);
+        if (start >= body.length) {
+            writeAscii(out, "HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */"
+                    + body.length + "\r\nContent-Length: 0\r\n\r\n");
+            return;
+        }
+
+        final StringBuilder headers = new StringBuilder();
+        if (start >= 0) {
+            start = Math.max(0, Math.min(start + mConfig.rangeSkew, body.length - 1));
+            headers.append("HTTP/1.1 206 Partial Content\r\n");
+            headers.append("Content-Range: bytes ").append(start).append('-')
+                    .append(body.length - 1).append('/').append(body.length).append("\r\n");
+        } else {
+            start = 0;
+            headers.append("HTTP/1.1 200 OK\r\n");
+        }
+        headers.append("Content-Type: image/bmp\r\n");
+        if (mConfig.eTag != null) {
+            headers.append("ETag: ").append(mConfig.eTag).append("\r\n");
+        }
+
+        if (mConfig.chunked) {
+            headers.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            headers.append("Content-Length: ").append(body.length - start).append("\r\n");
+        }
+        headers.append("\r\n");
+        writeAscii(out, headers.toString());
+
+        if ("HEAD".equals(request.method)) {
+            return;
+        }
+
+        writeBody(out, body, start);
+    }
+
+    /**
+     * Returns the first byte asked for by a "bytes=start-" Range header, or -1 if the whole
+     * image is to be sent
+     */
+    private int getRangeStart(Request request) {
+        final String range = request.headers.get("range");
+        if (range == null || mConfig.eTag == null || !range.startsWith("bytes=")
+                || !range.endsWith("-")) {
+            return -1;
+        }
+
+        final String ifRange = request.headers.get("if-range");
+        if (ifRange != null && !ifRange.equals(mConfig.eTag)) return -1;
+
+        try {
+            return Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the body from offset on in small slices, sleeping between them when bandwidth is limited
+     */
+    private void writeBody(OutputStream out, byte[] body, int offset)
+            throws IOException, InterruptedException {
+
+        while (offset < body.length) {
+            final int count = Math.min(WRITE_CHUNK_SIZE, body.length - offset);
+
+            if (mConfig.chunked) {
+                writeAscii(out, Integer.toHexString(count) + "\r\n");
+                out.write(body, offset, count);
+                writeAscii(out, "\r\n");
+            } else {
+                out.write(body, offset, count);
+            }
+
+            offset += count;
+            mBytesServed.addAndGet(count);
+
+            if (mConfig.bytesPerSecond > 0) {
+                sleepFor((int) (count * 1000L / mConfig.bytesPerSecond));
+            }
+        }
+
+        if (mConfig.chunked) {
+            writeAscii(out, "0\r\n\r\n");
+        }
+    }
+
+    private static void writeStatus(OutputStream out, int code, String reason) throws IOException {
+        writeAscii(out, "HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\n\r\n");
+    }
+
+    private static void writeAscii(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("US-ASCII"));
+    }
+
+    private int nextLatency(long index) {
+        final int[] scripted = mConfig.scriptedLatencyMs;
+        final int extra = scripted != null && index < scripted.length ? scripted[(int) index] : 0;
+
+        synchronized (mRandom) {
+            final int jitter = mConfig.latencyJitterMs > 0 ? mRandom.nextInt(mConfig.latencyJitterMs) : 0;
+            final boolean slow = mConfig.slowRate > 0f && mRandom.nextFloat() < mConfig.slowRate;
+            return mConfig.latencyMs + extra + jitter + (slow ? mConfig.slowLatencyMs : 0);
+        }
+    }
+
+    private boolean nextIsError() {
+        if (mImageRequestCount.incrementAndGet() <= mConfig.failFirstRequests) return true;
+
+        synchronized (mRandom) {
+            return mConfig.errorRate > 0f && mRandom.nextFloat() < mConfig.errorRate;
+        }
+    }
+
+    private static void sleepFor(int millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Builds an uncompressed 24-bit BMP of the given size, filled with a colour derived
+     * from the seed so that different URLs produce different pixels
+     */
+    static byte[] createBitmapFile(int width, int height, int seed) {
+        final int rowSize = (width * 3 + 3) & ~3;
+        final int imageSize = rowSize * height;
+        final byte[] file = new byte[BMP_HEADER_SIZE + imageSize];
+
+        //BITMAPFILEHEADER
+        file[0] = 'B';
+        file[1] = 'M';
+        putIntLE(file, 2, file.length);
+        putIntLE(file, 10, BMP_HEADER_SIZE);
+
+        //BITMAPINFOHEADER
+        putIntLE(file, 14, 40);
+        putIntLE(file, 18, width);
+        putIntLE(file, 22, height);
+        file[26] = 1;
+        file[28] = 24;
+        putIntLE(file, 34, imageSize);
+
+        final byte blue = (byte) seed;
+        final byte green = (byte) (seed >> 8);
+        final byte red = (byte) (seed >> 16);
+
+        for (int y = 0; y < height; y++) {
+            int offset = BMP_HEADER_SIZE + y * rowSize;
+            for (int x = 0; x < width; x++) {
+                file[offset++] = blue;
+                file[offset++] = green;
+                file[offset++] = red;
+            }
+        }
+        return file;
+    }
+
+    private static void putIntLE(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Reads a request line and its headers. Returns null when the connection was closed
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+
+        final Request request = new Request();
+        request.method = parts[0];
+
+        final String target = parts[1];
+        final int queryStart = target.indexOf('?');
+        if (queryStart >= 0) {
+            request.path = target.substring(0, queryStart);
+            request.query = target.substring(queryStart + 1);
+        } else {
+            request.path = target;
+        }
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static class Request {
+        String method;
+        String path;
+        String query;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        int intParam(String name, int defaultValue) {
+            if (query == null) return defaultValue;
+
+            for (String pair : query.split("&")) {
+                final int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    try {
+                        return Integer.parseInt(pair.substring(equals + 1));
+                    } catch (NumberFormatException e) {
+                        return defaultValue;
+                    }
+                }
+            }
+            return defaultValue;
+        }
+    }
+}
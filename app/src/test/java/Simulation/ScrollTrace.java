@@ -0,0 +1,132 @@
+package Simulation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded or synthesized scroll session over a grid. Each frame states which adapter
+ * positions were visible at a point in time, which is all the load simulator needs to
+ * decide what to bind and what to cancel.
+ *
+ * The text format is one frame per line: "timeMs firstVisiblePosition visibleCount".
+ * Blank lines and lines starting with # are ignored.
+ */
+public class ScrollTrace {
+
+    public static class Frame {
+        public final long timeMs;
+        public final int firstVisible;
+        public final int visibleCount;
+
+        public Frame(long timeMs, int firstVisible, int visibleCount) {
+            this.timeMs = timeMs;
+            this.firstVisible = firstVisible;
+            this.visibleCount = visibleCount;
+        }
+
+        public boolean isVisible(int position) {
+            return position >= firstVisible && position < firstVisible + visibleCount;
+        }
+    }
+
+    private final List<Frame> mFrames;
+
+    public ScrollTrace(List<Frame> frames) {
+        mFrames = Collections.unmodifiableList(new ArrayList<Frame>(frames));
+    }
+
+    public List<Frame> getFrames() {
+        return mFrames;
+    }
+
+    public long getDurationMs() {
+        return mFrames.isEmpty() ? 0 : mFrames.get(mFrames.size() - 1).timeMs;
+    }
+
+    /**
+     * Parses a trace in the text format described above
+     */
+    public static ScrollTrace parse(Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        final List<Frame> frames = new ArrayList<Frame>();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+
+            final String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IOException("Malformed trace line: " + line);
+            }
+
+            try {
+                frames.add(new Frame(Long.parseLong(parts[0]),
+                        Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed trace line: " + line);
+            }
+        }
+        return new ScrollTrace(frames);
+    }
+
+    /**
+     * Synthesizes a fling: the grid starts at the top, is flung at the given velocity and
+     * decelerates linearly to rest, then idles for the given time
+     * @param columns Number of columns in the grid
+     * @param visibleRows Number of rows that fit on screen
+     * @param itemCount Number of items in the adapter
+     * @param velocityRowsPerSecond Initial fling velocity
+     * @param flingDurationMs Time until the fling comes to rest
+     * @param idleMs Time spent at rest after the fling
+     * @param frameMs Frame interval, 16 for 60fps
+     */
+    public static ScrollTrace fling(int columns, int visibleRows, int itemCount,
+                                    float velocityRowsPerSecond, long flingDurationMs,
+                                    long idleMs, long frameMs) {
+
+        final List<Frame> frames = new ArrayList<Frame>();
+        final int visibleCount = columns * visibleRows;
+        final int lastFirstRow = Math.max(0, (itemCount + columns - 1) / columns - visibleRows);
+
+        for (long time = 0; time <= flingDurationMs + idleMs; time += frameMs) {
+            final float t = Math.min(time, flingDurationMs) / 1000f;
+            final float duration = flingDurationMs / 1000f;
+
+            //Distance under linear deceleration: v*t - v*t^2 / (2 * duration)
+            final float rows = velocityRowsPerSecond * t
+                    - velocityRowsPerSecond * t * t / (2f * duration);
+            final int firstRow = Math.min(lastFirstRow, (int) rows);
+
+            frames.add(new Frame(time, firstRow * columns, visibleCount));
+        }
+        return new ScrollTrace(frames);
+    }
+
+    /**
+     * Synthesizes a fling like fling(), followed by the same fling back up to the top, so
+     * the items seen on the way down are bound again while some are still cached
+     */
+    public static ScrollTrace flingAndBack(int columns, int visibleRows, int itemCount,
+                                           float velocityRowsPerSecond, long flingDurationMs,
+                                           long idleMs, long frameMs) {
+
+        final List<Frame> down = fling(columns, visibleRows, itemCount, velocityRowsPerSecond,
+                flingDurationMs, idleMs, frameMs).getFrames();
+        final List<Frame> frames = new ArrayList<Frame>(down);
+
+        final Frame last = down.get(down.size() - 1);
+        final long offsetMs = last.timeMs + frameMs;
+        for (Frame frame : down) {
+            frames.add(new Frame(offsetMs + frame.timeMs, last.firstVisible - frame.firstVisible,
+                    frame.visibleCount));
+        }
+        return new ScrollTrace(frames);
+    }
+}
@@ -0,0 +1,36 @@
+package Simulation;
+
+/**
+ * The part of an image pipeline the load simulator drives. A grid cell that scrolls into
+ * view is bound with load(), a cell that scrolls out of view is unbound with cancel().
+ */
+public interface SimulatedPipeline {
+
+    /**
+     * Where a completed load was served from
+     */
+    enum Source {
+        MEMORY,
+        DISK,
+        NETWORK
+    }
+
+    interface Callback {
+
+        void onLoaded(int position, Source source, int byteCount);
+
+        void onFailed(int position, Exception e);
+    }
+
+    /**
+     * Starts loading the image for a grid position. The callback may be invoked on any thread
+     */
+    void load(int position, String url, Callback callback);
+
+    /**
+     * Cancels the pending load for a grid position, if any
+     */
+    void cancel(int position);
+
+    void shutdown();
+}